@@ -0,0 +1,135 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+/**
+ * Lightweight stand-ins for the Bukkit objects the plugin reads, and sample
+ * sign data, so the benchmarks can run without a server.
+ */
+public final class BukkitStubs {
+
+	private BukkitStubs() {
+	}
+
+	/**
+	 * @param name
+	 * @return A world that only knows its name.
+	 */
+	public static World world(final String name) {
+		return (World) Proxy.newProxyInstance(World.class.getClassLoader(), new Class<?>[] { World.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						String methodName = method.getName();
+						if (methodName.equals("getName") || methodName.equals("toString")) {
+							return name;
+						} else if (methodName.equals("hashCode")) {
+							return name.hashCode();
+						} else if (methodName.equals("equals")) {
+							return proxy == args[0];
+						}
+						throw new UnsupportedOperationException(methodName);
+					}
+				});
+	}
+
+	/**
+	 * @param world
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param type
+	 * @return A block that only knows its position and type. Its coordinates
+	 *         are boxed up front, so reading them doesn't allocate.
+	 */
+	public static Block block(final World world, int x, int y, int z, final Material type) {
+		final Integer boxedX = x;
+		final Integer boxedY = y;
+		final Integer boxedZ = z;
+		return (Block) Proxy.newProxyInstance(Block.class.getClassLoader(), new Class<?>[] { Block.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						String methodName = method.getName();
+						if (methodName.equals("getWorld")) {
+							return world;
+						} else if (methodName.equals("getX")) {
+							return boxedX;
+						} else if (methodName.equals("getY")) {
+							return boxedY;
+						} else if (methodName.equals("getZ")) {
+							return boxedZ;
+						} else if (methodName.equals("getType")) {
+							return type;
+						} else if (methodName.equals("getLocation")) {
+							return new Location(world, boxedX, boxedY, boxedZ);
+						} else if (methodName.equals("hashCode")) {
+							return System.identityHashCode(proxy);
+						} else if (methodName.equals("equals")) {
+							return proxy == args[0];
+						} else if (methodName.equals("toString")) {
+							return "Block{" + world.getName() + "," + boxedX + "," + boxedY + "," + boxedZ
+									+ "}";
+						}
+						throw new UnsupportedOperationException(methodName);
+					}
+				});
+	}
+
+	/**
+	 * Generate signs spread over a few worlds. Signs are clustered into
+	 * towns the way they are on real servers, and share a pool of URLs.
+	 * 
+	 * @param count
+	 * @param seed
+	 */
+	public static List<SignRecord> signs(int count, long seed) {
+		Random random = new Random(seed);
+		String[] worlds = { "world", "world_nether", "world_the_end" };
+		int urlCount = Math.max(count / 8, 1);
+
+		List<SignRecord> records = new ArrayList<SignRecord>(count);
+		int townX = 0;
+		int townZ = 0;
+		for (int i = 0; i < count; i++) {
+			if (i % 64 == 0) {
+				townX = random.nextInt(60000) - 30000;
+				townZ = random.nextInt(60000) - 30000;
+			}
+
+			// Unique positions: each sign gets its own y within a town
+			int x = townX + random.nextInt(128);
+			int y = i % 64 + 1;
+			int z = townZ + random.nextInt(128);
+			String url = "http://example.com/pages/" + random.nextInt(urlCount) + "?ref=sign";
+			records.add(new SignRecord(worlds[i % 64 % worlds.length], x, y, z, url));
+		}
+		return records;
+	}
+}
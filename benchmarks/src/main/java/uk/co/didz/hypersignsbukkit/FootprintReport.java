@@ -0,0 +1,119 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+
+/**
+ * Compares the heap used by the sign index with interned links against the
+ * old HashMap of Location to URL, where every sign had its own URL object, and
+ * the size of each data file format. Heap sizes are measured from the used
+ * heap after a full GC, so run it with a fixed heap (e.g. -Xms2g -Xmx2g) and
+ * nothing else going on.
+ * 
+ * Usage: java -cp target/benchmarks.jar uk.co.didz.hypersignsbukkit.FootprintReport [signs]
+ */
+public class FootprintReport {
+
+	public static void main(String[] args) throws IOException {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		List<SignRecord> records = BukkitStubs.signs(count, 1);
+		System.out.println(count + " signs, " + distinctUrls(records) + " distinct URLs");
+
+		long baseline = usedHeap();
+		HashMap<Location, URL> locationMap = locationMap(records);
+		long locationMapBytes = usedHeap() - baseline;
+		System.out.println("HashMap<Location, URL>:      " + kilobytes(locationMapBytes) + " ("
+				+ (locationMapBytes / count) + " bytes per sign)");
+		locationMap = null;
+
+		baseline = usedHeap();
+		SignIndex index = index(records);
+		long indexBytes = usedHeap() - baseline;
+		System.out.println("SignIndex, interned links:   " + kilobytes(indexBytes) + " ("
+				+ (indexBytes / count) + " bytes per sign, " + index.size() + " signs)");
+
+		Logger log = Logger.getLogger("HyperSigns");
+		SignsFormat[] formats = { new JsonSignsFormat(log), new BinarySignsFormat() };
+		for (SignsFormat format : formats) {
+			File file = File.createTempFile("hypersigns-footprint", format.getFileName());
+			try {
+				SignsWriter.writeFile(file, format, records);
+				System.out.println(String.format("%-29s", format.getFileName() + ":")
+						+ kilobytes(file.length()));
+			} finally {
+				file.delete();
+			}
+		}
+	}
+
+	private static HashMap<Location, URL> locationMap(List<SignRecord> records) throws IOException {
+		HashMap<String, World> worlds = new HashMap<String, World>();
+		HashMap<Location, URL> map = new HashMap<Location, URL>();
+		for (SignRecord record : records) {
+			World world = worlds.get(record.getWorld());
+			if (world == null) {
+				world = BukkitStubs.world(record.getWorld());
+				worlds.put(record.getWorld(), world);
+			}
+			// Copy the string, as if it was read from the file
+			map.put(new Location(world, record.getX(), record.getY(), record.getZ()),
+					new URL(new String(record.getUrl())));
+		}
+		return map;
+	}
+
+	private static SignIndex index(List<SignRecord> records) throws IOException {
+		SignLinks links = new SignLinks(Logger.getLogger("HyperSigns"), "", "");
+		SignIndex index = new SignIndex(false);
+		for (SignRecord record : records) {
+			index.put(record.getWorld(), record.getX(), record.getY(), record.getZ(),
+					links.get(new URL(new String(record.getUrl()))));
+		}
+		return index;
+	}
+
+	private static int distinctUrls(List<SignRecord> records) {
+		HashMap<String, Boolean> urls = new HashMap<String, Boolean>();
+		for (SignRecord record : records) {
+			urls.put(record.getUrl(), Boolean.TRUE);
+		}
+		return urls.size();
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static String kilobytes(long bytes) {
+		return (bytes / 1024) + " KB";
+	}
+}
@@ -0,0 +1,462 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.bukkit.Chunk;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.Listener;
+import org.bukkit.plugin.IllegalPluginAccessException;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.ServicesManager;
+import org.bukkit.plugin.messaging.Messenger;
+import org.bukkit.scheduler.BukkitScheduler;
+
+/**
+ * A server for the load test, without a network or worlds on disk. It has a
+ * fixed set of worlds, with every chunk loaded, and online players whose
+ * plugin messages and chat lines are counted instead of sent. Sync tasks are
+ * run by tick(), on the caller's thread, which stands in for the server
+ * thread. Async tasks run on a thread of their own.
+ * 
+ * Everything is a dynamic proxy that only answers the methods the plugin
+ * uses, and throws UnsupportedOperationException for the rest. Values are
+ * boxed up front so that calls without arguments don't allocate.
+ */
+public class HeadlessServer {
+
+	private final Logger logger;
+	private final Server server;
+	private final HashMap<String, World> worlds = new HashMap<String, World>();
+	private final List<World> worldList = new ArrayList<World>();
+	private final List<Player> players = new ArrayList<Player>();
+	private Listener listener;
+
+	/**
+	 * Chunks of each world that are reported as loaded, as chunk keys.
+	 */
+	private final HashMap<String, Set<Long>> loadedChunks = new HashMap<String, Set<Long>>();
+
+	/**
+	 * Plugin messages and chat lines sent to players, from any thread.
+	 */
+	protected final AtomicLong pluginMessages = new AtomicLong();
+	protected final AtomicLong pluginMessageBytes = new AtomicLong();
+	protected final AtomicLong chatMessages = new AtomicLong();
+
+	private final Object schedulerLock = new Object();
+	private final PriorityQueue<Task> tasks = new PriorityQueue<Task>();
+	private final HashMap<Integer, Task> queued = new HashMap<Integer, Task>();
+	private final List<Task> due = new ArrayList<Task>();
+	private final ExecutorService asyncExecutor = Executors.newSingleThreadExecutor();
+	private long currentTick = 0;
+	private int lastTaskId = 0;
+
+	public HeadlessServer(Logger logger) {
+		this.logger = logger;
+		server = (Server) proxy(Server.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return invokeServer(proxy, method, args);
+			}
+		});
+	}
+
+	public Server getServer() {
+		return server;
+	}
+
+	/**
+	 * @return The listener the plugin registered, or null if it hasn't.
+	 */
+	public Listener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @param name
+	 * @param chunks Keys (SignIndex.chunkKey()) of the chunks to report as
+	 *            loaded when asked for a list. Every chunk counts as loaded
+	 *            when asked about one.
+	 * @return The new world.
+	 */
+	public World addWorld(final String name, Collection<Long> chunks) {
+		World world = (World) proxy(World.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String methodName = method.getName();
+				if (methodName.equals("getName") || methodName.equals("toString")) {
+					return name;
+				} else if (methodName.equals("isChunkLoaded")) {
+					return Boolean.TRUE;
+				} else if (methodName.equals("getLoadedChunks")) {
+					return loadedChunks((World) proxy);
+				} else if (methodName.equals("getMaxHeight")) {
+					return 256;
+				} else if (methodName.equals("getPlayers")) {
+					return players;
+				}
+				return objectMethod(proxy, method, args);
+			}
+		});
+		worlds.put(name, world);
+		worldList.add(world);
+		loadedChunks.put(name, new HashSet<Long>(chunks));
+		return world;
+	}
+
+	/**
+	 * @param name
+	 * @return The world, or null if there's no world by that name.
+	 */
+	public World getWorld(String name) {
+		return worlds.get(name);
+	}
+
+	/**
+	 * Add an online player, with every permission. The plugin isn't told;
+	 * send it a PlayerJoinEvent.
+	 * 
+	 * @param name
+	 * @param world
+	 * @param channels Plugin channels the player's client listens on.
+	 * @return The new player.
+	 */
+	public Player addPlayer(final String name, final World world, final Collection<String> channels) {
+		final Integer entityId = players.size() + 1;
+		final Set<String> listening = Collections.unmodifiableSet(new HashSet<String>(channels));
+		Player player = (Player) proxy(Player.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String methodName = method.getName();
+				if (methodName.equals("getName") || methodName.equals("getDisplayName")
+						|| methodName.equals("toString")) {
+					return name;
+				} else if (methodName.equals("getEntityId")) {
+					return entityId;
+				} else if (methodName.equals("getWorld")) {
+					return world;
+				} else if (methodName.equals("hasPermission") || methodName.equals("isOnline")) {
+					return Boolean.TRUE;
+				} else if (methodName.equals("getListeningPluginChannels")) {
+					return listening;
+				} else if (methodName.equals("sendPluginMessage")) {
+					pluginMessages.incrementAndGet();
+					pluginMessageBytes.addAndGet(((byte[]) args[2]).length);
+					return null;
+				} else if (methodName.equals("sendMessage")) {
+					chatMessages.incrementAndGet();
+					return null;
+				} else if (methodName.equals("hashCode")) {
+					return entityId;
+				} else if (methodName.equals("equals")) {
+					return proxy == args[0];
+				}
+				throw new UnsupportedOperationException(methodName);
+			}
+		});
+		players.add(player);
+		return player;
+	}
+
+	/**
+	 * Run the sync tasks that are due on this tick, on the calling thread,
+	 * and hand the async ones to their thread.
+	 * 
+	 * @return Number of tasks run or handed over.
+	 */
+	public int tick() {
+		synchronized (schedulerLock) {
+			currentTick++;
+			due.clear();
+			while (!tasks.isEmpty() && tasks.peek().nextTick <= currentTick) {
+				Task task = tasks.poll();
+				due.add(task);
+				if (task.period > 0) {
+					task.nextTick = currentTick + task.period;
+					tasks.add(task);
+				} else {
+					queued.remove(task.id);
+				}
+			}
+		}
+
+		// Run them outside the lock, they may schedule more tasks
+		int count = due.size();
+		for (int i = 0; i < count; i++) {
+			Task task = due.get(i);
+			if (task.cancelled) {
+				continue;
+			}
+			if (task.async) {
+				asyncExecutor.execute(task.runnable);
+			} else {
+				task.runnable.run();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Stop the async thread, once the plugin has been disabled. Waits for
+	 * tasks already handed over.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void shutdown() throws InterruptedException {
+		asyncExecutor.shutdown();
+		asyncExecutor.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+	private Chunk[] loadedChunks(final World world) {
+		Set<Long> keys = loadedChunks.get(world.getName());
+		Chunk[] chunks = new Chunk[keys.size()];
+		int i = 0;
+		for (Long key : keys) {
+			final Integer x = SignIndex.chunkX(key);
+			final Integer z = SignIndex.chunkZ(key);
+			chunks[i++] = (Chunk) proxy(Chunk.class, new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					String methodName = method.getName();
+					if (methodName.equals("getX")) {
+						return x;
+					} else if (methodName.equals("getZ")) {
+						return z;
+					} else if (methodName.equals("getWorld")) {
+						return world;
+					} else if (methodName.equals("isLoaded")) {
+						return Boolean.TRUE;
+					}
+					return objectMethod(proxy, method, args);
+				}
+			});
+		}
+		return chunks;
+	}
+
+	private Object invokeServer(Object proxy, Method method, Object[] args) {
+		String methodName = method.getName();
+		if (methodName.equals("getLogger")) {
+			return logger;
+		} else if (methodName.equals("getWorlds")) {
+			return worldList;
+		} else if (methodName.equals("getWorld")) {
+			return args[0] instanceof String ? worlds.get(args[0]) : null;
+		} else if (methodName.equals("getOnlinePlayers")) {
+			return players.toArray(new Player[players.size()]);
+		} else if (methodName.equals("getPlayer") || methodName.equals("getPlayerExact")) {
+			for (Player player : players) {
+				if (player.getName().equalsIgnoreCase((String) args[0])) {
+					return player;
+				}
+			}
+			return null;
+		} else if (methodName.equals("getScheduler")) {
+			return scheduler;
+		} else if (methodName.equals("getPluginManager")) {
+			return pluginManager;
+		} else if (methodName.equals("getMessenger")) {
+			return messenger;
+		} else if (methodName.equals("getServicesManager")) {
+			return servicesManager;
+		} else if (methodName.equals("getName") || methodName.equals("getVersion")
+				|| methodName.equals("getBukkitVersion")) {
+			return "HeadlessServer";
+		}
+		return objectMethod(proxy, method, args);
+	}
+
+	private final BukkitScheduler scheduler = (BukkitScheduler) proxy(BukkitScheduler.class,
+			new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					String methodName = method.getName();
+					if (methodName.equals("scheduleSyncDelayedTask")) {
+						return schedule((Plugin) args[0], (Runnable) args[1], args.length > 2 ? (Long) args[2]
+								: 0, 0, false);
+					} else if (methodName.equals("scheduleSyncRepeatingTask")) {
+						return schedule((Plugin) args[0], (Runnable) args[1], (Long) args[2], (Long) args[3],
+								false);
+					} else if (methodName.equals("scheduleAsyncDelayedTask")) {
+						return schedule((Plugin) args[0], (Runnable) args[1], args.length > 2 ? (Long) args[2]
+								: 0, 0, true);
+					} else if (methodName.equals("scheduleAsyncRepeatingTask")) {
+						return schedule((Plugin) args[0], (Runnable) args[1], (Long) args[2], (Long) args[3],
+								true);
+					} else if (methodName.equals("callSyncMethod")) {
+						@SuppressWarnings("unchecked")
+						Callable<Object> callable = (Callable<Object>) args[1];
+						FutureTask<Object> future = new FutureTask<Object>(callable);
+						schedule((Plugin) args[0], future, 0, 0, false);
+						return future;
+					} else if (methodName.equals("cancelTask")) {
+						cancel((Integer) args[0]);
+						return null;
+					} else if (methodName.equals("cancelTasks") || methodName.equals("cancelAllTasks")) {
+						cancelAll();
+						return null;
+					} else if (methodName.equals("isQueued")) {
+						synchronized (schedulerLock) {
+							return queued.containsKey(args[0]);
+						}
+					} else if (methodName.equals("isCurrentlyRunning")) {
+						return Boolean.FALSE;
+					}
+					return objectMethod(proxy, method, args);
+				}
+			});
+
+	private final PluginManager pluginManager = (PluginManager) proxy(PluginManager.class,
+			new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					String methodName = method.getName();
+					if (methodName.equals("registerEvents")) {
+						listener = (Listener) args[0];
+						return null;
+					} else if (methodName.equals("disablePlugin")) {
+						if (args[0] instanceof LoadTest.HeadlessPlugin) {
+							((LoadTest.HeadlessPlugin) args[0]).setRunning(false);
+						}
+						return null;
+					} else if (methodName.equals("isPluginEnabled")) {
+						return args[0] instanceof Plugin && ((Plugin) args[0]).isEnabled();
+					} else if (methodName.equals("callEvent")) {
+						return null;
+					}
+					return objectMethod(proxy, method, args);
+				}
+			});
+
+	private final Messenger messenger = (Messenger) proxy(Messenger.class, new InvocationHandler() {
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String methodName = method.getName();
+			if (methodName.equals("registerOutgoingPluginChannel")
+					|| methodName.equals("unregisterOutgoingPluginChannel")) {
+				return null;
+			} else if (methodName.equals("isOutgoingChannelRegistered")) {
+				return Boolean.TRUE;
+			}
+			return objectMethod(proxy, method, args);
+		}
+	});
+
+	private final ServicesManager servicesManager = (ServicesManager) proxy(ServicesManager.class,
+			new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					String methodName = method.getName();
+					if (methodName.equals("register") || methodName.equals("unregister")
+							|| methodName.equals("unregisterAll") || methodName.equals("load")) {
+						return null;
+					}
+					return objectMethod(proxy, method, args);
+				}
+			});
+
+	private int schedule(Plugin owner, Runnable runnable, long delay, long period, boolean async) {
+		if (!owner.isEnabled()) {
+			// Like CraftBukkit, so that the load test catches it
+			throw new IllegalPluginAccessException("Plugin attempted to register task while disabled");
+		}
+
+		synchronized (schedulerLock) {
+			Task task = new Task();
+			task.id = ++lastTaskId;
+			task.runnable = runnable;
+			task.nextTick = currentTick + Math.max(delay, 1);
+			task.period = period;
+			task.async = async;
+			tasks.add(task);
+			queued.put(task.id, task);
+			return task.id;
+		}
+	}
+
+	private void cancel(int id) {
+		synchronized (schedulerLock) {
+			Task task = queued.remove(id);
+			if (task != null) {
+				task.cancelled = true;
+				tasks.remove(task);
+			}
+		}
+	}
+
+	private void cancelAll() {
+		synchronized (schedulerLock) {
+			for (Task task : queued.values()) {
+				task.cancelled = true;
+			}
+			queued.clear();
+			tasks.clear();
+		}
+	}
+
+	private static Object proxy(Class<?> type, InvocationHandler handler) {
+		return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+	}
+
+	/**
+	 * Answer the methods every object has, and refuse anything else.
+	 */
+	private static Object objectMethod(Object proxy, Method method, Object[] args) {
+		String methodName = method.getName();
+		if (methodName.equals("hashCode")) {
+			return System.identityHashCode(proxy);
+		} else if (methodName.equals("equals")) {
+			return proxy == args[0];
+		} else if (methodName.equals("toString")) {
+			return proxy.getClass().getInterfaces()[0].getSimpleName() + "@"
+					+ Integer.toHexString(System.identityHashCode(proxy));
+		}
+		throw new UnsupportedOperationException(methodName);
+	}
+
+	private static class Task implements Comparable<Task> {
+		int id;
+		Runnable runnable;
+		long nextTick;
+		long period;
+		boolean async;
+		volatile boolean cancelled;
+
+		public int compareTo(Task other) {
+			if (nextTick != other.nextTick) {
+				return nextTick < other.nextTick ? -1 : 1;
+			}
+			return id < other.id ? -1 : (id == other.id ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,738 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.event.block.Action;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.plugin.PluginDescriptionFile;
+
+/**
+ * Runs the plugin on a HeadlessServer and has its players click and break
+ * blocks at a steady rate, to see how the event handlers and saving hold up
+ * under load without a real server full of players. Events are sent straight
+ * to the plugin's listener on the main thread, which stands in for the server
+ * thread, 20 ticks a second.
+ * 
+ * The signs are written to a temporary data folder first, so loading them is
+ * part of the test. Block events that clear a hyper sign are followed by the
+ * sign being set again on the next tick, the way an admin would, so the
+ * number of signs stays steady and the changes have to be saved.
+ * 
+ * Reports event throughput, the latency of each event handler and of whole
+ * ticks, how much the server thread allocated, and what was written to disk.
+ * Allocations include a little from the stubs (argument arrays for proxy
+ * calls with arguments), so compare runs rather than reading it as exact.
+ * Exits with status 1 if the plugin logged an error or didn't enable, or if
+ * the interact p99 is over --maxP99Micros, so it can be run in CI.
+ * 
+ * Usage: java -cp target/benchmarks.jar uk.co.didz.hypersignsbukkit.LoadTest [--option=value ...]
+ */
+public class LoadTest {
+
+	private static final String[][] OPTIONS = {
+			{ "players", "500", "Online players" },
+			{ "signs", "20000", "Hyper signs, over three worlds" },
+			{ "seconds", "30", "Length of the measured run" },
+			{ "warmup", "5", "Seconds to run before measuring" },
+			{ "interactRate", "5000", "Block clicks per second" },
+			{ "signHitRatio", "0.25", "Fraction of clicks on hyper signs, the rest are half on plain "
+					+ "signs and half on other blocks" },
+			{ "blockRate", "1000", "Block break and place events per second" },
+			{ "blockSignRatio", "0.01", "Fraction of block events on hyper signs, the rest are half in "
+					+ "chunks with signs and half anywhere" },
+			{ "clientRatio", "0.5", "Fraction of players with the HyperSigns client" },
+			{ "urlIdsRatio", "0.5", "Fraction of clients that cache URLs by id" },
+			{ "format", "binary", "dataFormat: json or binary" },
+			{ "saveInterval", "5", "saveInterval in seconds" },
+			{ "clickCooldown", "250", "clickCooldown in milliseconds" },
+			{ "signClickCooldown", "1000", "signClickCooldown in milliseconds" },
+			{ "seed", "1", "Seed for the signs and events" },
+			{ "fullSpeed", "false", "Run ticks back to back instead of 20 a second" },
+			{ "maxP99Micros", "0", "Fail if the interact p99 is over this. 0 to not check" },
+			{ "keep", "false", "Keep the data folder afterwards" } };
+
+	private static final int TICKS_PER_SECOND = 20;
+	private static final long TICK_NANOS = 1000000000L / TICKS_PER_SECOND;
+
+	/**
+	 * Events are made up front and reused, so the harness itself doesn't
+	 * allocate while measuring.
+	 */
+	private static final int EVENT_POOL_SIZE = 8192;
+
+	private final Map<String, String> options;
+	private final Random random;
+	private final Logger logger = Logger.getLogger("HeadlessServer");
+	private final HeadlessServer server = new HeadlessServer(logger);
+	private HeadlessPlugin plugin;
+	private EventListener listener;
+	private File dataFolder;
+	private int errors = 0;
+
+	private List<SignRecord> records;
+	private PlayerInteractEvent[] interacts;
+	private Target[] blockEvents;
+
+	/**
+	 * Hyper signs cleared by block events, to set again on the next tick.
+	 */
+	private final List<Target> cleared = new ArrayList<Target>();
+	private long signsReset = 0;
+
+	private LatencySamples interactLatency;
+	private LatencySamples blockLatency;
+	private LatencySamples tickLatency;
+
+	public LoadTest(Map<String, String> options) {
+		this.options = options;
+		random = new Random(getLong("seed"));
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String[] option : OPTIONS) {
+			options.put(option[0], option[1]);
+		}
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			String name = arg.startsWith("--") ? arg.substring(2, equals > 0 ? equals : arg.length()) : "";
+			if (!options.containsKey(name)) {
+				usage(arg);
+				System.exit(2);
+			}
+			options.put(name, equals > 0 ? arg.substring(equals + 1) : "true");
+		}
+
+		System.exit(new LoadTest(options).run() ? 0 : 1);
+	}
+
+	private static void usage(String badArg) {
+		System.err.println("Unknown option " + badArg + ". Options:");
+		for (String[] option : OPTIONS) {
+			System.err.println(String.format("  --%-18s %s (default %s)", option[0], option[2], option[1]));
+		}
+	}
+
+	/**
+	 * @return Whether the run passed.
+	 * @throws Exception
+	 */
+	public boolean run() throws Exception {
+		logger.addHandler(new Handler() {
+			public void publish(LogRecord record) {
+				if (record.getLevel().intValue() >= Level.SEVERE.intValue()) {
+					errors++;
+				}
+			}
+
+			public void flush() {
+			}
+
+			public void close() {
+			}
+		});
+
+		dataFolder = File.createTempFile("hypersigns-loadtest", "");
+		dataFolder.delete();
+		dataFolder.mkdirs();
+		try {
+			return runInFolder();
+		} finally {
+			if (getBoolean("keep")) {
+				System.out.println("Data folder: " + dataFolder.getPath());
+			} else {
+				delete(dataFolder);
+			}
+		}
+	}
+
+	private boolean runInFolder() throws Exception {
+		SignsFormat format;
+		if (get("format").equalsIgnoreCase("binary")) {
+			format = new BinarySignsFormat();
+		} else if (get("format").equalsIgnoreCase("json")) {
+			format = new JsonSignsFormat(logger);
+		} else {
+			System.err.println("--format must be json or binary.");
+			return false;
+		}
+
+		// Signs on disk, and worlds with their chunks loaded
+		records = BukkitStubs.signs(getInt("signs"), getLong("seed"));
+		ShardedSignStore.writeWorlds(new File(dataFolder, HyperSignsBukkit.WORLDS_FOLDER), format, records);
+		Map<String, Set<Long>> chunks = new HashMap<String, Set<Long>>();
+		for (SignRecord record : records) {
+			Set<Long> worldChunks = chunks.get(record.getWorld());
+			if (worldChunks == null) {
+				worldChunks = new HashSet<Long>();
+				chunks.put(record.getWorld(), worldChunks);
+			}
+			worldChunks.add(SignIndex.chunkKey(record.getX() >> 4, record.getZ() >> 4));
+		}
+		for (Map.Entry<String, Set<Long>> entry : chunks.entrySet()) {
+			server.addWorld(entry.getKey(), entry.getValue());
+		}
+
+		List<Player> players = addPlayers();
+
+		// Enable the plugin
+		plugin = new HeadlessPlugin();
+		ClassLoader classLoader = LoadTest.class.getClassLoader();
+		InputStream pluginYml = classLoader.getResourceAsStream("plugin.yml");
+		try {
+			plugin.initialize(null, server.getServer(), new PluginDescriptionFile(pluginYml), dataFolder,
+					null, classLoader);
+		} finally {
+			pluginYml.close();
+		}
+		FileConfiguration config = plugin.getConfig();
+		config.set("dataFormat", get("format").toLowerCase());
+		config.set("saveInterval", getInt("saveInterval"));
+		config.set("clickCooldown", getInt("clickCooldown"));
+		config.set("signClickCooldown", getInt("signClickCooldown"));
+		config.set("metricsCsvInterval", 0);
+
+		long enableStart = System.nanoTime();
+		plugin.setRunning(true);
+		long enableNanos = System.nanoTime() - enableStart;
+		listener = (EventListener) server.getListener();
+		if (!plugin.isEnabled() || listener == null) {
+			System.err.println("The plugin didn't enable.");
+			return false;
+		}
+		for (Player player : players) {
+			listener.onPlayerJoin(new PlayerJoinEvent(player, null));
+		}
+
+		makeEvents(players);
+
+		System.out.println(records.size() + " signs, " + players.size() + " players, "
+				+ get("interactRate") + " clicks/s (" + get("signHitRatio") + " on hyper signs), "
+				+ get("blockRate") + " block events/s (" + get("blockSignRatio") + " on hyper signs), "
+				+ get("format") + " data");
+		System.out.println("Enabled in " + LatencyHistogram.formatNanos(enableNanos) + ", "
+				+ plugin.loadedSigns.size() + " signs loaded");
+
+		// Warm up, then measure
+		int interactsPerSecond = getInt("interactRate");
+		int blockEventsPerSecond = getInt("blockRate");
+		runTicks(getInt("warmup") * TICKS_PER_SECOND, interactsPerSecond, blockEventsPerSecond, null);
+
+		long seconds = getInt("seconds");
+		interactLatency = new LatencySamples(interactsPerSecond * seconds + TICKS_PER_SECOND);
+		blockLatency = new LatencySamples(blockEventsPerSecond * seconds + TICKS_PER_SECOND);
+		tickLatency = new LatencySamples(seconds * TICKS_PER_SECOND);
+		Snapshot before = new Snapshot();
+		long start = System.nanoTime();
+		int ticks = (int) seconds * TICKS_PER_SECOND;
+		int overBudget = runTicks(ticks, interactsPerSecond, blockEventsPerSecond, tickLatency);
+		long elapsed = System.nanoTime() - start;
+		Snapshot after = new Snapshot();
+
+		// Save everything and shut down
+		long disableStart = System.nanoTime();
+		plugin.setRunning(false);
+		server.shutdown();
+		long disableNanos = System.nanoTime() - disableStart;
+
+		report(before, after, elapsed, ticks, overBudget);
+		System.out.println("Disabled in " + LatencyHistogram.formatNanos(disableNanos) + ", data folder "
+				+ (folderSize(dataFolder) / 1024) + " KB");
+
+		boolean passed = errors == 0;
+		if (errors > 0) {
+			System.out.println("FAILED: " + errors + " errors logged.");
+		}
+		long maxP99 = getLong("maxP99Micros") * 1000;
+		if (maxP99 > 0 && interactLatency.percentile(0.99) > maxP99) {
+			System.out.println("FAILED: interact p99 is over " + get("maxP99Micros") + "us.");
+			passed = false;
+		}
+		return passed;
+	}
+
+	/**
+	 * Players spread over the worlds, with and without the client.
+	 */
+	private List<Player> addPlayers() {
+		List<World> worlds = server.getServer().getWorlds();
+		double clientRatio = getDouble("clientRatio");
+		double urlIdsRatio = getDouble("urlIdsRatio");
+
+		List<Player> players = new ArrayList<Player>();
+		for (int i = 0; i < getInt("players"); i++) {
+			Collection<String> channels = new ArrayList<String>();
+			if (random.nextDouble() < clientRatio) {
+				channels.add(HyperSignsBukkit.CHANNEL_NAME);
+				if (random.nextDouble() < urlIdsRatio) {
+					channels.add(HyperSignsBukkit.URL_IDS_CHANNEL_NAME);
+				}
+			}
+			players.add(server.addPlayer("Player" + i, worlds.get(i % worlds.size()), channels));
+		}
+		return players;
+	}
+
+	/**
+	 * Fill the pools of events. Clicks that miss are aimed at plain signs and
+	 * other blocks in the same chunks as hyper signs, other block events
+	 * anywhere.
+	 */
+	private void makeEvents(List<Player> players) throws IOException {
+		double signHitRatio = getDouble("signHitRatio");
+		double blockSignRatio = getDouble("blockSignRatio");
+
+		interacts = new PlayerInteractEvent[EVENT_POOL_SIZE];
+		for (int i = 0; i < EVENT_POOL_SIZE; i++) {
+			Player player = players.get(random.nextInt(players.size()));
+			Action action = random.nextBoolean() ? Action.RIGHT_CLICK_BLOCK : Action.LEFT_CLICK_BLOCK;
+			Block block = target(random.nextDouble() < signHitRatio, true).block;
+			interacts[i] = new PlayerInteractEvent(player, action, null, block, BlockFace.NORTH);
+		}
+
+		blockEvents = new Target[EVENT_POOL_SIZE];
+		for (int i = 0; i < EVENT_POOL_SIZE; i++) {
+			Player player = players.get(random.nextInt(players.size()));
+			Target event = target(random.nextDouble() < blockSignRatio, random.nextBoolean());
+			if (random.nextBoolean()) {
+				event.breakEvent = new BlockBreakEvent(event.block, player);
+			} else {
+				event.placeEvent = new BlockPlaceEvent(event.block, null, null, null, player, true);
+			}
+			blockEvents[i] = event;
+		}
+	}
+
+	/**
+	 * @param hyperSign Whether to pick a hyper sign.
+	 * @param nearSigns Whether to pick a block in a chunk with hyper signs,
+	 *            if not picking a hyper sign.
+	 * @return A block to aim an event at.
+	 */
+	private Target target(boolean hyperSign, boolean nearSigns) throws IOException {
+		SignRecord record = records.get(random.nextInt(records.size()));
+		World world = server.getWorld(record.getWorld());
+		Target target = new Target();
+		if (hyperSign) {
+			target.block = BukkitStubs.block(world, record.getX(), record.getY(), record.getZ(),
+					Material.SIGN_POST);
+			target.url = new URL(record.getUrl());
+		} else if (!nearSigns) {
+			target.block = BukkitStubs.block(world, random.nextInt(60000) - 30000, random.nextInt(128),
+					random.nextInt(60000) - 30000, Material.STONE);
+		} else {
+			// Generated signs only use y 1 to 64, so these are never hyper
+			// signs, but they're in the same chunks
+			Material type = random.nextBoolean() ? Material.WALL_SIGN : Material.STONE;
+			target.block = BukkitStubs.block(world, record.getX(), record.getY() + 64, record.getZ(), type);
+		}
+		return target;
+	}
+
+	/**
+	 * Run a number of ticks, each sending its share of the events then
+	 * running the scheduler.
+	 * 
+	 * @param ticks
+	 * @param interactsPerSecond
+	 * @param blockEventsPerSecond
+	 * @param tickTimes Where to record how long each tick took, or null.
+	 * @return Number of ticks that took longer than a tick.
+	 */
+	private int runTicks(int ticks, int interactsPerSecond, int blockEventsPerSecond,
+			LatencySamples tickTimes) throws InterruptedException {
+		boolean fullSpeed = getBoolean("fullSpeed");
+		int overBudget = 0;
+		int nextInteract = 0;
+		int nextBlockEvent = 0;
+		long deadline = System.nanoTime();
+
+		for (int tick = 0; tick < ticks; tick++) {
+			long tickStart = System.nanoTime();
+
+			// Spread the events evenly over the ticks
+			int interactsDue = (int) ((long) interactsPerSecond * (tick + 1) / TICKS_PER_SECOND
+					- (long) interactsPerSecond * tick / TICKS_PER_SECOND);
+			for (int i = 0; i < interactsDue; i++) {
+				interact(nextInteract);
+				nextInteract = (nextInteract + 1) % EVENT_POOL_SIZE;
+			}
+
+			int blockEventsDue = (int) ((long) blockEventsPerSecond * (tick + 1) / TICKS_PER_SECOND
+					- (long) blockEventsPerSecond * tick / TICKS_PER_SECOND);
+			for (int i = 0; i < blockEventsDue; i++) {
+				blockEvent(blockEvents[nextBlockEvent]);
+				nextBlockEvent = (nextBlockEvent + 1) % EVENT_POOL_SIZE;
+			}
+
+			// Set cleared signs again, as of the previous tick
+			for (int i = 0; i < cleared.size(); i++) {
+				Target event = cleared.get(i);
+				plugin.setHyperSign(event.block, event.url);
+				signsReset++;
+			}
+			cleared.clear();
+
+			server.tick();
+
+			long tickNanos = System.nanoTime() - tickStart;
+			if (tickTimes != null) {
+				tickTimes.record(tickNanos);
+			}
+			if (tickNanos > TICK_NANOS) {
+				overBudget++;
+			}
+
+			deadline += TICK_NANOS;
+			long sleep = deadline - System.nanoTime();
+			if (!fullSpeed && sleep > 0) {
+				Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+			} else if (sleep < 0) {
+				// Behind, like a lagging server. Don't try to catch up.
+				deadline = System.nanoTime();
+			}
+		}
+		return overBudget;
+	}
+
+	private void interact(int index) {
+		PlayerInteractEvent event = interacts[index];
+		event.setCancelled(false);
+
+		long start = System.nanoTime();
+		listener.onPlayerInteract(event);
+		long nanos = System.nanoTime() - start;
+
+		if (interactLatency != null) {
+			interactLatency.record(nanos);
+		}
+	}
+
+	private void blockEvent(Target event) {
+		boolean wasHyperSign = event.url != null && plugin.loadedSigns.get(event.block) != null;
+
+		long start = System.nanoTime();
+		if (event.breakEvent != null) {
+			listener.onBlockBreak(event.breakEvent);
+		} else {
+			listener.onBlockPlace(event.placeEvent);
+		}
+		long nanos = System.nanoTime() - start;
+
+		if (blockLatency != null) {
+			blockLatency.record(nanos);
+		}
+		if (wasHyperSign && plugin.loadedSigns.get(event.block) == null) {
+			cleared.add(event);
+		}
+	}
+
+	private void report(Snapshot before, Snapshot after, long elapsed, int ticks, int overBudget) {
+		double seconds = elapsed / 1000000000.0;
+		long events = interactLatency.getCount() + blockLatency.getCount();
+		long handlerNanos = interactLatency.getTotal() + blockLatency.getTotal();
+
+		System.out.println(String.format("Measured %.1fs: %d events, %.0f events/s, handler capacity %.0f "
+				+ "events/s of server thread time", seconds, events, events / seconds,
+				handlerNanos > 0 ? events * 1000000000.0 / handlerNanos : 0));
+		System.out.println("Interact latency:    " + interactLatency.summary());
+		System.out.println("Block event latency: " + blockLatency.summary());
+		System.out.println("Tick time:           " + tickLatency.summary() + ", " + overBudget + " of "
+				+ ticks + " ticks over 50ms");
+
+		System.out.println("Sign hits: " + (after.signHits - before.signHits) + ", URL triggers: "
+				+ (after.triggersClient - before.triggersClient) + " to the client ("
+				+ (after.triggersById - before.triggersById) + " by id), "
+				+ (after.triggersFallback - before.triggersFallback) + " in chat, "
+				+ (after.triggersSuppressed - before.triggersSuppressed) + " suppressed");
+		System.out.println("Plugin messages: " + (after.pluginMessages - before.pluginMessages) + ", "
+				+ ((after.pluginMessageBytes - before.pluginMessageBytes) / 1024) + " KB. Chat lines: "
+				+ (after.chatMessages - before.chatMessages));
+		System.out.println("Block events checked: " + (after.blockEventsChecked - before.blockEventsChecked)
+				+ ", outside sign chunks: " + (after.blockEventsFiltered - before.blockEventsFiltered)
+				+ ", signs cleared: " + (after.blockEventClears - before.blockEventClears) + ", set again: "
+				+ (after.signsReset - before.signsReset));
+
+		if (after.allocatedBytes >= 0) {
+			long allocated = after.allocatedBytes - before.allocatedBytes;
+			System.out.println(String.format("Server thread allocated %.1f MB/s, %d bytes per event",
+					allocated / seconds / (1024 * 1024), events > 0 ? allocated / events : 0));
+		}
+		System.out.println("GC: " + (after.gcCount - before.gcCount) + " collections, "
+				+ (after.gcMillis - before.gcMillis) + "ms");
+
+		long saves = after.saves - before.saves;
+		long saveMean = saves > 0 ? (after.saveNanos - before.saveNanos) / saves : 0;
+		long appends = after.journalAppends - before.journalAppends;
+		long appendMean = appends > 0 ? (after.appendNanos - before.appendNanos) / appends : 0;
+		System.out.println("Persistence: " + ((after.bytesWritten - before.bytesWritten) / 1024)
+				+ " KB written, " + saves + " data file saves (mean " + LatencyHistogram.formatNanos(saveMean)
+				+ "), " + appends + " journal appends (mean " + LatencyHistogram.formatNanos(appendMean) + ")"
+				+ (after.processWriteBytes >= 0 ? ", process wrote "
+						+ ((after.processWriteBytes - before.processWriteBytes) / 1024) + " KB" : ""));
+	}
+
+	private String get(String name) {
+		return options.get(name);
+	}
+
+	private int getInt(String name) {
+		return Integer.parseInt(get(name));
+	}
+
+	private long getLong(String name) {
+		return Long.parseLong(get(name));
+	}
+
+	private double getDouble(String name) {
+		return Double.parseDouble(get(name));
+	}
+
+	private boolean getBoolean(String name) {
+		return Boolean.parseBoolean(get(name));
+	}
+
+	private static long folderSize(File folder) {
+		long size = 0;
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				size += file.isDirectory() ? folderSize(file) : file.length();
+			}
+		}
+		return size;
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Lets the load test enable and disable the plugin the way the plugin
+	 * manager does.
+	 */
+	public static class HeadlessPlugin extends HyperSignsBukkit {
+
+		public void setRunning(boolean running) {
+			setEnabled(running);
+		}
+	}
+
+	/**
+	 * A block event, or just the block to aim an interact at.
+	 */
+	private static class Target {
+		Block block;
+
+		/**
+		 * The hyper sign's URL, or null if it's not a hyper sign.
+		 */
+		URL url;
+
+		BlockBreakEvent breakEvent;
+		BlockPlaceEvent placeEvent;
+	}
+
+	/**
+	 * Every duration recorded, for exact percentiles. Recording doesn't
+	 * allocate; samples past the capacity are only counted.
+	 */
+	private static class LatencySamples {
+		private final long[] samples;
+		private long count = 0;
+		private long total = 0;
+		private long max = 0;
+
+		LatencySamples(long capacity) {
+			samples = new long[(int) Math.min(capacity, Integer.MAX_VALUE - 8)];
+		}
+
+		void record(long nanos) {
+			if (count < samples.length) {
+				samples[(int) count] = nanos;
+			}
+			count++;
+			total += nanos;
+			max = Math.max(max, nanos);
+		}
+
+		long getCount() {
+			return count;
+		}
+
+		long getTotal() {
+			return total;
+		}
+
+		long percentile(double fraction) {
+			int n = (int) Math.min(count, samples.length);
+			if (n == 0) {
+				return 0;
+			}
+			long[] sorted = Arrays.copyOf(samples, n);
+			Arrays.sort(sorted);
+			return sorted[(int) Math.min(n - 1, Math.ceil(n * fraction) - 1)];
+		}
+
+		/**
+		 * @return e.g. "1200 (mean 1.2us, p50 0.9us, p99 4.1us, p99.9 12.0us,
+		 *         max 90.0us)"
+		 */
+		String summary() {
+			return count + " (mean " + LatencyHistogram.formatNanos(count > 0 ? total / count : 0) + ", p50 "
+					+ LatencyHistogram.formatNanos(percentile(0.5)) + ", p99 "
+					+ LatencyHistogram.formatNanos(percentile(0.99)) + ", p99.9 "
+					+ LatencyHistogram.formatNanos(percentile(0.999)) + ", max "
+					+ LatencyHistogram.formatNanos(max) + ")";
+		}
+	}
+
+	/**
+	 * Counters at one point in time, to report the difference over the
+	 * measured run.
+	 */
+	private class Snapshot {
+		final long signHits;
+		final long triggersClient;
+		final long triggersById;
+		final long triggersFallback;
+		final long triggersSuppressed;
+		final long blockEventsChecked;
+		final long blockEventsFiltered;
+		final long blockEventClears;
+		final long pluginMessages;
+		final long pluginMessageBytes;
+		final long chatMessages;
+		final long signsReset;
+		final long bytesWritten;
+		final long saves;
+		final long saveNanos;
+		final long journalAppends;
+		final long appendNanos;
+		final long allocatedBytes;
+		final long processWriteBytes;
+		long gcCount = 0;
+		long gcMillis = 0;
+
+		Snapshot() {
+			Metrics metrics = plugin.metrics;
+			signHits = metrics.signHits.get();
+			triggersClient = metrics.triggersClient.get();
+			triggersById = metrics.triggersById.get();
+			triggersFallback = metrics.triggersFallback.get();
+			triggersSuppressed = metrics.triggersSuppressed.get();
+			blockEventsChecked = metrics.blockEventsChecked.get();
+			blockEventsFiltered = metrics.blockEventsFiltered.get();
+			blockEventClears = metrics.blockEventClears.get();
+			pluginMessages = server.pluginMessages.get();
+			pluginMessageBytes = server.pluginMessageBytes.get();
+			chatMessages = server.chatMessages.get();
+			signsReset = LoadTest.this.signsReset;
+			bytesWritten = metrics.bytesWritten.get();
+			saves = metrics.saveTime.getCount();
+			saveNanos = metrics.saveTime.getTotalNanos();
+			journalAppends = metrics.journalAppendTime.getCount();
+			appendNanos = metrics.journalAppendTime.getTotalNanos();
+			allocatedBytes = allocatedBytes();
+			processWriteBytes = processWriteBytes();
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				gcCount += Math.max(gc.getCollectionCount(), 0);
+				gcMillis += Math.max(gc.getCollectionTime(), 0);
+			}
+		}
+	}
+
+	/**
+	 * @return Bytes allocated by this thread so far, or -1 if the JVM can't
+	 *         tell.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread()
+					.getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Bytes this process has written to storage so far, or -1 if not
+	 *         on Linux.
+	 */
+	private static long processWriteBytes() {
+		File io = new File("/proc/self/io");
+		if (!io.canRead()) {
+			return -1;
+		}
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(io));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith("write_bytes:")) {
+						return Long.parseLong(line.substring("write_bytes:".length()).trim());
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Not worth failing the run over
+		}
+		return -1;
+	}
+}
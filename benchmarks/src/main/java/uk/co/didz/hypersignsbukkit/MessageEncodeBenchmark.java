@@ -0,0 +1,94 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding URL trigger messages. The stream version is how messages used to
+ * be built, kept as a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageEncodeBenchmark {
+
+	@Param({ "http://didz.co.uk/",
+			"http://example.com/a/much/longer/path/to/a/page?with=query&and=more#fragment",
+			"http://example.com/%C3%A9v%C3%A9nements/caf\u00e9" })
+	public String url;
+
+	private URL parsedUrl;
+	private byte[] array;
+	private ByteBuffer directBuffer;
+
+	@Setup
+	public void setUp() throws IOException {
+		parsedUrl = new URL(url);
+		array = new byte[ServerMessageComposer.messageLength(url)];
+		directBuffer = ByteBuffer.allocateDirect(array.length);
+	}
+
+	@Benchmark
+	public byte[] writeClientUrlTrigger() throws IOException {
+		return ServerMessageComposer.writeClientUrlTrigger(parsedUrl);
+	}
+
+	@Benchmark
+	public byte[] writeMessageReusedArray() throws IOException {
+		ServerMessageComposer.writeMessage(ServerMessageComposer.MessageType.URL_TRIGGER, url, array, 0);
+		return array;
+	}
+
+	@Benchmark
+	public ByteBuffer writeMessageDirectBuffer() throws IOException {
+		directBuffer.clear();
+		ServerMessageComposer.writeMessage(ServerMessageComposer.MessageType.URL_TRIGGER, url, directBuffer);
+		return directBuffer;
+	}
+
+	@Benchmark
+	public byte[] dataOutputStreamBaseline() throws IOException {
+		ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(byteArray);
+		data.writeByte(ServerMessageComposer.MessageType.URL_TRIGGER.getValue());
+		data.writeUTF(parsedUrl.toString());
+		return byteArray.toByteArray();
+	}
+}
@@ -0,0 +1,432 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.plugin.PluginDescriptionFile;
+
+/**
+ * Runs several copies of the plugin, each on its own HeadlessServer, sharing
+ * one signs.db through sharedDatabase, and has each of them change the same
+ * few signs at once. Checks that every change saved by one server shows up
+ * on the others, and that none of them is lost.
+ *
+ * Each server sets signs to URLs of its own and removes some, picking from a
+ * small set of signs so the servers keep changing the same ones. Once the
+ * changes stop, the servers run until they've saved and read everything,
+ * then the database is read and compared with:
+ * <ul>
+ * <li>the signs each server has in memory, which must all match it.</li>
+ * <li>the last change each server made to each sign. A sign only one server
+ * changed must have that change, a sign several servers changed must have
+ * one of their last changes.</li>
+ * </ul>
+ * Exits with status 1 if either check fails, or if any server logged a
+ * warning, e.g. a save that failed because the database was busy or changes
+ * that were forgotten before a server read them.
+ *
+ * Needs the SQLite driver, which the real server bundles, on the class path.
+ *
+ * Usage: java -cp target/benchmarks.jar uk.co.didz.hypersignsbukkit.SharedDatabaseTest [--option=value ...]
+ */
+public class SharedDatabaseTest {
+
+	private static final String[][] OPTIONS = {
+			{ "servers", "2", "Servers sharing the database" },
+			{ "signs", "2000", "Hyper signs in the database to start with" },
+			{ "hotSigns", "200", "Signs the servers change, the first ones of the signs" },
+			{ "seconds", "20", "How long the servers change signs for" },
+			{ "changeRate", "200", "Sign changes per second on each server" },
+			{ "removeRatio", "0.2", "Fraction of changes that remove the sign" },
+			{ "saveInterval", "1", "saveInterval in seconds" },
+			{ "pollInterval", "1", "sharedPollInterval in seconds" },
+			{ "settleSeconds", "30", "Most seconds to wait for the servers to agree afterwards" },
+			{ "seed", "1", "Seed for the signs and changes" },
+			{ "keep", "false", "Keep the data folders afterwards" } };
+
+	private static final int TICKS_PER_SECOND = 20;
+	private static final long TICK_NANOS = 1000000000L / TICKS_PER_SECOND;
+
+	private final Map<String, String> options;
+	private final Random random;
+	private File folder;
+	private File databaseFile;
+	private int warnings = 0;
+
+	private final List<HeadlessServer> servers = new ArrayList<HeadlessServer>();
+	private final List<LoadTest.HeadlessPlugin> plugins = new ArrayList<LoadTest.HeadlessPlugin>();
+
+	/**
+	 * The last URL each server gave each sign it changed, "" for removed.
+	 */
+	private final List<Map<String, String>> lastChanges = new ArrayList<Map<String, String>>();
+
+	public SharedDatabaseTest(Map<String, String> options) {
+		this.options = options;
+		random = new Random(getLong("seed"));
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String[] option : OPTIONS) {
+			options.put(option[0], option[1]);
+		}
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			String name = arg.startsWith("--") ? arg.substring(2, equals > 0 ? equals : arg.length()) : "";
+			if (!options.containsKey(name)) {
+				System.err.println("Unknown option " + arg + ". Options:");
+				for (String[] option : OPTIONS) {
+					System.err.println(String.format("  --%-18s %s (default %s)", option[0], option[2],
+							option[1]));
+				}
+				System.exit(2);
+			}
+			options.put(name, equals > 0 ? arg.substring(equals + 1) : "true");
+		}
+
+		System.exit(new SharedDatabaseTest(options).run() ? 0 : 1);
+	}
+
+	/**
+	 * @return Whether the run passed.
+	 * @throws Exception
+	 */
+	public boolean run() throws Exception {
+		folder = File.createTempFile("hypersigns-shared", "");
+		folder.delete();
+		folder.mkdirs();
+		try {
+			return runInFolder();
+		} finally {
+			for (LoadTest.HeadlessPlugin plugin : plugins) {
+				if (plugin.isEnabled()) {
+					plugin.setRunning(false);
+				}
+			}
+			for (HeadlessServer server : servers) {
+				server.shutdown();
+			}
+
+			if (getBoolean("keep")) {
+				System.out.println("Data folder: " + folder.getPath());
+			} else {
+				delete(folder);
+			}
+		}
+	}
+
+	private boolean runInFolder() throws Exception {
+		List<SignRecord> records = BukkitStubs.signs(getInt("signs"), getLong("seed"));
+		databaseFile = new File(folder, SqlSignStore.FILE_NAME);
+		SqlSignStore.writeAll(databaseFile, records);
+
+		Map<String, Set<Long>> chunks = new HashMap<String, Set<Long>>();
+		for (SignRecord record : records) {
+			Set<Long> worldChunks = chunks.get(record.getWorld());
+			if (worldChunks == null) {
+				worldChunks = new HashSet<Long>();
+				chunks.put(record.getWorld(), worldChunks);
+			}
+			worldChunks.add(SignIndex.chunkKey(record.getX() >> 4, record.getZ() >> 4));
+		}
+
+		for (int i = 0; i < getInt("servers"); i++) {
+			if (!startServer(i, chunks)) {
+				System.err.println("Server " + i + " didn't enable.");
+				return false;
+			}
+			lastChanges.add(new HashMap<String, String>());
+		}
+
+		System.out.println(servers.size() + " servers sharing " + records.size() + " signs, each making "
+				+ get("changeRate") + " changes/s to the first " + get("hotSigns"));
+
+		// Change the same signs on every server
+		List<SignRecord> hotSigns = records.subList(0, Math.min(getInt("hotSigns"), records.size()));
+		double removeRatio = getDouble("removeRatio");
+		int changeRate = getInt("changeRate");
+		int ticks = getInt("seconds") * TICKS_PER_SECOND;
+		long deadline = System.nanoTime();
+		int changes = 0;
+		for (int tick = 0; tick < ticks; tick++) {
+			int due = (int) ((long) changeRate * (tick + 1) / TICKS_PER_SECOND - (long) changeRate * tick
+					/ TICKS_PER_SECOND);
+			for (int s = 0; s < servers.size(); s++) {
+				for (int i = 0; i < due; i++) {
+					SignRecord record = hotSigns.get(random.nextInt(hotSigns.size()));
+					String url = random.nextDouble() < removeRatio ? "" : "http://example.com/server" + s
+							+ "/" + changes;
+					change(s, record, url);
+					changes++;
+				}
+			}
+			deadline = tickAll(deadline);
+		}
+
+		// Let every server save its changes and read everyone else's
+		int settleTicks = getInt("settleSeconds") * TICKS_PER_SECOND;
+		int quietTicks = (getInt("saveInterval") + getInt("pollInterval") + 1) * TICKS_PER_SECOND * 2;
+		Map<String, String> stored;
+		List<String> mismatches;
+		int settled = 0;
+		do {
+			for (int i = 0; i < quietTicks; i++) {
+				deadline = tickAll(deadline);
+			}
+			settled += quietTicks;
+			stored = readDatabase();
+			mismatches = compareServers(stored);
+		} while (!mismatches.isEmpty() && settled < settleTicks);
+
+		boolean passed = true;
+		System.out.println(changes + " changes made, " + stored.size() + " signs in "
+				+ databaseFile.getName());
+		if (!mismatches.isEmpty()) {
+			System.out.println("FAILED: " + mismatches.size() + " signs differ between a server and "
+					+ databaseFile.getName() + ", e.g. "
+					+ mismatches.subList(0, Math.min(5, mismatches.size())));
+			passed = false;
+		}
+
+		List<String> lost = findLostChanges(stored);
+		if (!lost.isEmpty()) {
+			System.out.println("FAILED: " + lost.size() + " signs lost their last change, e.g. "
+					+ lost.subList(0, Math.min(5, lost.size())));
+			passed = false;
+		}
+
+		if (warnings > 0) {
+			System.out.println("FAILED: " + warnings + " warnings logged.");
+			passed = false;
+		}
+		if (passed) {
+			System.out.println("Every server agrees with " + databaseFile.getName() + ".");
+		}
+		return passed;
+	}
+
+	/**
+	 * Enable a copy of the plugin on a server of its own, with every chunk
+	 * that has signs loaded.
+	 *
+	 * @return Whether it enabled.
+	 */
+	private boolean startServer(int index, Map<String, Set<Long>> chunks) throws IOException {
+		final Logger logger = Logger.getLogger("HeadlessServer" + index);
+		logger.addHandler(new Handler() {
+			public void publish(LogRecord record) {
+				if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+					synchronized (SharedDatabaseTest.this) {
+						warnings++;
+					}
+				}
+			}
+
+			public void flush() {
+			}
+
+			public void close() {
+			}
+		});
+
+		HeadlessServer server = new HeadlessServer(logger);
+		for (Map.Entry<String, Set<Long>> entry : chunks.entrySet()) {
+			server.addWorld(entry.getKey(), entry.getValue());
+		}
+		servers.add(server);
+
+		File dataFolder = new File(folder, "server" + index);
+		dataFolder.mkdirs();
+		LoadTest.HeadlessPlugin plugin = new LoadTest.HeadlessPlugin();
+		ClassLoader classLoader = SharedDatabaseTest.class.getClassLoader();
+		InputStream pluginYml = classLoader.getResourceAsStream("plugin.yml");
+		try {
+			plugin.initialize(null, server.getServer(), new PluginDescriptionFile(pluginYml), dataFolder,
+					null, classLoader);
+		} finally {
+			pluginYml.close();
+		}
+		plugins.add(plugin);
+
+		FileConfiguration config = plugin.getConfig();
+		config.set("sharedDatabase", databaseFile.getAbsolutePath());
+		config.set("saveInterval", getInt("saveInterval"));
+		config.set("sharedPollInterval", getInt("pollInterval"));
+		config.set("metricsCsvInterval", 0);
+		plugin.setRunning(true);
+		return plugin.isEnabled() && server.getListener() != null;
+	}
+
+	/**
+	 * Set or remove a sign on one server, the way a command would.
+	 *
+	 * @param url The new URL, or "" to remove the sign.
+	 */
+	private void change(int serverIndex, SignRecord record, String url) throws IOException {
+		LoadTest.HeadlessPlugin plugin = plugins.get(serverIndex);
+		World world = servers.get(serverIndex).getWorld(record.getWorld());
+		Block block = BukkitStubs.block(world, record.getX(), record.getY(), record.getZ(),
+				Material.SIGN_POST);
+		if (url.isEmpty()) {
+			plugin.removeHyperSign(block);
+		} else {
+			plugin.setHyperSign(block, new URL(url));
+		}
+		lastChanges.get(serverIndex).put(key(record), url);
+	}
+
+	/**
+	 * Run a tick on every server, then wait for the next one.
+	 *
+	 * @return The deadline of the next tick.
+	 */
+	private long tickAll(long deadline) throws InterruptedException {
+		for (HeadlessServer server : servers) {
+			server.tick();
+		}
+
+		deadline += TICK_NANOS;
+		long sleep = deadline - System.nanoTime();
+		if (sleep > 0) {
+			Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+			return deadline;
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * @return URL of each sign in the database, by key().
+	 */
+	private Map<String, String> readDatabase() throws IOException {
+		final Map<String, String> stored = new HashMap<String, String>();
+		SqlSignStore.readAll(databaseFile, new SignsFormat.Handler() {
+			public void handle(SignRecord record) {
+				stored.put(key(record), record.getUrl());
+			}
+		});
+		return stored;
+	}
+
+	/**
+	 * @return The signs some server has in memory differently from the
+	 *         database, out of the ones that were changed.
+	 */
+	private List<String> compareServers(Map<String, String> stored) {
+		Set<String> changed = new HashSet<String>();
+		for (Map<String, String> serverChanges : lastChanges) {
+			changed.addAll(serverChanges.keySet());
+		}
+
+		List<String> mismatches = new ArrayList<String>();
+		for (String key : changed) {
+			String[] parts = key.split(",");
+			String storedUrl = stored.containsKey(key) ? stored.get(key) : "";
+			for (int s = 0; s < plugins.size(); s++) {
+				SignLink link = plugins.get(s).loadedSigns.get(parts[0], Integer.parseInt(parts[1]),
+						Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+				String url = link != null ? link.getUrlString() : "";
+				if (!url.equals(storedUrl)) {
+					mismatches.add("server" + s + " " + key + " has '" + url + "', not '" + storedUrl + "'");
+				}
+			}
+		}
+		return mismatches;
+	}
+
+	/**
+	 * @return The signs whose URL in the database isn't the last change any
+	 *         server made to them.
+	 */
+	private List<String> findLostChanges(Map<String, String> stored) {
+		Map<String, Set<String>> lastUrls = new HashMap<String, Set<String>>();
+		for (Map<String, String> serverChanges : lastChanges) {
+			for (Map.Entry<String, String> entry : serverChanges.entrySet()) {
+				Set<String> urls = lastUrls.get(entry.getKey());
+				if (urls == null) {
+					urls = new HashSet<String>();
+					lastUrls.put(entry.getKey(), urls);
+				}
+				urls.add(entry.getValue());
+			}
+		}
+
+		List<String> lost = new ArrayList<String>();
+		for (Map.Entry<String, Set<String>> entry : lastUrls.entrySet()) {
+			String storedUrl = stored.containsKey(entry.getKey()) ? stored.get(entry.getKey()) : "";
+			if (!entry.getValue().contains(storedUrl)) {
+				lost.add(entry.getKey() + " has '" + storedUrl + "', not one of " + entry.getValue());
+			}
+		}
+		return lost;
+	}
+
+	private static String key(SignRecord record) {
+		return record.getWorld() + "," + record.getX() + "," + record.getY() + "," + record.getZ();
+	}
+
+	private String get(String name) {
+		return options.get(name);
+	}
+
+	private int getInt(String name) {
+		return Integer.parseInt(get(name));
+	}
+
+	private long getLong(String name) {
+		return Long.parseLong(get(name));
+	}
+
+	private double getDouble(String name) {
+		return Double.parseDouble(get(name));
+	}
+
+	private boolean getBoolean(String name) {
+		return Boolean.parseBoolean(get(name));
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
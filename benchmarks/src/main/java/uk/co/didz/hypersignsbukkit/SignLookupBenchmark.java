@@ -0,0 +1,137 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looking up the sign for a clicked or broken block, for signs that exist and
+ * blocks that aren't signs. The Location keyed HashMap is how signs used to be
+ * stored, kept as a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignLookupBenchmark {
+
+	private static final int BLOCKS = 1024;
+
+	@Param({ "1000", "100000" })
+	public int signs;
+
+	private SignIndex index;
+	private HashMap<Location, URL> locationMap;
+	private Block[] hits;
+	private Block[] misses;
+	private int next = 0;
+
+	@Setup
+	public void setUp() throws Exception {
+		SignLinks links = new SignLinks(Logger.getLogger("HyperSigns"), "", "");
+		HashMap<String, World> worlds = new HashMap<String, World>();
+
+		List<SignRecord> records = BukkitStubs.signs(signs, 1);
+		index = new SignIndex(false);
+		locationMap = new HashMap<Location, URL>();
+		for (SignRecord record : records) {
+			World world = worlds.get(record.getWorld());
+			if (world == null) {
+				world = BukkitStubs.world(record.getWorld());
+				worlds.put(record.getWorld(), world);
+			}
+
+			URL url = new URL(record.getUrl());
+			index.put(record.getWorld(), record.getX(), record.getY(), record.getZ(), links.get(url));
+			locationMap.put(new Location(world, record.getX(), record.getY(), record.getZ()), url);
+		}
+
+		Random random = new Random(2);
+		hits = new Block[BLOCKS];
+		misses = new Block[BLOCKS];
+		for (int i = 0; i < BLOCKS; i++) {
+			SignRecord record = records.get(random.nextInt(records.size()));
+			World world = worlds.get(record.getWorld());
+			hits[i] = BukkitStubs.block(world, record.getX(), record.getY(), record.getZ(),
+					Material.WALL_SIGN);
+
+			// Half the misses are next to a sign, half are anywhere
+			if (i % 2 == 0) {
+				misses[i] = BukkitStubs.block(world, record.getX(), record.getY() + 100, record.getZ(),
+						Material.WALL_SIGN);
+			} else {
+				misses[i] = BukkitStubs.block(world, random.nextInt(60000) - 30000, 64,
+						random.nextInt(60000) - 30000, Material.WALL_SIGN);
+			}
+		}
+	}
+
+	private int nextBlock() {
+		return next++ & (BLOCKS - 1);
+	}
+
+	@Benchmark
+	public SignLink indexHit() {
+		return index.get(hits[nextBlock()]);
+	}
+
+	@Benchmark
+	public SignLink indexMiss() {
+		return index.get(misses[nextBlock()]);
+	}
+
+	@Benchmark
+	public boolean indexFilteredMiss() {
+		Block block = misses[nextBlock()];
+		return index.mightContain(block) && index.get(block) != null;
+	}
+
+	@Benchmark
+	public URL locationMapHit() {
+		return locationMap.get(hits[nextBlock()].getLocation());
+	}
+
+	@Benchmark
+	public URL locationMapMiss() {
+		return locationMap.get(misses[nextBlock()].getLocation());
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Saving and loading the sign data. A save is a snapshot of the index on the
+ * server thread followed by a write on the writer thread. A load reads the
+ * data file and fills a new index, as loadSignsData() does minus the world
+ * checks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignsDataBenchmark {
+
+	@Param({ "1000", "100000", "1000000" })
+	public int signs;
+
+	@Param({ "json", "binary" })
+	public String format;
+
+	private SignsFormat signsFormat;
+	private SignLinks links;
+	private SignIndex index;
+	private File readFile;
+	private File writeFile;
+
+	@Setup
+	public void setUp() throws IOException {
+		Logger log = Logger.getLogger("HyperSigns");
+		signsFormat = format.equals("binary") ? new BinarySignsFormat() : new JsonSignsFormat(log);
+		links = new SignLinks(log, "", "");
+
+		List<SignRecord> records = BukkitStubs.signs(signs, 1);
+		index = new SignIndex(false);
+		for (SignRecord record : records) {
+			index.put(record.getWorld(), record.getX(), record.getY(), record.getZ(),
+					links.get(new URL(record.getUrl())));
+		}
+
+		readFile = File.createTempFile("hypersigns-read", signsFormat.getFileName());
+		writeFile = File.createTempFile("hypersigns-write", signsFormat.getFileName());
+		SignsWriter.writeFile(readFile, signsFormat, records);
+	}
+
+	@TearDown
+	public void tearDown() {
+		readFile.delete();
+		writeFile.delete();
+	}
+
+	@Benchmark
+	public SignsSnapshot snapshot() {
+		return index.snapshot();
+	}
+
+	@Benchmark
+	public File save() throws IOException {
+		SignsWriter.writeFile(writeFile, signsFormat, index.snapshot().getRecords());
+		return writeFile;
+	}
+
+	@Benchmark
+	public SignIndex load() throws IOException {
+		final SignIndex loaded = new SignIndex(false);
+		signsFormat.read(readFile, new SignsFormat.Handler() {
+			public void handle(SignRecord record) {
+				URL url = HyperSignsBukkit.validateURL(record.getUrl());
+				if (url != null) {
+					loaded.put(record.getWorld(), record.getX(), record.getY(), record.getZ(),
+							links.get(url));
+				}
+			}
+		});
+		return loaded;
+	}
+}
@@ -0,0 +1,158 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Compact binary signs.dat format, read through a memory-mapped file.
+ * 
+ * Layout (all integers big-endian, strings are an int byte length followed by
+ * UTF-8 bytes):
+ * 
+ * <pre>
+ * int     magic ("HSGN")
+ * int     version
+ * int     URL count
+ * string  URL table...
+ * int     world count
+ * For each world:
+ *   string  world name
+ *   int     chunk count
+ *   int x, int z, int first sign, int sign count   for each chunk
+ * int     sign count
+ * int position, int URL index                   for each sign
+ * </pre>
+ * 
+ * Each world name and URL is stored once no matter how many signs use it, and
+ * reading doesn't box any of the coordinates. Signs are grouped by chunk, and
+ * positions are packed relative to their chunk the same way as in SignChunk.
+ * The chunk directory lets MappedSignsFile read one chunk without scanning
+ * the whole file.
+ * 
+ * Version 1 files, which had no chunk directory, are no longer supported.
+ */
+public class BinarySignsFormat implements SignsFormat {
+
+	static final int MAGIC = 0x4853474E; // "HSGN"
+	static final int VERSION = 2;
+
+	public String getFileName() {
+		return "signs.dat";
+	}
+
+	public void read(File file, Handler handler) throws IOException {
+		MappedSignsFile.open(file, null, null).read(null, handler);
+	}
+
+	public void write(List<SignRecord> records, OutputStream out) throws IOException {
+		// Build the URL table and group the signs by world, then by chunk
+		Map<String, Integer> urlIndexes = new HashMap<String, Integer>();
+		List<String> urls = new ArrayList<String>();
+		Map<String, Map<Long, List<SignRecord>>> worlds = new LinkedHashMap<String, Map<Long, List<SignRecord>>>();
+
+		for (SignRecord record : records) {
+			if (!urlIndexes.containsKey(record.getUrl())) {
+				urlIndexes.put(record.getUrl(), urls.size());
+				urls.add(record.getUrl());
+			}
+
+			Map<Long, List<SignRecord>> worldChunks = worlds.get(record.getWorld());
+			if (worldChunks == null) {
+				worldChunks = new LinkedHashMap<Long, List<SignRecord>>();
+				worlds.put(record.getWorld(), worldChunks);
+			}
+
+			long key = SignIndex.chunkKey(record.getX() >> 4, record.getZ() >> 4);
+			List<SignRecord> chunkRecords = worldChunks.get(key);
+			if (chunkRecords == null) {
+				chunkRecords = new ArrayList<SignRecord>();
+				worldChunks.put(key, chunkRecords);
+			}
+			chunkRecords.add(record);
+		}
+
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+
+		data.writeInt(urls.size());
+		for (String url : urls) {
+			writeString(data, url);
+		}
+
+		// Chunk directory
+		int first = 0;
+		data.writeInt(worlds.size());
+		for (Entry<String, Map<Long, List<SignRecord>>> worldEntry : worlds.entrySet()) {
+			writeString(data, worldEntry.getKey());
+			data.writeInt(worldEntry.getValue().size());
+
+			for (Entry<Long, List<SignRecord>> chunkEntry : worldEntry.getValue().entrySet()) {
+				data.writeInt(SignIndex.chunkX(chunkEntry.getKey()));
+				data.writeInt(SignIndex.chunkZ(chunkEntry.getKey()));
+				data.writeInt(first);
+				data.writeInt(chunkEntry.getValue().size());
+				first += chunkEntry.getValue().size();
+			}
+		}
+
+		// Sign records, in the same order as the directory
+		data.writeInt(first);
+		for (Map<Long, List<SignRecord>> worldChunks : worlds.values()) {
+			for (List<SignRecord> chunkRecords : worldChunks.values()) {
+				for (SignRecord record : chunkRecords) {
+					data.writeInt(SignChunk.position(record.getX(), record.getY(), record.getZ()));
+					data.writeInt(urlIndexes.get(record.getUrl()));
+				}
+			}
+		}
+
+		data.flush();
+	}
+
+	static String readString(ByteBuffer buffer) throws IOException {
+		int length = buffer.getInt();
+		if (length < 0 || length > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	static void writeString(DataOutputStream data, String str) throws IOException {
+		byte[] bytes = str.getBytes("UTF-8");
+		data.writeInt(bytes.length);
+		data.write(bytes);
+	}
+}
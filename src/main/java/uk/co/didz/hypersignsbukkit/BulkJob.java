@@ -0,0 +1,97 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+/**
+ * A change to many signs that's done a small step at a time by the
+ * BulkJobRunner, so it never holds up a tick for long.
+ */
+public abstract class BulkJob {
+
+	protected final HyperSignsBukkit plugin;
+	private final String description;
+	private final CommandSender sender;
+
+	/**
+	 * Number of signs changed so far.
+	 */
+	protected int changed = 0;
+
+	/**
+	 * @param plugin
+	 * @param description e.g. "Purging signs"
+	 * @param sender Told about the job's progress.
+	 */
+	public BulkJob(HyperSignsBukkit plugin, String description, CommandSender sender) {
+		this.plugin = plugin;
+		this.description = description;
+		this.sender = sender;
+	}
+
+	/**
+	 * @return Whether the job can take a step yet, e.g. false while it's
+	 *         still waiting on a background thread.
+	 */
+	protected boolean isReady() {
+		return true;
+	}
+
+	/**
+	 * Do the next small piece of work. Called on the server thread.
+	 * 
+	 * @return false once there's nothing left to do.
+	 */
+	protected abstract boolean step();
+
+	/**
+	 * @return How far the job has got, e.g. "120/400 chunks".
+	 */
+	protected abstract String progress();
+
+	/**
+	 * @return Anything worth mentioning once the job is done, e.g. parts that
+	 *         were skipped. May be null.
+	 */
+	protected String notes() {
+		return null;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public int getChanged() {
+		return changed;
+	}
+
+	/**
+	 * Send a message to whoever started the job, if they're still around.
+	 * 
+	 * @param message
+	 */
+	public void tell(String message) {
+		if (sender instanceof Player && !((Player) sender).isOnline()) {
+			return;
+		}
+		sender.sendMessage(message);
+	}
+}
@@ -0,0 +1,206 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+
+import org.bukkit.ChatColor;
+
+/**
+ * Runs bulk jobs one at a time, doing as many steps each tick as fit in the
+ * tick budget. The changes a job makes are kept back and handed to the store
+ * as one batch once the job finishes or is cancelled, so a big job costs a
+ * single journal append or transaction rather than one every tick. Other
+ * changes are saved as usual in the meantime. One to a sign the job has
+ * changed replaces the job's change, so it isn't undone when the job's
+ * changes are saved.
+ * 
+ * Only use it on the server thread.
+ */
+public class BulkJobRunner implements Runnable {
+
+	private static final long PROGRESS_INTERVAL = 5000000000L;
+
+	private final HyperSignsBukkit plugin;
+	private final SignStore store;
+	private final long budget;
+	private final LinkedList<BulkJob> queue = new LinkedList<BulkJob>();
+	private int taskId = -1;
+	private long lastProgress;
+
+	/**
+	 * Changes made by the running job, by position, in the order they were
+	 * made.
+	 */
+	private final LinkedHashMap<String, SignRecord> changes = new LinkedHashMap<String, SignRecord>();
+
+	/**
+	 * Whether a job is taking a step.
+	 */
+	private boolean stepping = false;
+
+	/**
+	 * @param p
+	 * @param store Given each job's changes once it finishes.
+	 * @param budget Milliseconds of each tick that jobs may use.
+	 */
+	public BulkJobRunner(HyperSignsBukkit p, SignStore store, long budget) {
+		plugin = p;
+		this.store = store;
+		this.budget = Math.max(budget, 1) * 1000000L;
+	}
+
+	/**
+	 * Queue a job to run after any already running.
+	 * 
+	 * @param job
+	 */
+	public void start(BulkJob job) {
+		queue.add(job);
+		if (queue.size() > 1) {
+			job.tell(ChatColor.YELLOW + job.getDescription() + " once " + (queue.size() - 1)
+					+ " other job(s) finish.");
+			return;
+		}
+
+		lastProgress = System.nanoTime();
+		job.tell(ChatColor.YELLOW + job.getDescription() + "...");
+		taskId = plugin.getServer().getScheduler().scheduleSyncRepeatingTask(plugin, this, 1, 1);
+	}
+
+	/**
+	 * Run steps until the tick budget is used up.
+	 */
+	public void run() {
+		long start = System.nanoTime();
+
+		while (!queue.isEmpty()) {
+			BulkJob job = queue.getFirst();
+			if (!job.isReady()) {
+				return;
+			}
+
+			boolean more = step(job);
+			if (!more) {
+				queue.removeFirst();
+				save();
+				finished(job);
+				if (!queue.isEmpty()) {
+					queue.getFirst().tell(ChatColor.YELLOW + queue.getFirst().getDescription() + "...");
+				}
+			}
+
+			long now = System.nanoTime();
+			if (now - lastProgress >= PROGRESS_INTERVAL && !queue.isEmpty()) {
+				lastProgress = now;
+				queue.getFirst().tell(ChatColor.YELLOW + queue.getFirst().getDescription() + ": "
+						+ queue.getFirst().progress() + "...");
+			}
+			if (now - start >= budget) {
+				return;
+			}
+		}
+
+		stop();
+	}
+
+	/**
+	 * Stop every job where it is. Changes already made are kept and saved.
+	 * 
+	 * @return Number of jobs cancelled.
+	 */
+	public int cancel() {
+		int count = queue.size();
+		for (BulkJob job : queue) {
+			job.tell(ChatColor.YELLOW + job.getDescription() + " cancelled after changing "
+					+ job.getChanged() + " signs.");
+		}
+		queue.clear();
+		stop();
+		save();
+		return count;
+	}
+
+	/**
+	 * Keep a change back if the running job made it. A change made outside
+	 * the job replaces any the job made to the same sign, and is left for
+	 * the caller to save.
+	 * 
+	 * @param record
+	 * @return Whether the change was kept back.
+	 */
+	public boolean logChange(SignRecord record) {
+		String key = ShardedSignStore.key(record);
+		changes.remove(key);
+		if (!stepping) {
+			return false;
+		}
+		changes.put(key, record);
+		return true;
+	}
+
+	/**
+	 * @param record
+	 * @return Whether the running job has changed the sign and not handed
+	 *         the change to the store yet.
+	 */
+	public boolean hasChange(SignRecord record) {
+		return !changes.isEmpty() && changes.containsKey(ShardedSignStore.key(record));
+	}
+
+	private boolean step(BulkJob job) {
+		stepping = true;
+		plugin.loadedSigns.holdChanges(true);
+		try {
+			return job.step();
+		} finally {
+			stepping = false;
+			plugin.loadedSigns.holdChanges(false);
+		}
+	}
+
+	/**
+	 * Hand the job's changes to the store as one batch.
+	 */
+	private void save() {
+		boolean changed = !changes.isEmpty();
+		for (SignRecord record : changes.values()) {
+			store.logChange(record);
+		}
+		changes.clear();
+		plugin.loadedSigns.releaseHeldChanges();
+		if (changed) {
+			store.flush();
+		}
+	}
+
+	private void finished(BulkJob job) {
+		String notes = job.notes();
+		job.tell(ChatColor.GREEN + job.getDescription() + " done, " + job.getChanged() + " signs changed."
+				+ (notes != null ? " " + notes : ""));
+	}
+
+	private void stop() {
+		if (taskId != -1) {
+			plugin.getServer().getScheduler().cancelTask(taskId);
+			taskId = -1;
+		}
+	}
+}
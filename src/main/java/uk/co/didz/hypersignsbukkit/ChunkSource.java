@@ -0,0 +1,74 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Somewhere the signs of a single chunk can be read from without reading
+ * everything else, so the SignIndex only needs to hold the signs of loaded
+ * chunks.
+ */
+public interface ChunkSource {
+
+	/**
+	 * @return Number of signs, to size collections with. Safe to call from any
+	 *         thread.
+	 */
+	public int getSignCount();
+
+	/**
+	 * Read the signs of a single chunk. Must be called on the server thread.
+	 * 
+	 * @param world
+	 * @param chunkX
+	 * @param chunkZ
+	 * @return The chunk's signs, or null if there are none in the chunk.
+	 * @throws IOException If the chunk couldn't be read, so whether it has
+	 *             signs isn't known.
+	 */
+	public SignChunk readChunk(String world, int chunkX, int chunkZ) throws IOException;
+
+	/**
+	 * Queue a read of a single chunk on a background thread, for sources that
+	 * shouldn't be read on the server thread as the world loads chunks, e.g. a
+	 * database shared with other servers. The signs read are handed to
+	 * SignIndex.chunkRead() on the server thread. Must be called on the server
+	 * thread.
+	 * 
+	 * @param world
+	 * @param chunkX
+	 * @param chunkZ
+	 * @return false if the source doesn't read in the background, so
+	 *         readChunk() should be used instead.
+	 */
+	public boolean readChunkLater(String world, int chunkX, int chunkZ);
+
+	/**
+	 * Read every sign, except those in the given chunks. Safe to call from any
+	 * thread.
+	 * 
+	 * @param skip Chunks to skip. Key: World name. Value: Sorted chunk keys.
+	 *            May be null.
+	 * @param handler
+	 * @throws IOException
+	 */
+	public void read(Map<String, long[]> skip, SignsFormat.Handler handler) throws IOException;
+}
@@ -0,0 +1,124 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import org.bukkit.block.Block;
+import org.bukkit.entity.Player;
+
+/**
+ * Cooldowns for URL triggers, per player and per player and sign, so holding
+ * down the mouse button on a sign doesn't flood the player with messages.
+ * 
+ * Recent clicks are kept in a fixed size direct-mapped table keyed by a hash
+ * of the player and sign. There's nothing to clean up: entries are simply
+ * overwritten, and an entry older than the cooldown no longer counts. If two
+ * clicks land in the same slot the older one is forgotten early, which only
+ * lets a click through. Two keys hashing to the same 64 bit value would share
+ * a cooldown and could block a click, but that's too unlikely to matter.
+ * 
+ * Not thread safe, only use it on the server thread.
+ */
+public class ClickThrottle {
+
+	private static final int SLOTS = 4096;
+
+	private final long playerCooldown;
+	private final long signCooldown;
+	private final long[] keys = new long[SLOTS];
+	private final long[] times = new long[SLOTS];
+
+	/**
+	 * @param playerCooldown Milliseconds between triggers for the same player.
+	 *            0 turns it off.
+	 * @param signCooldown Milliseconds between triggers of the same sign for
+	 *            the same player. 0 turns it off.
+	 */
+	public ClickThrottle(long playerCooldown, long signCooldown) {
+		this.playerCooldown = Math.max(playerCooldown, 0) * 1000000L;
+		this.signCooldown = Math.max(signCooldown, 0) * 1000000L;
+	}
+
+	/**
+	 * Check whether a player's click on a sign may send a URL trigger, and if
+	 * so start its cooldowns.
+	 * 
+	 * @param player
+	 * @param block
+	 * @return false if the click is still within a cooldown.
+	 */
+	public boolean allow(Player player, Block block) {
+		if (playerCooldown == 0 && signCooldown == 0) {
+			return true;
+		}
+
+		long now = System.nanoTime();
+		int playerId = player.getEntityId();
+		long playerKey = key(playerId, 0, 0, 0, 0, false);
+		long signKey = key(playerId, block.getWorld().getName().hashCode(), block.getX(), block.getY(),
+				block.getZ(), true);
+
+		if (playerCooldown > 0 && isCoolingDown(playerKey, now, playerCooldown)) {
+			return false;
+		}
+		if (signCooldown > 0 && isCoolingDown(signKey, now, signCooldown)) {
+			return false;
+		}
+
+		if (playerCooldown > 0) {
+			record(playerKey, now);
+		}
+		if (signCooldown > 0) {
+			record(signKey, now);
+		}
+		return true;
+	}
+
+	private boolean isCoolingDown(long key, long now, long cooldown) {
+		int slot = (int) key & (SLOTS - 1);
+		return keys[slot] == key && now - times[slot] < cooldown;
+	}
+
+	private void record(long key, long now) {
+		int slot = (int) key & (SLOTS - 1);
+		keys[slot] = key;
+		times[slot] = now;
+	}
+
+	/**
+	 * Hash a player, or a player and sign, into a non-zero key. Zero marks an
+	 * empty slot.
+	 */
+	private static long key(int playerId, int worldHash, int x, int y, int z, boolean sign) {
+		long h = playerId * 0x9E3779B97F4A7C15L;
+		if (sign) {
+			h ^= worldHash * 0xC2B2AE3D27D4EB4FL;
+			h ^= (((long) x << 32) ^ ((long) z << 8) ^ y) * 0x165667B19E3779F9L;
+			h += 0x27D4EB2F165667C5L;
+		}
+
+		// MurmurHash3 finaliser
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+
+		return h != 0 ? h : 1;
+	}
+}
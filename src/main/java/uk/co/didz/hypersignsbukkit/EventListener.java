@@ -19,24 +19,46 @@
 package uk.co.didz.hypersignsbukkit;
 
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.bukkit.ChatColor;
+import org.bukkit.Chunk;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.Action;
 import org.bukkit.event.block.BlockBreakEvent;
 import org.bukkit.event.block.BlockBurnEvent;
 import org.bukkit.event.block.BlockFadeEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
 import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerKickEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerRegisterChannelEvent;
+import org.bukkit.event.player.PlayerUnregisterChannelEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
 
 public class EventListener implements Listener {
 
+	/**
+	 * Sides of a block that a sign can be attached to: on top, or on a wall.
+	 */
+	private static final BlockFace[] ATTACHED_FACES = { BlockFace.UP, BlockFace.NORTH, BlockFace.SOUTH,
+			BlockFace.EAST, BlockFace.WEST };
+
 	private HyperSignsBukkit plugin;
 
 	public EventListener(HyperSignsBukkit p) {
@@ -50,16 +72,14 @@ public class EventListener implements Listener {
 	 */
 	@EventHandler(ignoreCancelled = true)
 	public void onPlayerInteract(PlayerInteractEvent event) {
-		// Silently dismiss the event if the player doesn't have permission to
-		// interact, and isn't in "sign editing" mode
-		Player player = event.getPlayer();
-		if (!player.hasPermission("hypersigns.sign.interact")
-				&& !plugin.signEditPlayers.containsKey(player.getName())) {
-			return;
-		}
+		Metrics metrics = plugin.metrics;
+		metrics.interactEvents.incrementAndGet();
+
+		// Cheapest checks first, most interacts aren't with signs
 
 		// Ignore the event if it wasn't a block click
 		if (event.getAction() != Action.LEFT_CLICK_BLOCK && event.getAction() != Action.RIGHT_CLICK_BLOCK) {
+			metrics.interactEventsFiltered.incrementAndGet();
 			return;
 		}
 
@@ -67,40 +87,53 @@ public class EventListener implements Listener {
 
 		// Ignore right clicks on any blocks that aren't signs
 		if (block.getType() != Material.SIGN_POST && block.getType() != Material.WALL_SIGN) {
+			metrics.interactEventsFiltered.incrementAndGet();
 			return;
 		}
 
 		// If the player isn't in sign-editing mode, treat this as a normal
 		// interact
+		Player player = event.getPlayer();
 		if (!plugin.signEditPlayers.containsKey(player.getName())) {
+			// Silently dismiss the event if the player doesn't have permission
+			// to interact
+			if (!plugin.playerCapabilities.canInteract(player)) {
+				metrics.interactEventsFiltered.incrementAndGet();
+				return;
+			}
+
 			// Look to see if this sign is loaded as a hypersign
-			URL url = plugin.loadedSigns.get(block.getLocation());
-			if (url == null) {
+			SignLink link = plugin.loadedSigns.get(block);
+			if (link == null) {
 				return;
 			}
+			metrics.signHits.incrementAndGet();
 
 			// This is a hyper sign so cancel the event now
 			event.setCancelled(true);
 
-			plugin.sendUrlTrigger(player, url);
+			// Don't flood the player if they're holding the mouse button down
+			if (!plugin.clickThrottle.allow(player, block)) {
+				metrics.triggersSuppressed.incrementAndGet();
+				return;
+			}
+
+			plugin.sendUrlTrigger(player, link);
 		} else {
 			// We're handling sign editing mode so cancel the event now
 			event.setCancelled(true);
 
 			URL url = plugin.signEditPlayers.get(player.getName());
 			if (url != null) {
-				plugin.loadedSigns.put(block.getLocation(), url);
+				plugin.setHyperSign(block, url);
 				player.sendMessage(ChatColor.GREEN + "The sign's URL has been set.");
 			} else {
-				plugin.loadedSigns.remove(block.getLocation());
+				plugin.removeHyperSign(block);
 				player.sendMessage(ChatColor.GREEN + "Removed the sign's URL.");
 			}
 
 			// Take player out of edit mode
 			plugin.signEditPlayers.remove(player.getName());
-
-			// Save sign data to disk
-			plugin.saveSignsData();
 		}
 	}
 
@@ -146,18 +179,203 @@ public class EventListener implements Listener {
 	 * @param block
 	 */
 	private void clearSignData(Block block) {
+		Metrics metrics = plugin.metrics;
+		metrics.blockEventsChecked.incrementAndGet();
+		if (!plugin.loadedSigns.mightContain(block)) {
+			metrics.blockEventsFiltered.incrementAndGet();
+			return;
+		}
+
 		if (plugin.isHyperSign(block)) {
-			plugin.loadedSigns.remove(block.getLocation());
-			plugin.saveSignsData();
+			plugin.removeHyperSign(block);
+			metrics.blockEventClears.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Clear sign data from every block destroyed by an explosion in one pass.
+	 */
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onEntityExplode(EntityExplodeEvent event) {
+		clearSignDataLater(event.blockList());
+	}
+
+	/**
+	 * Clear sign data from signs broken by a piston pushing blocks. Pistons
+	 * destroy signs in their way without a break event.
+	 */
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onBlockPistonExtend(BlockPistonExtendEvent event) {
+		Block piston = event.getBlock();
+		BlockFace direction = event.getDirection();
+
+		// Every block that moves, plus the one it moves into
+		List<Block> blocks = new ArrayList<Block>(event.getLength() + 1);
+		for (int i = 1; i <= event.getLength() + 1; i++) {
+			blocks.add(piston.getRelative(direction, i));
+		}
+		clearSignDataLater(blocks);
+	}
+
+	/**
+	 * Clear sign data from signs knocked off a block pulled by a sticky
+	 * piston.
+	 */
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onBlockPistonRetract(BlockPistonRetractEvent event) {
+		Block piston = event.getBlock();
+		BlockFace direction = event.getDirection();
+
+		List<Block> blocks = new ArrayList<Block>(2);
+		blocks.add(piston.getRelative(direction, 1));
+		if (event.isSticky()) {
+			blocks.add(piston.getRelative(direction, 2));
+		}
+		clearSignDataLater(blocks);
+	}
+
+	/**
+	 * Clear link data from any of the blocks, and the signs that may be
+	 * attached to them, that aren't signs any more once the event has
+	 * happened. The hyper signs among them are found straight away, then
+	 * checked together on the next tick when the world has changed. The
+	 * removals are queued to be saved as one batch.
+	 * 
+	 * @param blocks
+	 */
+	private void clearSignDataLater(List<Block> blocks) {
+		final List<Block> signs = new ArrayList<Block>();
+		Metrics metrics = plugin.metrics;
+
+		for (Block block : blocks) {
+			for (int i = 0; i < ATTACHED_FACES.length + 1; i++) {
+				// The block itself, then the blocks a sign could hang off it
+				Block candidate = i == 0 ? block : block.getRelative(ATTACHED_FACES[i - 1]);
+
+				metrics.blockEventsChecked.incrementAndGet();
+				if (!plugin.loadedSigns.mightContain(candidate)) {
+					metrics.blockEventsFiltered.incrementAndGet();
+					continue;
+				}
+				if (plugin.loadedSigns.get(candidate) != null) {
+					signs.add(candidate);
+				}
+			}
+		}
+
+		if (signs.isEmpty()) {
+			return;
+		}
+
+		plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+			public void run() {
+				if (plugin.loadedSigns == null) {
+					// Disabled in the meantime
+					return;
+				}
+
+				for (Block sign : signs) {
+					if (!plugin.isHyperSign(sign) && plugin.loadedSigns.get(sign) != null) {
+						plugin.removeHyperSign(sign);
+						plugin.metrics.blockEventClears.incrementAndGet();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Bring a chunk's signs into memory when it's loaded.
+	 */
+	@EventHandler(ignoreCancelled = true)
+	public void onChunkLoad(ChunkLoadEvent event) {
+		if (plugin.loadedSigns.isChunked()) {
+			Chunk chunk = event.getChunk();
+			long start = System.nanoTime();
+			plugin.loadedSigns.loadChunk(chunk.getWorld().getName(), chunk.getX(), chunk.getZ());
+			plugin.metrics.chunkLoadTime.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Drop a chunk's signs from memory when it's unloaded. Runs last so that a
+	 * cancelled unload keeps the signs.
+	 */
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onChunkUnload(ChunkUnloadEvent event) {
+		if (plugin.loadedSigns.isChunked()) {
+			Chunk chunk = event.getChunk();
+			plugin.loadedSigns.unloadChunk(chunk.getWorld().getName(), chunk.getX(), chunk.getZ());
+		}
+	}
+
+	/**
+	 * Read a world's signs in the background when it's loaded after startup.
+	 */
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onWorldLoad(WorldLoadEvent event) {
+		plugin.loadWorldSigns(event.getWorld(), true);
+	}
+
+	/**
+	 * Save a world's signs and drop them from memory when it's unloaded. Runs
+	 * last so that a cancelled unload keeps the signs.
+	 */
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onWorldUnload(WorldUnloadEvent event) {
+		plugin.unloadWorldSigns(event.getWorld());
+	}
+
+	/**
+	 * Check what a player can do when they join.
+	 */
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerJoin(PlayerJoinEvent event) {
+		plugin.playerCapabilities.refresh(event.getPlayer());
+	}
+
+	/**
+	 * Check the player's permissions again, in case they differ per world.
+	 */
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+		plugin.playerCapabilities.refresh(event.getPlayer());
+	}
+
+	/**
+	 * Notice when a player's client starts listening to the HyperSigns
+	 * channels.
+	 */
+	@EventHandler
+	public void onPlayerRegisterChannel(PlayerRegisterChannelEvent event) {
+		if (isHyperSignsChannel(event.getChannel())) {
+			plugin.playerCapabilities.refresh(event.getPlayer());
 		}
 	}
 
+	/**
+	 * Notice when a player's client stops listening to the HyperSigns
+	 * channels.
+	 */
+	@EventHandler
+	public void onPlayerUnregisterChannel(PlayerUnregisterChannelEvent event) {
+		if (isHyperSignsChannel(event.getChannel())) {
+			plugin.playerCapabilities.refresh(event.getPlayer());
+		}
+	}
+
+	private static boolean isHyperSignsChannel(String channel) {
+		return channel.equals(HyperSignsBukkit.CHANNEL_NAME)
+				|| channel.equals(HyperSignsBukkit.URL_IDS_CHANNEL_NAME);
+	}
+
 	/**
 	 * Remove player's edit mode if they quit.
 	 */
 	@EventHandler(ignoreCancelled = true)
 	public void onPlayerQuit(PlayerQuitEvent event) {
 		clearPlayerEditing(event.getPlayer());
+		plugin.playerCapabilities.remove(event.getPlayer());
 	}
 
 	/**
@@ -166,6 +384,7 @@ public class EventListener implements Listener {
 	@EventHandler(ignoreCancelled = true)
 	public void onPlayerKick(PlayerKickEvent event) {
 		clearPlayerEditing(event.getPlayer());
+		plugin.playerCapabilities.remove(event.getPlayer());
 	}
 
 	/**
@@ -0,0 +1,189 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.bukkit.World;
+
+/**
+ * Hyper sign lookups and changes for other plugins, safe to use from any
+ * thread. Get it from the server's services manager:
+ * 
+ * <pre>
+ * HyperSignRegistry registry = getServer().getServicesManager().load(HyperSignRegistry.class);
+ * </pre>
+ * 
+ * Lookups read the signs in memory directly and never wait for the server
+ * thread. Changes are made on the server thread, the same way as signs
+ * edited in game, so they're saved like any other change. Called from the
+ * server thread they're made straight away, otherwise on the next tick.
+ */
+public class HyperSignRegistry {
+
+	private final HyperSignsBukkit plugin;
+	private final SignIndex signs;
+	private final Thread serverThread;
+	private volatile boolean closed = false;
+
+	/**
+	 * Must be created on the server thread.
+	 * 
+	 * @param p
+	 * @param signs
+	 */
+	public HyperSignRegistry(HyperSignsBukkit p, SignIndex signs) {
+		plugin = p;
+		this.signs = signs;
+		serverThread = Thread.currentThread();
+	}
+
+	/**
+	 * @return Whether lookups only see signs in chunks the world has loaded.
+	 */
+	public boolean isChunked() {
+		return signs.isChunked();
+	}
+
+	/**
+	 * @return Number of hyper signs in memory.
+	 */
+	public int size() {
+		return closed ? 0 : signs.size();
+	}
+
+	/**
+	 * Look up the URL of a sign. If signs are loaded chunk by chunk, only
+	 * signs in loaded chunks are found.
+	 * 
+	 * @param world
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return The sign's URL, or null if it isn't a hyper sign.
+	 */
+	public String getUrl(String world, int x, int y, int z) {
+		if (closed) {
+			return null;
+		}
+
+		SignLink link = signs.find(world, x, y, z);
+		return link != null ? link.getUrlString() : null;
+	}
+
+	public String getUrl(World world, int x, int y, int z) {
+		return getUrl(world.getName(), x, y, z);
+	}
+
+	/**
+	 * Link a sign to a URL. The block isn't checked, a link on a block that
+	 * isn't a sign is never triggered.
+	 * 
+	 * @param world
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param url
+	 * @return Completes with whether the sign was linked. False if the URL
+	 *         isn't valid, the world isn't loaded or the plugin has been
+	 *         disabled.
+	 */
+	public Future<Boolean> setUrl(final String world, final int x, final int y, final int z, String url) {
+		final URL validUrl = HyperSignsBukkit.validateURL(url);
+		if (validUrl == null) {
+			return done(false);
+		}
+
+		return change(new Callable<Boolean>() {
+			public Boolean call() {
+				World w = plugin.getServer().getWorld(world);
+				if (w == null) {
+					return false;
+				}
+				plugin.setHyperSign(w, x, y, z, validUrl);
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Remove a sign's link.
+	 * 
+	 * @param world
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return Completes with whether the sign had a link.
+	 */
+	public Future<Boolean> removeUrl(final String world, final int x, final int y, final int z) {
+		return change(new Callable<Boolean>() {
+			public Boolean call() {
+				World w = plugin.getServer().getWorld(world);
+				if (w == null) {
+					return false;
+				}
+				return plugin.removeHyperSign(w, x, y, z);
+			}
+		});
+	}
+
+	/**
+	 * Stop using the plugin's signs, when it's disabled. Lookups find nothing
+	 * and changes fail from now on.
+	 */
+	public void close() {
+		closed = true;
+	}
+
+	/**
+	 * Make a change on the server thread.
+	 */
+	private Future<Boolean> change(final Callable<Boolean> change) {
+		Callable<Boolean> checked = new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				// The plugin may have been disabled while this was queued
+				return !closed && change.call();
+			}
+		};
+
+		if (Thread.currentThread() == serverThread) {
+			FutureTask<Boolean> task = new FutureTask<Boolean>(checked);
+			task.run();
+			return task;
+		}
+		if (closed) {
+			return done(false);
+		}
+		return plugin.getServer().getScheduler().callSyncMethod(plugin, checked);
+	}
+
+	private static Future<Boolean> done(final boolean result) {
+		FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+			public Boolean call() {
+				return result;
+			}
+		});
+		task.run();
+		return task;
+	}
+}
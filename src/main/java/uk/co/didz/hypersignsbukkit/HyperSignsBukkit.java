@@ -19,9 +19,6 @@
 package uk.co.didz.hypersignsbukkit;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -29,15 +26,13 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
+import org.bukkit.Chunk;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.World;
@@ -47,26 +42,67 @@ import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.ServicePriority;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
 public class HyperSignsBukkit extends JavaPlugin {
 
 	protected static final String CHANNEL_NAME = "HyperSigns";
+	/**
+	 * Clients that cache URLs by id listen on this channel as well, to let the
+	 * server know. Nothing is sent on it.
+	 */
+	protected static final String URL_IDS_CHANNEL_NAME = "HyperSigns|Ids";
 	protected Logger log;
 	protected PluginManager pm;
 	private EventListener eventListener;
-	private String fallbackUrlTriggerPrefix;
-	private String fallbackUrlTriggerSuffix;
+	/**
+	 * Folder in the data folder holding each world's data files.
+	 */
+	protected static final String WORLDS_FOLDER = "worlds";
+	/**
+	 * The plugin's own files and folders in the data folder, which import and
+	 * export mustn't touch. Names that start with one of these followed by a
+	 * dot or a dash, e.g. signs.db-wal or signs.json.tmp, are taken as well.
+	 */
+	private static final String[] RESERVED_FILE_NAMES = { "config.yml", "signs.json", "signs.dat",
+			ShardedSignStore.JOURNAL_NAME, SqlSignStore.FILE_NAME, WORLDS_FOLDER, "metrics.csv" };
+
+	private SignsFormat signsFormat;
+	private SignStore signsStore;
+	private ShardedSignStore shardedStore;
+	private SqlSignStore signsDatabase;
+	private File databaseFile;
+	private UrlBroadcaster urlBroadcaster;
+	private BulkJobRunner bulkJobs;
+	private int metricsTaskId = -1;
+
+	/**
+	 * Counters and timings shown by /hypersigns stats.
+	 */
+	protected Metrics metrics;
+
+	/**
+	 * Cached permission and client checks for online players.
+	 */
+	protected PlayerCapabilities playerCapabilities;
+
+	/**
+	 * Cooldowns between URL triggers from clicking signs.
+	 */
+	protected ClickThrottle clickThrottle;
+
+	/**
+	 * Creates the links stored with each hyper sign, holding the prepared URL
+	 * trigger messages.
+	 */
+	protected SignLinks signLinks;
 
 	/**
-	 * Map of hyper signs in all worlds. Key: Block location. Value: URL as
-	 * string.
+	 * Index of hyper signs in all worlds, keyed by world name and block
+	 * coordinates.
 	 */
-	protected HashMap<Location, URL> loadedSigns;
+	protected SignIndex loadedSigns;
 
 	/**
 	 * Map of players in "sign editing" mode. Key: Player name. Value: URL to
@@ -74,6 +110,11 @@ public class HyperSignsBukkit extends JavaPlugin {
 	 */
 	protected HashMap<String, URL> signEditPlayers;
 
+	/**
+	 * Sign lookups and changes for other plugins and threads.
+	 */
+	private HyperSignRegistry registry;
+
 	@Override
 	public void onEnable() {
 		log = getLogger();
@@ -86,11 +127,70 @@ public class HyperSignsBukkit extends JavaPlugin {
 		config.options().copyHeader(true);
 		saveConfig();
 
-		fallbackUrlTriggerPrefix = config.getString("fallbackUrlTriggerPrefix");
-		fallbackUrlTriggerSuffix = config.getString("fallbackUrlTriggerSuffix");
+		metrics = new Metrics();
+		clickThrottle = new ClickThrottle(config.getLong("clickCooldown"),
+				config.getLong("signClickCooldown"));
+		signLinks = new SignLinks(log, config.getString("fallbackUrlTriggerPrefix"),
+				config.getString("fallbackUrlTriggerSuffix"));
+
+		// Pick the data file format. No format means the signs are kept in a
+		// database instead.
+		String dataFormat = config.getString("dataFormat");
+		String sharedDatabase = config.getString("sharedDatabase");
+		if (!sharedDatabase.isEmpty()) {
+			// Servers sharing their signs always use the database
+			databaseFile = new File(sharedDatabase);
+			signsFormat = null;
+			log.info("Sharing signs with other servers through " + databaseFile.getPath() + ".");
+		} else if (dataFormat.equalsIgnoreCase("binary")) {
+			signsFormat = new BinarySignsFormat();
+		} else if (dataFormat.equalsIgnoreCase("sqlite")) {
+			signsFormat = null;
+		} else {
+			if (!dataFormat.equalsIgnoreCase("json")) {
+				log.warning("Unknown dataFormat '" + dataFormat + "' in config.yml. Using json.");
+			}
+			signsFormat = new JsonSignsFormat(log);
+		}
 
-		// Load all hyper signs into memory
+		// Load the hyper signs of every loaded world into memory
+		long loadStart = System.nanoTime();
 		loadSignsData();
+		metrics.loadTime.set(System.nanoTime() - loadStart);
+		if (!isEnabled()) {
+			// Loading failed, don't risk overwriting the data file
+			return;
+		}
+
+		// Start writing changes to the sign data in the background
+		signsStore.start(config.getInt("saveInterval") * 20L);
+
+		urlBroadcaster = new UrlBroadcaster(this, config.getInt("broadcastSendsPerTick"));
+		bulkJobs = new BulkJobRunner(this, signsStore, config.getInt("bulkJobTickBudget"));
+
+		// Let other plugins look up and change hyper signs
+		registry = new HyperSignRegistry(this, loadedSigns);
+		getServer().getServicesManager().register(HyperSignRegistry.class, registry, this,
+				ServicePriority.Normal);
+
+		// Check what each online player can do, e.g. after a reload
+		playerCapabilities = new PlayerCapabilities(this);
+		playerCapabilities.start(config.getInt("permissionRefreshInterval") * 20L);
+
+		// Dump the metrics to a CSV file if asked to
+		long csvInterval = config.getInt("metricsCsvInterval") * 20L;
+		if (csvInterval > 0) {
+			final File csvFile = new File(getDataFolder(), "metrics.csv");
+			metricsTaskId = getServer().getScheduler().scheduleAsyncRepeatingTask(this, new Runnable() {
+				public void run() {
+					try {
+						metrics.appendCsv(csvFile);
+					} catch (IOException e) {
+						log.log(Level.WARNING, "Unable to write metrics.csv.", e);
+					}
+				}
+			}, csvInterval, csvInterval);
+		}
 
 		// Initialise the list of players currently editing sign URLs
 		signEditPlayers = new HashMap<String, URL>();
@@ -108,6 +208,35 @@ public class HyperSignsBukkit extends JavaPlugin {
 
 	@Override
 	public void onDisable() {
+		if (playerCapabilities != null) {
+			playerCapabilities.stop();
+		}
+
+		if (metricsTaskId != -1) {
+			getServer().getScheduler().cancelTask(metricsTaskId);
+			metricsTaskId = -1;
+		}
+
+		// Drop any broadcasts still being sent
+		if (urlBroadcaster != null) {
+			urlBroadcaster.cancel();
+		}
+
+		if (registry != null) {
+			getServer().getServicesManager().unregisterAll(this);
+			registry.close();
+		}
+
+		// Stop bulk jobs where they are, their changes so far are saved below
+		if (bulkJobs != null) {
+			bulkJobs.cancel();
+		}
+
+		// Write out any unsaved sign data
+		if (signsStore != null) {
+			signsStore.shutdown();
+		}
+
 		// Unregister the plugin's outgoing channel
 		getServer().getMessenger().unregisterOutgoingPluginChannel(this, CHANNEL_NAME);
 
@@ -116,7 +245,19 @@ public class HyperSignsBukkit extends JavaPlugin {
 		// Release all our handles now. This is helpful for the garbage
 		// collector if the plugin object is kept after being disabled.
 		eventListener = null;
+		signsStore = null;
+		urlBroadcaster = null;
+		bulkJobs = null;
+		registry = null;
+		playerCapabilities = null;
+		metrics = null;
+		clickThrottle = null;
+		shardedStore = null;
+		signsDatabase = null;
+		databaseFile = null;
+		signsFormat = null;
 		loadedSigns = null;
+		signLinks = null;
 		signEditPlayers = null;
 
 		pm = null;
@@ -127,327 +268,1511 @@ public class HyperSignsBukkit extends JavaPlugin {
 	 * Send a URL Trigger to the player.
 	 * 
 	 * If the player doesn't have the HyperSigns client, the URL will be
-	 * messaged in the chat window.
+	 * messaged in the chat window. Clients that cache URLs by id are sent each
+	 * interned URL once, then only its id.
 	 * 
 	 * @param recipient
-	 * @param url
+	 * @param link
 	 */
-	protected void sendUrlTrigger(Player recipient, URL url) {
+	protected void sendUrlTrigger(Player recipient, SignLink link) {
 		// Check if the player has the custom client
-		if (recipient.getListeningPluginChannels().contains(CHANNEL_NAME)) {
-			byte[] message;
-			try {
-				message = ServerMessageComposer.writeClientUrlTrigger(url);
-			} catch (IOException e) {
-				log.log(Level.SEVERE, "Unable to create URL Trigger packet.", e);
+		if (playerCapabilities.hasClient(recipient)) {
+			if (link.getId() != 0 && playerCapabilities.hasUrlIds(recipient)) {
+				if (playerCapabilities.markUrlIdSent(recipient, link.getId())) {
+					recipient.sendPluginMessage(this, CHANNEL_NAME, link.getDefineMessage());
+				} else {
+					recipient.sendPluginMessage(this, CHANNEL_NAME, link.getIdMessage());
+					metrics.triggersById.incrementAndGet();
+				}
+				metrics.triggersClient.incrementAndGet();
+				return;
+			}
+
+			byte[] message = link.getMessage();
+			if (message == null) {
+				// Already logged when the link was created
 				return;
 			}
 			recipient.sendPluginMessage(this, CHANNEL_NAME, message);
+			metrics.triggersClient.incrementAndGet();
 		} else {
-			recipient.sendMessage(fallbackUrlTriggerPrefix + url.toString()
-					+ fallbackUrlTriggerSuffix);
+			recipient.sendMessage(link.getFallbackMessage());
+			metrics.triggersFallback.incrementAndGet();
 		}
 	}
 
 	/**
-	 * Attempt to load signs. If the data file doesn't exist, create it.
+	 * Attempt to load signs. Signs left in a single data file by older
+	 * versions, or in another format before dataFormat was changed, are
+	 * converted first. Then the signs of each loaded world are read.
 	 */
 	protected void loadSignsData() {
 		log.info("Loading signs:");
 
-		loadedSigns = new HashMap<Location, URL>();
+		// The binary format and the database can be read chunk by chunk
+		boolean chunked = signsFormat == null || signsFormat instanceof BinarySignsFormat;
+		loadedSigns = new SignIndex(chunked);
 
 		if (!getDataFolder().exists()) {
 			getDataFolder().mkdirs();
 		}
 
-		File signsFile = new File(getDataFolder(), "signs.json");
-		try {
-			if (signsFile.createNewFile() == true) {
-				log.info("Created data file signs.json successfully.");
+		// Convert the old data file the first time the format is changed, or
+		// the first time signs are stored per world. null stands for the
+		// database.
+		if (databaseFile == null) {
+			databaseFile = new File(getDataFolder(), SqlSignStore.FILE_NAME);
+		}
+		SignsFormat[] formats = { new JsonSignsFormat(log), new BinarySignsFormat(), null };
+		File oldFile = null;
+		SignsFormat oldFormat = null;
+		for (SignsFormat format : formats) {
+			File file = new File(getDataFolder(), format != null ? format.getFileName()
+					: SqlSignStore.FILE_NAME);
+			boolean target = format == null && signsFormat == null
+					&& file.getAbsoluteFile().equals(databaseFile.getAbsoluteFile());
+			if (file.length() > 0 && !target) {
+				oldFile = file;
+				oldFormat = format;
+				break;
+			}
+		}
+		File oldJournal = new File(getDataFolder(), ShardedSignStore.JOURNAL_NAME);
+		if (oldFile != null || oldJournal.length() > 0) {
+			if (!migrateSignsData(oldFile, oldFormat, oldJournal)) {
 				return;
 			}
-		} catch (IOException e) {
-			log.severe("Unable to create signs.json. Disabling plugin.");
-			e.printStackTrace();
-			pm.disablePlugin(this);
-			return;
 		}
 
-		if (signsFile.length() == 0) {
-			log.info("No signs loaded. (signs.json is empty)");
+		if (signsFormat == null) {
+			loadDatabaseSignsData();
 			return;
 		}
 
-		FileReader fileReader;
-		try {
-			fileReader = new FileReader(signsFile);
-		} catch (FileNotFoundException e) {
-			// Shouldn't happen cause the file was created up there ^
-			return;
+		shardedStore = new ShardedSignStore(this, new File(getDataFolder(), WORLDS_FOLDER), signsFormat,
+				getConfig().getLong("journalCompactionSize") * 1024, getConfig().getInt("keepGenerations"),
+				getConfig().getBoolean("acceptDataWithoutChecksum"));
+		signsStore = shardedStore;
+
+		for (World world : getServer().getWorlds()) {
+			loadWorldSigns(world, false);
 		}
 
-		JSONParser parser = new JSONParser();
-		Object array;
+		log.info(loadedSigns.size() + " signs " + (chunked ? "in loaded chunks." : "loaded."));
+	}
+
+	/**
+	 * Open the database. Signs in the per world files, e.g. from before
+	 * dataFormat was changed, are moved into the database first.
+	 */
+	private void loadDatabaseSignsData() {
+		File signsFile = databaseFile;
+		File worldsFolder = new File(getDataFolder(), WORLDS_FOLDER);
 
 		try {
-			array = parser.parse(fileReader);
-		} catch (ParseException pe) {
-			log.severe("Unable to parse signs.json! Disabling plugin.");
-			log.severe(pe.toString());
-			pm.disablePlugin(this);
-			return;
+			SignsFormat[] formats = { new JsonSignsFormat(log), new BinarySignsFormat() };
+			for (String world : ShardedSignStore.listWorlds(worldsFolder)) {
+				for (SignsFormat format : formats) {
+					SignsGenerations generations = new SignsGenerations(new File(worldsFolder, world),
+							format, getConfig().getBoolean("acceptDataWithoutChecksum"));
+					if (generations.isEmpty()) {
+						continue;
+					}
+
+					log.info("Migrating the signs of '" + world + "' to " + signsFile.getName() + "...");
+					List<SignRecord> records = generations.readRecords(log);
+					SqlSignStore.writeAll(signsFile, records);
+					generations.retire();
+					log.info("Migrated " + records.size() + " signs.");
+				}
+			}
+
+			long pollInterval = 0;
+			if (!getConfig().getString("sharedDatabase").isEmpty()) {
+				pollInterval = Math.max(getConfig().getInt("sharedPollInterval") * 20L, 1);
+			}
+			long changeRetention = Math.max(getConfig().getLong("sharedChangeRetention"), 1) * 60 * 1000;
+			signsDatabase = SqlSignStore.open(this, signsFile, pollInterval, changeRetention);
 		} catch (IOException e) {
-			log.severe("IOException while trying to parse signs.json! Disabling plugin.");
-			e.printStackTrace();
+			log.severe("Unable to load " + signsFile.getName() + "! Disabling plugin.");
+			log.severe(e.toString());
 			pm.disablePlugin(this);
 			return;
 		}
 
-		// Ensure that the root element is an array
-		JSONArray arr;
-		try {
-			arr = (JSONArray) array;
-		} catch (ClassCastException e) {
-			log.severe("Error while loading signs.json, the root element isn't an array! Disabling plugin.");
-			e.printStackTrace();
-			pm.disablePlugin(this);
-			return;
+		signsStore = signsDatabase;
+		for (World world : getServer().getWorlds()) {
+			loadWorldSigns(world, false);
 		}
 
-		int blockNum = 0; // For error messages
-		for (Object object : arr) {
-			JSONObject obj;
-			try {
-				obj = (JSONObject) object;
-			} catch (ClassCastException e) {
-				log.warning("Found a non-object in the blocks list while loading signs.json. Skipping.");
-				continue;
-			}
+		log.info(signsDatabase.getSignCount() + " signs in " + signsFile.getName() + ", "
+				+ loadedSigns.size() + " in loaded chunks.");
+	}
 
-			blockNum++;
+	/**
+	 * Bring a world's signs into memory. With the data files, the world's
+	 * file is converted first if dataFormat has changed since it was written.
+	 * 
+	 * @param world
+	 * @param background Whether to read the files on the background thread,
+	 *            e.g. for a world loaded while the server is running. The
+	 *            signs are added on the server thread once they've been read.
+	 */
+	protected void loadWorldSigns(World world, boolean background) {
+		final String name = world.getName();
 
-			if (!obj.containsKey("world") || !obj.containsKey("x") || !obj.containsKey("y")
-					|| !obj.containsKey("z") || !obj.containsKey("url")) {
-				log.warning("Missing data for block #" + blockNum
-						+ " while loading signs.json. Skipping.");
-				continue;
-			}
+		if (signsDatabase != null) {
+			// Chunks are read from the database as the world loads them
+			loadedSigns.setChunkSource(name, signsDatabase);
+			loadLoadedChunks(world);
+			return;
+		}
 
-			String worldName, urlString;
-			int x, y, z;
-			try {
-				worldName = (String) obj.get("world");
-				x = ((Number) obj.get("x")).intValue();
-				y = ((Number) obj.get("y")).intValue();
-				z = ((Number) obj.get("z")).intValue();
-				urlString = (String) obj.get("url");
-			} catch (ClassCastException e) {
-				log.warning("Found malformed data for a block while loading signs.json. Skipping.");
-				continue;
-			}
+		if (shardedStore.getWriter(name) != null) {
+			// Already loaded
+			return;
+		}
 
-			assert (worldName != null && urlString != null);
+		// Changes made while the files are being read are queued up as usual
+		final SignsWriter writer = shardedStore.openWorld(name);
+		final boolean chunked = loadedSigns.isChunked();
 
-			// Ensure world for this block exists
-			World world = getServer().getWorld(worldName);
-			if (world == null) {
-				log.warning("The world '" + worldName + "' for block #" + blockNum
-						+ " doesn't exist on the server. Skipping.");
-				continue;
+		if (!background) {
+			Runnable add = readWorldSigns(name, writer, chunked);
+			if (add != null) {
+				add.run();
 			}
+			return;
+		}
 
-			Location location = new Location(world, x, y, z);
+		loadedSigns.worldLoading(name);
+		shardedStore.execute(new Runnable() {
+			public void run() {
+				final Runnable add = readWorldSigns(name, writer, chunked);
+				if (add == null || !isEnabled()) {
+					return;
+				}
 
-			// Make sure the URL is valid
-			URL url = validateURL(urlString);
-			if (url == null) {
-				log.warning("The URL for block #" + blockNum + "is invalid. Skipping.");
-				continue;
+				getServer().getScheduler().scheduleSyncDelayedTask(HyperSignsBukkit.this, new Runnable() {
+					public void run() {
+						// Skip it if the world was unloaded in the meantime
+						if (shardedStore != null && shardedStore.getWriter(name) == writer) {
+							add.run();
+						}
+					}
+				});
 			}
-
-			loadedSigns.put(location.clone(), url);
-		}
-
-		log.info(loadedSigns.size() + " signs loaded.");
+		});
 	}
 
 	/**
-	 * Attempt to save signs. If the data file doesn't exist, create it.
+	 * Save a world's signs and drop them from memory, when it's unloaded.
+	 * 
+	 * @param world
 	 */
-	protected void saveSignsData() {
-		File signsFile = new File(getDataFolder(), "signs.json");
-		FileWriter fileWriter;
-		try {
-			fileWriter = new FileWriter(signsFile);
-		} catch (IOException e) {
-			log.severe("Unable to open signs.json for writing.");
-			e.printStackTrace();
-			return;
-		}
-
-		List<Map<String, Object>> signsList = new ArrayList<Map<String, Object>>();
-
-		for (Entry<Location, URL> entry : loadedSigns.entrySet()) {
-			Location location = entry.getKey();
-			URL url = entry.getValue();
+	protected void unloadWorldSigns(World world) {
+		String name = world.getName();
 
-			// Using LinkedHashMap for the insertion-order retention
-			Map<String, Object> obj = new LinkedHashMap<String, Object>();
-			obj.put("world", location.getWorld().getName());
-			obj.put("x", (int) location.getX());
-			obj.put("y", (int) location.getY());
-			obj.put("z", (int) location.getZ());
-			obj.put("url", url.toString());
-			signsList.add(obj);
-		}
-
-		try {
-			// Save the file
-			JSONArray.writeJSONString(signsList, fileWriter);
-			fileWriter.close();
-		} catch (IOException e) {
-			log.severe("Unable to open signs.json for writing.");
-			e.printStackTrace();
+		if (signsDatabase != null) {
+			// Chunks are dropped once their changes are in the database
+			signsDatabase.run();
+			loadedSigns.unloadWorld(name);
 			return;
 		}
+
+		shardedStore.closeWorld(name);
+		loadedSigns.dropWorld(name);
 	}
 
 	/**
-	 * Handle all the HyperSigns commands. Yes I know it's all in one file...
+	 * Read a world's signs from the newest generation of its data file that's
+	 * intact, with the journals from then on replayed. Safe to call on the
+	 * background thread.
+	 * 
+	 * @param name
+	 * @param writer The world's writer.
+	 * @param chunked Whether signs are loaded chunk by chunk.
+	 * @return A task that adds the signs to memory, to run on the server
+	 *         thread. null if they couldn't be read, in which case the files
+	 *         are left alone and changes only go into the journal.
 	 */
-	public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+	private Runnable readWorldSigns(final String name, final SignsWriter writer, boolean chunked) {
+		SignsGenerations generations = writer.getGenerations();
 
-		if (command.getName().equalsIgnoreCase("url")) {
-			/* Prompt an online player to visit a URL */
+		try {
+			convertWorldSignsFiles(name, writer);
+
+			// Fall back to older generations if the newest is incomplete, e.g.
+			// after a crash or a full disk
+			List<Integer> candidates = generations.list();
+			SignIndex signs = null;
+			int base = 0;
+			for (int generation : candidates) {
+				File dataFile = generations.getDataFile(generation);
+				if (!generations.isValid(generation)) {
+					generations.warnInvalid(generation, log);
+					continue;
+				}
 
-			if (!sender.hasPermission("hypersigns.command.url")) {
-				sender.sendMessage(command.getPermissionMessage());
-				return true;
-			}
+				try {
+					if (chunked && generation == writer.getGeneration()
+							&& generations.getJournalFile(generation).length() == 0) {
+						// Up to date, so chunks can be read straight from it
+						return addChunkedWorldSigns(name, writer, MappedSignsFile.open(dataFile, log,
+								signLinks));
+					}
 
-			if (args.length < 2) {
-				sender.sendMessage("Not enough arguments.");
-				sender.sendMessage(command.getUsage());
-				return true;
+					SignIndex read = new SignIndex(false);
+					readSignsFile(dataFile, name, read);
+					signs = read;
+					base = generation;
+					break;
+				} catch (IOException e) {
+					log.warning("Unable to read " + dataFile.getName() + " of '" + name + "': " + e
+							+ ". Trying the generation before it.");
+				}
 			}
 
-			if (args.length > 2) {
-				sender.sendMessage("Too many arguments.");
-				sender.sendMessage(command.getUsage());
-				return true;
+			if (signs == null) {
+				if (!candidates.isEmpty()) {
+					throw new IOException("No generation of its data file could be read.");
+				}
+				signs = new SignIndex(false);
 			}
 
-			// Ensure first argument is an online player
-			Player recipient = Bukkit.getPlayer(args[0]);
-			if (recipient == null) {
-				sender.sendMessage("'" + args[0] + "' does not match an online player.");
-				return true;
+			int replayed = 0;
+			for (int generation : generations.getJournals(base)) {
+				replayed += replaySignsJournal(generations.getJournalFile(generation), name, signs);
 			}
 
-			// Ensure second argument is a valid URL
-			URL url = validateURL(args[1]);
-			if (url == null) {
-				sender.sendMessage("'" + args[1] + "' is not a valid URL.");
-				return true;
+			// Chunks are read straight from the data file, so fold the journals
+			// (and any older version of the file) into a new generation. Do the
+			// same to replace a broken generation.
+			boolean fellBack = !candidates.isEmpty() && base != candidates.get(0);
+			boolean fold = chunked ? !candidates.isEmpty() || replayed > 0 : fellBack;
+			if (fold) {
+				int next = writer.getGeneration() + 1;
+				generations.write(next, signs.snapshot().getRecords());
+				writer.setGeneration(next);
 			}
 
-			// We have a valid URL, send it to the player!
-			sendUrlTrigger(recipient, url);
+			if (chunked) {
+				return addChunkedWorldSigns(name, writer, fold ? MappedSignsFile.open(
+						generations.getDataFile(writer.getGeneration()), log, signLinks) : null);
+			}
 
-			return true;
-		} else if (command.getName().equalsIgnoreCase("signurl")) {
-			/* Set or remove a sign's URL trigger */
+			final SignIndex loaded = signs;
+			return new Runnable() {
+				public void run() {
+					loadedSigns.merge(loaded);
+					loadedSigns.worldLoaded(name);
+					writer.loaded();
+				}
+			};
+		} catch (IOException e) {
+			log.severe("Unable to load the signs of '" + name + "'! They'll be left as they are on disk, "
+					+ "and new changes will only be added to its journal.");
+			log.severe(e.toString());
+			return null;
+		}
+	}
 
-			if (!(sender instanceof Player)) {
-				sender.sendMessage("This command can only be used in-game.");
+	/**
+	 * Make a task that reads a world's chunks from its data file, to run on
+	 * the server thread.
+	 * 
+	 * @param name
+	 * @param writer
+	 * @param mapped null if the world has no signs stored.
+	 */
+	private Runnable addChunkedWorldSigns(final String name, final SignsWriter writer,
+			final MappedSignsFile mapped) {
+		return new Runnable() {
+			public void run() {
+				if (mapped != null) {
+					loadedSigns.setChunkSource(name, mapped);
+				}
+				loadedSigns.worldLoaded(name);
+				World world = getServer().getWorld(name);
+				if (world != null) {
+					loadLoadedChunks(world);
+				}
+				writer.loaded();
 			}
+		};
+	}
 
-			Player player = (Player) sender;
+	/**
+	 * Convert a world's data files if they were written in the other format.
+	 * The old data files are kept with a .bak extension.
+	 * 
+	 * @param name
+	 * @param writer The world's writer, moved on to the converted generation.
+	 * @throws IOException
+	 */
+	private void convertWorldSignsFiles(String name, SignsWriter writer) throws IOException {
+		SignsGenerations generations = writer.getGenerations();
+		if (!generations.list().isEmpty()) {
+			return;
+		}
 
-			if (!player.hasPermission("hypersigns.command.signurl")) {
-				player.sendMessage(command.getPermissionMessage());
-				return true;
+		SignsFormat[] formats = { new JsonSignsFormat(log), new BinarySignsFormat() };
+		for (SignsFormat format : formats) {
+			SignsGenerations old = new SignsGenerations(generations.getFolder(), format,
+					getConfig().getBoolean("acceptDataWithoutChecksum"));
+			if (format.getFileName().equals(signsFormat.getFileName()) || old.list().isEmpty()) {
+				continue;
 			}
 
-			if (args.length > 1) {
-				player.sendMessage("Too many arguments.");
-				player.sendMessage(command.getUsage());
-				return true;
-			}
+			List<SignRecord> records = old.readRecords(log);
+			int next = writer.getGeneration() + 1;
+			generations.write(next, records);
+			old.retire();
+			writer.setGeneration(next);
+			log.info("Converted " + records.size() + " signs of '" + name + "' to "
+					+ generations.getDataFile(next).getName() + ".");
+			return;
+		}
+	}
 
-			if (!signEditPlayers.containsKey(player.getName())) {
-				/* Player wants to set a sign's URL */
+	/**
+	 * Bring the signs of a world's loaded chunks into memory.
+	 * 
+	 * @param world
+	 */
+	private void loadLoadedChunks(World world) {
+		for (Chunk chunk : world.getLoadedChunks()) {
+			loadedSigns.loadChunk(world.getName(), chunk.getX(), chunk.getZ());
+		}
+	}
 
-				if (args.length == 1) {
-					// Ensure first argument is a valid URL
-					URL url = validateURL(args[0]);
-					if (url == null) {
-						player.sendMessage(ChatColor.RED + "'" + args[0] + "' is not a valid URL.");
-						return true;
-					}
-					signEditPlayers.put(player.getName(), url);
-				} else {
-					// No URL given, so right clicking will remove a link
-					// (instead of setting)
-					signEditPlayers.put(player.getName(), null);
-				}
+	/**
+	 * Read the signs from one world's data file into an index. Safe to call
+	 * on the background thread.
+	 * 
+	 * @param file
+	 * @param world Name of the world the file belongs to.
+	 * @param index
+	 * @throws IOException
+	 */
+	private void readSignsFile(File file, final String world, final SignIndex index) throws IOException {
+		if (file.length() == 0) {
+			return;
+		}
 
-				player.sendMessage(ChatColor.YELLOW + "Right click on a sign to set its URL.");
-				player.sendMessage(ChatColor.YELLOW + ChatColor.ITALIC.toString()
-						+ "Do /signurl again to cancel.");
+		// URLs are validated on the spare cores, signs are still added here
+		int threads = Math.max(Runtime.getRuntime().availableProcessors() - 1, 1);
+		SignsLoader loader = new SignsLoader(log, signLinks, threads);
+
+		loader.load(file, signsFormat, new SignsLoader.Sink() {
+			public void add(SignRecord record, SignLink link) {
+				index.put(world, record.getX(), record.getY(), record.getZ(), link);
+			}
+		});
+	}
+
+	/**
+	 * Copy the signs from an old data file or database into the configured
+	 * format, applying an old journal on top. The old file is kept with a
+	 * .bak extension and the journal is deleted.
+	 * 
+	 * @param oldFile May be null if there's only a journal.
+	 * @param oldFormat null if the old file is the database.
+	 * @param oldJournal
+	 * @return false if the migration failed and the plugin was disabled.
+	 */
+	private boolean migrateSignsData(File oldFile, SignsFormat oldFormat, File oldJournal) {
+		String target = signsFormat != null ? WORLDS_FOLDER + "/" : databaseFile.getPath();
+		String source = oldFile != null ? oldFile.getName() : oldJournal.getName();
+		log.info("Migrating " + source + " to " + target + "...");
+
+		final List<SignRecord> records = new ArrayList<SignRecord>();
+		SignsFormat.Handler handler = new SignsFormat.Handler() {
+			public void handle(SignRecord record) {
+				records.add(withWorldName(record));
+			}
+		};
+		List<SignRecord> migrated;
+		try {
+			if (oldFile == null) {
+				// Nothing but the journal
+			} else if (oldFormat != null) {
+				oldFormat.read(oldFile, handler);
 			} else {
-				/* Player wants to cancel the action */
+				SqlSignStore.readAll(oldFile, handler);
+			}
 
-				signEditPlayers.remove(player.getName());
-				sender.sendMessage(ChatColor.GREEN + "Cancelled.");
+			List<SignRecord> changes = new ArrayList<SignRecord>();
+			for (SignRecord change : new SignsJournal(oldJournal, log).read()) {
+				changes.add(withWorldName(change));
 			}
+			migrated = ShardedSignStore.applyChanges(records, changes);
 
-			return true;
+			if (signsFormat != null) {
+				ShardedSignStore.writeWorlds(new File(getDataFolder(), WORLDS_FOLDER), signsFormat, migrated);
+			} else {
+				SqlSignStore.writeAll(databaseFile, migrated);
+			}
+		} catch (IOException e) {
+			log.severe("Unable to migrate " + source + "! Disabling plugin.");
+			log.severe(e.toString());
+			pm.disablePlugin(this);
+			return false;
 		}
 
-		return false;
+		if (oldFile != null) {
+			backUp(oldFile);
+		}
+		oldJournal.delete();
+
+		log.info("Migrated " + migrated.size() + " signs.");
+		return true;
 	}
 
 	/**
-	 * Validate and return a URL from the given input string. Encodes special
-	 * characters in the URL.
+	 * Use the server's spelling of a record's world name, if the world
+	 * exists, so each world's signs end up in a single folder.
 	 * 
-	 * @param inputUrl Input URL string to validate.
-	 * @return URL object if valid, otherwise null.
+	 * @param record
 	 */
-	protected URL validateURL(String inputUrl) {
-		assert inputUrl != null;
+	private SignRecord withWorldName(SignRecord record) {
+		World world = getServer().getWorld(record.getWorld());
+		if (world == null || world.getName().equals(record.getWorld())) {
+			return record;
+		}
+		return new SignRecord(world.getName(), record.getX(), record.getY(), record.getZ(), record.getUrl());
+	}
 
-		try {
-			// URI class encodes special characters, URL class doesn't.
-			// http://docs.oracle.com/javase/6/docs/api/java/net/URL.html
-			// Therefore convert String to URI, then URI to URL.
-			URI uri = new URI(inputUrl);
-			return uri.toURL();
-		} catch (URISyntaxException e) {
-			return null;
-		} catch (MalformedURLException e) {
-			return null;
-		} catch (IllegalArgumentException e) {
-			return null;
+	/**
+	 * Rename a file that's been migrated, adding a .bak extension.
+	 * 
+	 * @param file
+	 */
+	private void backUp(File file) {
+		File backupFile = new File(file.getPath() + ".bak");
+		backupFile.delete();
+		if (!file.renameTo(backupFile)) {
+			log.warning("Unable to rename " + file.getName() + " to " + backupFile.getName() + ".");
 		}
 	}
 
 	/**
-	 * Check if the given block is a hyper sign.
+	 * Apply the changes recorded in one of a world's journals. Safe to call on
+	 * the background thread.
 	 * 
-	 * @param block
+	 * @param journalFile
+	 * @param world Name of the world the journal belongs to.
+	 * @param index
+	 * @return Number of changes replayed.
 	 */
-	protected boolean isHyperSign(Block block) {
+	private int replaySignsJournal(File journalFile, String world, SignIndex index) {
+		List<SignRecord> records;
+		try {
+			records = new SignsJournal(journalFile, log).read();
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Unable to read " + journalFile.getName() + " of '" + world
+					+ "'. Recent sign changes may be missing.", e);
+			return 0;
+		}
+
+		for (SignRecord record : records) {
+			if (record.getUrl() == null) {
+				index.remove(world, record.getX(), record.getY(), record.getZ());
+				continue;
+			}
+
+			URL url = validateURL(record.getUrl());
+			if (url != null) {
+				index.put(world, record.getX(), record.getY(), record.getZ(), signLinks.get(url));
+			}
+		}
+
+		if (!records.isEmpty()) {
+			log.info("Replayed " + records.size() + " changes from " + journalFile.getName() + " of '" + world
+					+ "'.");
+		}
+		return records.size();
+	}
+
+	/**
+	 * Link a sign to a URL and queue the change to be saved.
+	 * 
+	 * @param block
+	 * @param url
+	 */
+	protected void setHyperSign(Block block, URL url) {
+		setHyperSign(block.getWorld(), block.getX(), block.getY(), block.getZ(), url);
+	}
+
+	/**
+	 * Link the sign at the given position to a URL and queue the change to be
+	 * saved.
+	 * 
+	 * @param world
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param url
+	 */
+	protected void setHyperSign(World world, int x, int y, int z, URL url) {
+		SignLink link = signLinks.get(url);
+		loadedSigns.put(world.getName(), x, y, z, link);
+		logSignChange(new SignRecord(world.getName(), x, y, z, link.getUrlString()));
+
+		// Let the chunk's signs be dropped once they're saved if the world
+		// doesn't have the chunk loaded
+		if (loadedSigns.isChunked() && !world.isChunkLoaded(x >> 4, z >> 4)) {
+			loadedSigns.unloadChunk(world.getName(), x >> 4, z >> 4);
+		}
+	}
+
+	/**
+	 * Remove a sign's link, if it has one, and queue the change to be saved.
+	 * 
+	 * @param block
+	 */
+	protected void removeHyperSign(Block block) {
+		removeHyperSign(block.getWorld(), block.getX(), block.getY(), block.getZ());
+	}
+
+	/**
+	 * Remove the link of the sign at the given position, if it has one, and
+	 * queue the change to be saved.
+	 * 
+	 * @param world
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return Whether the sign had a link.
+	 */
+	protected boolean removeHyperSign(World world, int x, int y, int z) {
+		String name = world.getName();
+		boolean removed = loadedSigns.remove(name, x, y, z) != null;
+		// The sign may still be stored even though it wasn't in memory
+		if (removed || loadedSigns.isUnread(name, x >> 4, z >> 4)) {
+			logSignChange(new SignRecord(name, x, y, z, null));
+		}
+
+		// The chunk may have been read in just for this
+		if (loadedSigns.isChunked() && !world.isChunkLoaded(x >> 4, z >> 4)) {
+			loadedSigns.unloadChunk(name, x >> 4, z >> 4);
+		}
+		return removed;
+	}
+
+	/**
+	 * @return Sign lookups and changes that are safe to use from any thread,
+	 *         or null if the plugin isn't enabled.
+	 */
+	public HyperSignRegistry getRegistry() {
+		return registry;
+	}
+
+	/**
+	 * Find the link of the sign at the given position, even if its chunk isn't
+	 * loaded.
+	 * 
+	 * @param world
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return The sign's link, or null if it isn't a hyper sign.
+	 */
+	protected SignLink getHyperSign(World world, int x, int y, int z) {
+		if (!loadedSigns.isChunked() || world.isChunkLoaded(x >> 4, z >> 4)) {
+			return loadedSigns.get(world.getName(), x, y, z);
+		}
+
+		// Read the chunk from the data file just for this
+		loadedSigns.readChunk(world.getName(), x >> 4, z >> 4);
+		SignLink link = loadedSigns.get(world.getName(), x, y, z);
+		loadedSigns.unloadChunk(world.getName(), x >> 4, z >> 4);
+		return link;
+	}
+
+	/**
+	 * Queue a change to be saved, unless a bulk job made it, in which case
+	 * it's saved with the rest of the job's changes.
+	 * 
+	 * @param record
+	 */
+	private void logSignChange(SignRecord record) {
+		if (bulkJobs == null || !bulkJobs.logChange(record)) {
+			signsStore.logChange(record);
+		}
+	}
+
+	/**
+	 * Bring the signs in memory up to date with a change saved to the shared
+	 * database, by this server or another. Must be called on the server
+	 * thread.
+	 * 
+	 * @param change
+	 * @param link The change's link, or null if it removes the sign.
+	 */
+	protected void sharedSignChanged(SignRecord change, SignLink link) {
+		if (loadedSigns == null) {
+			return;
+		}
+
+		// A bulk job's change will be saved after this one
+		if (bulkJobs != null && bulkJobs.hasChange(change)) {
+			return;
+		}
+
+		String name = change.getWorld();
+		int x = change.getX();
+		int z = change.getZ();
+		if (loadedSigns.update(name, x, change.getY(), z, link)) {
+			return;
+		}
+
+		// A loaded chunk that didn't have any signs before
+		World world = getServer().getWorld(name);
+		if (link != null && world != null && world.isChunkLoaded(x >> 4, z >> 4)) {
+			loadedSigns.loadChunk(name, x >> 4, z >> 4);
+		}
+	}
+
+	/**
+	 * Called on the server thread with a chunk read from the database on its
+	 * background thread.
+	 * 
+	 * @param world
+	 * @param chunkX
+	 * @param chunkZ
+	 * @param stored The chunk's stored signs, or null if there are none.
+	 * @param failed Whether the chunk couldn't be read.
+	 */
+	protected void signsChunkRead(String world, int chunkX, int chunkZ, SignChunk stored, boolean failed) {
+		if (loadedSigns != null) {
+			loadedSigns.chunkRead(world, chunkX, chunkZ, stored, failed);
+		}
+	}
+
+	/**
+	 * Read the signs of every loaded chunk from the shared database again,
+	 * e.g. after missing changes saved by other servers. Chunks with unsaved
+	 * changes are kept as they are. Must be called on the server thread.
+	 */
+	protected void reloadSharedSigns() {
+		if (loadedSigns == null) {
+			return;
+		}
+
+		for (World world : getServer().getWorlds()) {
+			loadedSigns.unloadWorld(world.getName());
+			loadLoadedChunks(world);
+		}
+	}
+
+	/**
+	 * Take a snapshot of the signs that can be written out on another thread.
+	 * Must be called on the server thread.
+	 */
+	protected SignsSnapshot snapshotSignsData() {
+		return loadedSigns.snapshot();
+	}
+
+	/**
+	 * Take a snapshot of one world's signs. Must be called on the server
+	 * thread.
+	 * 
+	 * @param world
+	 */
+	protected SignsSnapshot snapshotSignsData(String world) {
+		return loadedSigns.snapshot(world);
+	}
+
+	/**
+	 * Start a new epoch for changed chunks, when changes are handed off to be
+	 * saved. Must be called on the server thread.
+	 * 
+	 * @return The epoch that every change made so far belongs to.
+	 */
+	protected int nextSignsEpoch() {
+		return loadedSigns.nextEpoch();
+	}
+
+	/**
+	 * Called on the server thread once the changes up to an epoch have been
+	 * saved.
+	 * 
+	 * @param world The world whose changes were saved, or null for every
+	 *            world.
+	 * @param epoch
+	 * @param written The world's new data file, if signs are loaded chunk by
+	 *            chunk and a snapshot was written. Otherwise null.
+	 */
+	protected void signsDataSaved(String world, int epoch, ChunkSource written) {
+		if (loadedSigns != null) {
+			loadedSigns.changesSaved(world, epoch, written);
+		}
+	}
+
+	/**
+	 * Handle all the HyperSigns commands. Yes I know it's all in one file...
+	 */
+	public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+
+		if (command.getName().equalsIgnoreCase("url")) {
+			/* Prompt online players to visit a URL */
+
+			if (!sender.hasPermission("hypersigns.command.url")) {
+				sender.sendMessage(command.getPermissionMessage());
+				return true;
+			}
+
+			if (args.length < 2) {
+				sender.sendMessage("Not enough arguments.");
+				sender.sendMessage(command.getUsage());
+				return true;
+			}
+
+			if (args.length > 2) {
+				sender.sendMessage("Too many arguments.");
+				sender.sendMessage(command.getUsage());
+				return true;
+			}
+
+			// Ensure second argument is a valid URL
+			URL url = validateURL(args[1]);
+			if (url == null) {
+				sender.sendMessage("'" + args[1] + "' is not a valid URL.");
+				return true;
+			}
+
+			if (args[0].startsWith("@")) {
+				// Broadcast to a group of players
+				if (!sender.hasPermission("hypersigns.command.url.broadcast")) {
+					sender.sendMessage(command.getPermissionMessage());
+					return true;
+				}
+
+				List<Player> recipients = getBroadcastRecipients(sender, args[0]);
+				if (recipients == null) {
+					return true;
+				}
+				if (recipients.isEmpty()) {
+					sender.sendMessage("No online players match '" + args[0] + "'.");
+					return true;
+				}
+
+				// Encoded once for everyone
+				urlBroadcaster.broadcast(recipients, signLinks.create(url), sender);
+				return true;
+			}
+
+			// Ensure first argument is an online player
+			Player recipient = Bukkit.getPlayer(args[0]);
+			if (recipient == null) {
+				sender.sendMessage("'" + args[0] + "' does not match an online player.");
+				return true;
+			}
+
+			// We have a valid URL, send it to the player!
+			sendUrlTrigger(recipient, signLinks.create(url));
+
+			return true;
+		} else if (command.getName().equalsIgnoreCase("signurl")) {
+			/* Set or remove a sign's URL trigger */
+
+			if (!(sender instanceof Player)) {
+				sender.sendMessage("This command can only be used in-game.");
+			}
+
+			Player player = (Player) sender;
+
+			if (!player.hasPermission("hypersigns.command.signurl")) {
+				player.sendMessage(command.getPermissionMessage());
+				return true;
+			}
+
+			if (args.length > 1) {
+				player.sendMessage("Too many arguments.");
+				player.sendMessage(command.getUsage());
+				return true;
+			}
+
+			if (!signEditPlayers.containsKey(player.getName())) {
+				/* Player wants to set a sign's URL */
+
+				if (args.length == 1) {
+					// Ensure first argument is a valid URL
+					URL url = validateURL(args[0]);
+					if (url == null) {
+						player.sendMessage(ChatColor.RED + "'" + args[0] + "' is not a valid URL.");
+						return true;
+					}
+					signEditPlayers.put(player.getName(), url);
+				} else {
+					// No URL given, so right clicking will remove a link
+					// (instead of setting)
+					signEditPlayers.put(player.getName(), null);
+				}
+
+				player.sendMessage(ChatColor.YELLOW + "Right click on a sign to set its URL.");
+				player.sendMessage(ChatColor.YELLOW + ChatColor.ITALIC.toString()
+						+ "Do /signurl again to cancel.");
+			} else {
+				/* Player wants to cancel the action */
+
+				signEditPlayers.remove(player.getName());
+				sender.sendMessage(ChatColor.GREEN + "Cancelled.");
+			}
+
+			return true;
+		} else if (command.getName().equalsIgnoreCase("hypersigns")) {
+			/* Manage the plugin's data */
+
+			if (!sender.hasPermission("hypersigns.command.admin")) {
+				sender.sendMessage(command.getPermissionMessage());
+				return true;
+			}
+
+			if (args.length < 1) {
+				sender.sendMessage("Not enough arguments.");
+				sender.sendMessage(command.getUsage());
+				return true;
+			}
+
+			String action = args[0].toLowerCase();
+			int maxArgs;
+			if (action.equals("export") || action.equals("import")) {
+				maxArgs = 2;
+			} else if (action.equals("set")) {
+				maxArgs = 9;
+			} else if (action.equals("setradius") || action.equals("replace")) {
+				maxArgs = 3;
+			} else {
+				maxArgs = 1;
+			}
+
+			if (args.length > maxArgs) {
+				sender.sendMessage("Too many arguments.");
+				sender.sendMessage(command.getUsage());
+				return true;
+			}
+
+			if (action.equals("export")) {
+				exportSignsData(sender, args.length == 2 ? args[1] : "signs-export.json");
+			} else if (action.equals("import")) {
+				importSignsData(sender, args.length == 2 ? args[1] : "signs-import.json");
+			} else if (action.equals("stats")) {
+				sendStats(sender);
+			} else if (action.equals("reload")) {
+				reloadConfigAndSigns(sender);
+			} else if (action.equals("set")) {
+				startSetJob(sender, command, args);
+			} else if (action.equals("setradius")) {
+				startSetRadiusJob(sender, command, args);
+			} else if (action.equals("replace")) {
+				startReplaceJob(sender, command, args);
+			} else if (action.equals("purge")) {
+				bulkJobs.start(new PurgeSignsJob(this, sender));
+			} else if (action.equals("cancel")) {
+				int cancelled = bulkJobs.cancel();
+				if (cancelled == 0) {
+					sender.sendMessage("No bulk jobs are running.");
+				}
+			} else {
+				sender.sendMessage("Unknown action '" + args[0] + "'.");
+				sender.sendMessage(command.getUsage());
+			}
+
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * /hypersigns reload: read config.yml again, and bring the signs in
+	 * memory up to date with the data on disk, e.g. after it's been edited by
+	 * hand. A data file edited by hand is only read with
+	 * acceptDataWithoutChecksum turned on and its .sum file deleted, and that
+	 * setting is read again here too.
+	 * 
+	 * @param sender
+	 */
+	private void reloadConfigAndSigns(CommandSender sender) {
+		reloadConfig();
+		FileConfiguration config = getConfig();
+		clickThrottle = new ClickThrottle(config.getLong("clickCooldown"),
+				config.getLong("signClickCooldown"));
+		int rebuilt = signLinks.setFallback(config.getString("fallbackUrlTriggerPrefix"),
+				config.getString("fallbackUrlTriggerSuffix"));
+		sender.sendMessage(ChatColor.GREEN + "Reloaded the cooldowns, fallback messages and "
+				+ "acceptDataWithoutChecksum from config.yml (" + rebuilt + " URLs changed). Other settings "
+				+ "apply after a restart.");
+
+		if (signsDatabase != null) {
+			// Chunks without unsaved changes are read from the database again
+			reloadSharedSigns();
+			sender.sendMessage(ChatColor.GREEN + "Read the signs in loaded chunks from "
+					+ databaseFile.getName() + " again.");
+			return;
+		}
+
+		for (String world : shardedStore.getOpenWorlds()) {
+			reloadWorldSigns(sender, world);
+		}
+	}
+
+	/**
+	 * Read a world's signs from disk on the background thread, and apply
+	 * whatever differs from memory on the server thread in one go.
+	 * 
+	 * @param sender
+	 * @param world
+	 */
+	private void reloadWorldSigns(final CommandSender sender, final String world) {
+		final SignsWriter writer = shardedStore.getWriter(world);
+		if (!writer.isLoaded()) {
+			sender.sendMessage(ChatColor.RED + "The signs of '" + world + "' couldn't be loaded, so they "
+					+ "can't be reloaded.");
+			return;
+		}
+
+		// Unsaved changes go to the journal first, so they don't show up as
+		// differences
+		writer.run();
+		final SignsSnapshot snapshot = loadedSigns.snapshot(world);
+		final SignsGenerations generations = new SignsGenerations(writer.getGenerations().getFolder(),
+				writer.getGenerations().getFormat(), getConfig().getBoolean("acceptDataWithoutChecksum"));
+
+		shardedStore.execute(new Runnable() {
+			public void run() {
+				final List<SignRecord> changes = new ArrayList<SignRecord>();
+				final List<String> oldUrls = new ArrayList<String>();
+				IOException error = null;
+				try {
+					List<SignRecord> stored = generations.readRecords(log);
+					diffSigns(snapshot.getRecords(), stored, changes, oldUrls);
+				} catch (IOException e) {
+					error = e;
+				}
+
+				final IOException readError = error;
+				getServer().getScheduler().scheduleSyncDelayedTask(HyperSignsBukkit.this, new Runnable() {
+					public void run() {
+						if (readError != null) {
+							sender.sendMessage(ChatColor.RED + "Unable to reload the signs of '" + world
+									+ "': " + readError.getMessage());
+							return;
+						}
+						if (shardedStore == null || shardedStore.getWriter(world) != writer) {
+							// Unloaded in the meantime
+							return;
+						}
+						int applied = applySignsDiff(world, changes, oldUrls);
+						sender.sendMessage(ChatColor.GREEN + "Reloaded the signs of '" + world + "': "
+								+ applied + " changed.");
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Work out the changes that turn one list of signs into another.
+	 * 
+	 * @param current Signs in memory.
+	 * @param stored Signs on disk.
+	 * @param changes Receives the new state of each sign that differs.
+	 * @param oldUrls Receives each changed sign's URL in memory, or null if
+	 *            it isn't in memory.
+	 */
+	private static void diffSigns(List<SignRecord> current, List<SignRecord> stored, List<SignRecord> changes,
+			List<String> oldUrls) {
+		HashMap<String, SignRecord> remaining = new HashMap<String, SignRecord>();
+		for (SignRecord record : current) {
+			remaining.put(record.getX() + "," + record.getY() + "," + record.getZ(), record);
+		}
+
+		for (SignRecord record : stored) {
+			// Invalid URLs are skipped when loading too, so they count as no sign
+			URL url = validateURL(record.getUrl());
+			if (url == null) {
+				continue;
+			}
+
+			SignRecord old = remaining.remove(record.getX() + "," + record.getY() + "," + record.getZ());
+			if (old == null || !old.getUrl().equals(url.toString())) {
+				changes.add(record);
+				oldUrls.add(old != null ? old.getUrl() : null);
+			}
+		}
+
+		for (SignRecord old : remaining.values()) {
+			changes.add(new SignRecord(old.getWorld(), old.getX(), old.getY(), old.getZ(), null));
+			oldUrls.add(old.getUrl());
+		}
+	}
+
+	/**
+	 * Apply reloaded changes to a world's signs, skipping signs that have
+	 * changed again since the snapshot the changes were worked out from.
+	 * Must be called on the server thread.
+	 * 
+	 * @param name
+	 * @param changes
+	 * @param oldUrls
+	 * @return Number of signs changed.
+	 */
+	private int applySignsDiff(String name, List<SignRecord> changes, List<String> oldUrls) {
+		World world = getServer().getWorld(name);
+		if (world == null) {
+			return 0;
+		}
+
+		int applied = 0;
+		for (int i = 0; i < changes.size(); i++) {
+			SignRecord change = changes.get(i);
+			int x = change.getX();
+			int y = change.getY();
+			int z = change.getZ();
+
+			SignLink live = getHyperSign(world, x, y, z);
+			String liveUrl = live != null ? live.getUrlString() : null;
+			String oldUrl = oldUrls.get(i);
+			if (liveUrl == null ? oldUrl != null : !liveUrl.equals(oldUrl)) {
+				continue;
+			}
+
+			if (change.getUrl() == null) {
+				removeHyperSign(world, x, y, z);
+				applied++;
+				continue;
+			}
+
+			URL url = validateURL(change.getUrl());
+			if (url != null) {
+				setHyperSign(world, x, y, z, url);
+				applied++;
+			}
+		}
+		return applied;
+	}
+
+	/**
+	 * /hypersigns set &lt;URL|none&gt; &lt;x1&gt; &lt;y1&gt; &lt;z1&gt; &lt;x2&gt; &lt;y2&gt;
+	 * &lt;z2&gt; [world]
+	 * 
+	 * @param sender
+	 * @param command
+	 * @param args
+	 */
+	private void startSetJob(CommandSender sender, Command command, String[] args) {
+		if (args.length < 8) {
+			sender.sendMessage("Not enough arguments.");
+			sender.sendMessage(command.getUsage());
+			return;
+		}
+
+		World world;
+		if (args.length == 9) {
+			world = getServer().getWorld(args[8]);
+			if (world == null) {
+				sender.sendMessage("World '" + args[8] + "' doesn't exist.");
+				return;
+			}
+		} else if (sender instanceof Player) {
+			world = ((Player) sender).getWorld();
+		} else {
+			sender.sendMessage("A world must be given when not in-game.");
+			return;
+		}
+
+		int[] coords = new int[6];
+		for (int i = 0; i < coords.length; i++) {
+			try {
+				coords[i] = Integer.parseInt(args[i + 2]);
+			} catch (NumberFormatException e) {
+				sender.sendMessage("'" + args[i + 2] + "' is not a valid coordinate.");
+				return;
+			}
+		}
+
+		if (!isBulkUrl(args[1])) {
+			sender.sendMessage("'" + args[1] + "' is not a valid URL.");
+			return;
+		}
+
+		if (!checkBulkVolume(sender, SetUrlJob.volume(coords[0], coords[1], coords[2], coords[3], coords[4],
+				coords[5]))) {
+			return;
+		}
+
+		bulkJobs.start(new SetUrlJob(this, sender, world, coords[0], coords[1], coords[2], coords[3],
+				coords[4], coords[5], getBulkUrl(args[1])));
+	}
+
+	/**
+	 * /hypersigns setradius &lt;URL|none&gt; &lt;chunks&gt;, for signs in the
+	 * chunks around the player.
+	 * 
+	 * @param sender
+	 * @param command
+	 * @param args
+	 */
+	private void startSetRadiusJob(CommandSender sender, Command command, String[] args) {
+		if (!(sender instanceof Player)) {
+			sender.sendMessage("This action can only be used in-game.");
+			return;
+		}
+
+		if (args.length < 3) {
+			sender.sendMessage("Not enough arguments.");
+			sender.sendMessage(command.getUsage());
+			return;
+		}
+
+		int radius;
+		try {
+			radius = Integer.parseInt(args[2]);
+		} catch (NumberFormatException e) {
+			radius = -1;
+		}
+		if (radius < 0) {
+			sender.sendMessage("'" + args[2] + "' is not a valid radius.");
+			return;
+		}
+
+		if (!isBulkUrl(args[1])) {
+			sender.sendMessage("'" + args[1] + "' is not a valid URL.");
+			return;
+		}
+
+		Location centre = ((Player) sender).getLocation();
+		int chunkX = centre.getBlockX() >> 4;
+		int chunkZ = centre.getBlockZ() >> 4;
+		World world = centre.getWorld();
+		double side = (2.0 * radius + 1) * 16;
+		if (!checkBulkVolume(sender, side * side * world.getMaxHeight())) {
+			return;
+		}
+
+		bulkJobs.start(new SetUrlJob(this, sender, world, (chunkX - radius) << 4, 0, (chunkZ - radius) << 4,
+				((chunkX + radius) << 4) + 15, world.getMaxHeight() - 1, ((chunkZ + radius) << 4) + 15,
+				getBulkUrl(args[1])));
+	}
+
+	/**
+	 * Check that a cuboid isn't bigger than bulkJobMaxVolume, and tell the
+	 * sender if it is.
+	 * 
+	 * @param sender
+	 * @param volume Number of blocks in the cuboid.
+	 * @return Whether a job may be started for it.
+	 */
+	private boolean checkBulkVolume(CommandSender sender, double volume) {
+		long max = getConfig().getLong("bulkJobMaxVolume");
+		if (max > 0 && volume > max) {
+			sender.sendMessage("That's " + (long) volume + " blocks. At most " + max
+					+ " can be changed at once.");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * /hypersigns replace &lt;old URL&gt; &lt;new URL&gt;
+	 * 
+	 * @param sender
+	 * @param command
+	 * @param args
+	 */
+	private void startReplaceJob(CommandSender sender, Command command, String[] args) {
+		if (args.length < 3) {
+			sender.sendMessage("Not enough arguments.");
+			sender.sendMessage(command.getUsage());
+			return;
+		}
+
+		URL oldUrl = validateURL(args[1]);
+		if (oldUrl == null) {
+			sender.sendMessage("'" + args[1] + "' is not a valid URL.");
+			return;
+		}
+
+		URL newUrl = validateURL(args[2]);
+		if (newUrl == null) {
+			sender.sendMessage("'" + args[2] + "' is not a valid URL.");
+			return;
+		}
+
+		bulkJobs.start(new ReplaceUrlJob(this, sender, oldUrl, newUrl));
+	}
+
+	/**
+	 * @param arg
+	 * @return Whether the argument is a valid URL, or "none".
+	 */
+	private static boolean isBulkUrl(String arg) {
+		return arg.equalsIgnoreCase("none") || validateURL(arg) != null;
+	}
+
+	/**
+	 * @param arg
+	 * @return The URL, or null for "none".
+	 */
+	private static URL getBulkUrl(String arg) {
+		return arg.equalsIgnoreCase("none") ? null : validateURL(arg);
+	}
+
+	/**
+	 * Show how much work the plugin is doing.
+	 * 
+	 * @param sender
+	 */
+	private void sendStats(CommandSender sender) {
+		long checked = metrics.blockEventsChecked.get();
+		long filtered = metrics.blockEventsFiltered.get();
+
+		sender.sendMessage(ChatColor.YELLOW + "HyperSigns stats:");
+		sender.sendMessage("Signs in memory: " + loadedSigns.size() + ", distinct URLs: "
+				+ signLinks.size() + ", loaded in " + LatencyHistogram.formatNanos(metrics.loadTime.get()));
+		if (loadedSigns.isChunked()) {
+			sender.sendMessage("Chunk loads: " + metrics.chunkLoadTime.summary());
+		}
+		sender.sendMessage("Interact events: " + metrics.interactEvents.get() + ", dismissed early: "
+				+ metrics.interactEventsFiltered.get() + ", sign hits: " + metrics.signHits.get());
+		sender.sendMessage("URL triggers sent: " + metrics.triggersClient.get() + " to the client ("
+				+ metrics.triggersById.get() + " by id), " + metrics.triggersFallback.get() + " in chat, "
+				+ metrics.triggersSuppressed.get() + " suppressed by cooldowns");
+		sender.sendMessage("/url broadcasts still sending: " + urlBroadcaster.getPendingCount());
+		sender.sendMessage("Block events checked: " + checked + ", outside sign chunks: "
+				+ filtered + (checked > 0 ? " (" + (filtered * 100 / checked) + "%)" : "")
+				+ ", signs cleared: " + metrics.blockEventClears.get());
+		if (signsFormat != null) {
+			sender.sendMessage("Data file saves: " + metrics.saveTime.summary());
+			sender.sendMessage("Journal appends: " + metrics.journalAppendTime.summary());
+		} else {
+			sender.sendMessage("Database writes: " + metrics.databaseWriteTime.summary());
+		}
+		sender.sendMessage("Bytes written: " + metrics.bytesWritten.get());
+	}
+
+	/**
+	 * Write all loaded signs to a JSON file in the data folder, in the
+	 * background.
+	 * 
+	 * @param sender
+	 * @param fileName
+	 */
+	private void exportSignsData(final CommandSender sender, String fileName) {
+		final File file = getDataFile(fileName);
+		if (file == null) {
+			sender.sendMessage(ChatColor.RED + "'" + fileName + "' is not a valid file name.");
+			return;
+		}
+
+		sender.sendMessage(ChatColor.YELLOW + "Exporting signs to " + file.getName() + "...");
+
+		signsStore.export(file, new JsonSignsFormat(log), new SignStore.ExportCallback() {
+			public void done(final int count, final IOException error) {
+				// Report back on the server thread
+				getServer().getScheduler().scheduleSyncDelayedTask(HyperSignsBukkit.this, new Runnable() {
+					public void run() {
+						if (error != null) {
+							sender.sendMessage(ChatColor.RED + "Unable to export signs: "
+									+ error.getMessage());
+						} else {
+							sender.sendMessage(ChatColor.GREEN + "Exported " + count + " signs to "
+									+ file.getName() + ".");
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Set the URL of every sign listed in a JSON file in the data folder.
+	 * Signs that are already loaded but not in the file are left alone.
+	 * 
+	 * @param sender
+	 * @param fileName
+	 */
+	private void importSignsData(CommandSender sender, String fileName) {
+		File file = getDataFile(fileName);
+		if (file == null) {
+			sender.sendMessage(ChatColor.RED + "'" + fileName + "' is not a valid file name.");
+			return;
+		}
+		if (!file.isFile()) {
+			sender.sendMessage(ChatColor.RED + "'" + fileName + "' doesn't exist in the data folder.");
+			return;
+		}
+
+		final List<SignRecord> records = new ArrayList<SignRecord>();
+		try {
+			new JsonSignsFormat(log).read(file, new SignsFormat.Handler() {
+				public void handle(SignRecord record) {
+					records.add(record);
+				}
+			});
+		} catch (IOException e) {
+			sender.sendMessage(ChatColor.RED + "Unable to import signs: " + e.getMessage());
+			return;
+		}
+
+		int imported = 0;
+		for (SignRecord record : records) {
+			World world = getServer().getWorld(record.getWorld());
+			URL url = validateURL(record.getUrl());
+			if (world == null || url == null) {
+				continue;
+			}
+
+			setHyperSign(world, record.getX(), record.getY(), record.getZ(), url);
+			imported++;
+		}
+
+		sender.sendMessage(ChatColor.GREEN + "Imported " + imported + " of " + records.size()
+				+ " signs from " + file.getName() + ".");
+	}
+
+	/**
+	 * Resolve a file name given in a command to a file in the data folder.
+	 * 
+	 * @param fileName
+	 * @return The file, or null if the name points outside the data folder
+	 *         or at one of the plugin's own files.
+	 */
+	private File getDataFile(String fileName) {
+		if (fileName.isEmpty() || fileName.equals(".") || fileName.equals("..")
+				|| !new File(fileName).getName().equals(fileName)) {
+			return null;
+		}
+
+		// Case insensitive, as file names are on some platforms
+		String lowerName = fileName.toLowerCase();
+		for (String reserved : RESERVED_FILE_NAMES) {
+			if (lowerName.equals(reserved) || lowerName.startsWith(reserved + ".")
+					|| lowerName.startsWith(reserved + "-")) {
+				return null;
+			}
+		}
+
+		return new File(getDataFolder(), fileName);
+	}
+
+	/**
+	 * Find the online players matched by a broadcast target: @all,
+	 * @world:&lt;name&gt;, @radius:&lt;blocks&gt; (around the sender) or
+	 * @perm:&lt;permission&gt;.
+	 * 
+	 * @param sender Told what's wrong if the target is invalid.
+	 * @param target
+	 * @return The matching players, or null if the target is invalid.
+	 */
+	protected List<Player> getBroadcastRecipients(CommandSender sender, String target) {
+		String type = target;
+		String value = null;
+		int colon = target.indexOf(':');
+		if (colon != -1) {
+			type = target.substring(0, colon);
+			value = target.substring(colon + 1);
+		}
+
+		List<Player> recipients = new ArrayList<Player>();
+
+		if (type.equalsIgnoreCase("@all") && value == null) {
+			for (Player player : getServer().getOnlinePlayers()) {
+				recipients.add(player);
+			}
+		} else if (type.equalsIgnoreCase("@world") && value != null) {
+			World world = getServer().getWorld(value);
+			if (world == null) {
+				sender.sendMessage("World '" + value + "' doesn't exist.");
+				return null;
+			}
+			recipients.addAll(world.getPlayers());
+		} else if (type.equalsIgnoreCase("@radius") && value != null) {
+			if (!(sender instanceof Player)) {
+				sender.sendMessage("Only players can broadcast to a radius.");
+				return null;
+			}
+
+			double radius;
+			try {
+				radius = Double.parseDouble(value);
+			} catch (NumberFormatException e) {
+				radius = -1;
+			}
+			if (!(radius >= 0)) {
+				sender.sendMessage("'" + value + "' is not a valid radius.");
+				return null;
+			}
+
+			Location centre = ((Player) sender).getLocation();
+			double radiusSquared = radius * radius;
+			for (Player player : centre.getWorld().getPlayers()) {
+				if (player.getLocation().distanceSquared(centre) <= radiusSquared) {
+					recipients.add(player);
+				}
+			}
+		} else if (type.equalsIgnoreCase("@perm") && value != null && value.length() > 0) {
+			for (Player player : getServer().getOnlinePlayers()) {
+				if (player.hasPermission(value)) {
+					recipients.add(player);
+				}
+			}
+		} else {
+			sender.sendMessage("'" + target + "' is not a valid target. Use @all, @world:<name>, "
+					+ "@radius:<blocks> or @perm:<permission>.");
+			return null;
+		}
+
+		return recipients;
+	}
+
+	/**
+	 * Validate and return a URL from the given input string. Encodes special
+	 * characters in the URL.
+	 * 
+	 * @param inputUrl Input URL string to validate.
+	 * @return URL object if valid, otherwise null.
+	 */
+	protected static URL validateURL(String inputUrl) {
+		assert inputUrl != null;
+
+		try {
+			// URI class encodes special characters, URL class doesn't.
+			// http://docs.oracle.com/javase/6/docs/api/java/net/URL.html
+			// Therefore convert String to URI, then URI to URL.
+			URI uri = new URI(inputUrl);
+			return uri.toURL();
+		} catch (URISyntaxException e) {
+			return null;
+		} catch (MalformedURLException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Check if the given block is a hyper sign.
+	 * 
+	 * @param block
+	 */
+	protected boolean isHyperSign(Block block) {
+		// Most blocks aren't anywhere near a hyper sign
+		if (!loadedSigns.mightContain(block)) {
+			return false;
+		}
+
 		// Ignore blocks that aren't signs
 		if (block.getType() != Material.SIGN_POST && block.getType() != Material.WALL_SIGN) {
 			return false;
 		}
 
 		// Look to see if this sign is loaded as a hypersign
-		URL url = loadedSigns.get(block.getLocation());
-		if (url == null) {
+		SignLink link = loadedSigns.get(block);
+		if (link == null) {
 			return false;
 		}
 
@@ -0,0 +1,237 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * The human readable signs.json format: an array of objects with world, x, y,
+ * z and url fields.
+ */
+public class JsonSignsFormat implements SignsFormat {
+
+	private final Logger log;
+
+	public JsonSignsFormat(Logger log) {
+		this.log = log;
+	}
+
+	public String getFileName() {
+		return "signs.json";
+	}
+
+	/**
+	 * Stream the records out of the file one at a time, without building the
+	 * whole JSON tree in memory first.
+	 */
+	public void read(File file, Handler handler) throws IOException {
+		Reader fileReader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+		JSONParser parser = new JSONParser();
+		try {
+			parser.parse(fileReader, new RecordsHandler(log, file.getName(), handler));
+		} catch (ParseException pe) {
+			throw new IOException("Unable to parse " + file.getName() + ": " + pe);
+		} finally {
+			fileReader.close();
+		}
+	}
+
+	/**
+	 * Turns the parser's events into SignRecords. Records are objects directly
+	 * inside the root array, so only values at that depth are looked at.
+	 */
+	private static class RecordsHandler implements ContentHandler {
+
+		/**
+		 * Stands in for an object or array where a field should be a string or
+		 * number.
+		 */
+		private static final Object NESTED = new Object();
+
+		private final Logger log;
+		private final String fileName;
+		private final Handler handler;
+		private int depth = 0;
+		private int blockNum = 0; // For error messages
+		private String key;
+		private Object world, x, y, z, url;
+
+		RecordsHandler(Logger log, String fileName, Handler handler) {
+			this.log = log;
+			this.fileName = fileName;
+			this.handler = handler;
+		}
+
+		public void startJSON() {
+		}
+
+		public void endJSON() {
+		}
+
+		public boolean startArray() throws IOException {
+			startValue(false);
+			depth++;
+			return true;
+		}
+
+		public boolean endArray() {
+			depth--;
+			return true;
+		}
+
+		public boolean startObject() throws IOException {
+			startValue(true);
+			depth++;
+			return true;
+		}
+
+		public boolean endObject() {
+			depth--;
+			if (depth == 1) {
+				endRecord();
+			}
+			return true;
+		}
+
+		public boolean startObjectEntry(String key) {
+			if (depth == 2) {
+				this.key = key;
+			}
+			return true;
+		}
+
+		public boolean endObjectEntry() {
+			if (depth == 2) {
+				key = null;
+			}
+			return true;
+		}
+
+		public boolean primitive(Object value) throws IOException {
+			if (depth == 0) {
+				throw new IOException("The root element of " + fileName + " isn't an array.");
+			} else if (depth == 1) {
+				log.warning("Found a non-object in the blocks list while loading " + fileName
+						+ ". Skipping.");
+			} else if (depth == 2) {
+				setField(value);
+			}
+			return true;
+		}
+
+		/**
+		 * Check where an object or array starts.
+		 */
+		private void startValue(boolean object) throws IOException {
+			if (depth == 0 && object) {
+				throw new IOException("The root element of " + fileName + " isn't an array.");
+			} else if (depth == 1) {
+				if (object) {
+					blockNum++;
+					world = x = y = z = url = null;
+				} else {
+					log.warning("Found a non-object in the blocks list while loading " + fileName
+							+ ". Skipping.");
+				}
+			} else if (depth == 2) {
+				setField(NESTED);
+			}
+		}
+
+		private void setField(Object value) {
+			if ("world".equals(key)) {
+				world = value;
+			} else if ("x".equals(key)) {
+				x = value;
+			} else if ("y".equals(key)) {
+				y = value;
+			} else if ("z".equals(key)) {
+				z = value;
+			} else if ("url".equals(key)) {
+				url = value;
+			}
+		}
+
+		private void endRecord() {
+			if (world == null || x == null || y == null || z == null || url == null) {
+				log.warning("Missing data for block #" + blockNum + " while loading " + fileName
+						+ ". Skipping.");
+				return;
+			}
+
+			if (!(world instanceof String) || !(x instanceof Number) || !(y instanceof Number)
+					|| !(z instanceof Number) || !(url instanceof String)) {
+				log.warning("Found malformed data for a block while loading " + fileName + ". Skipping.");
+				return;
+			}
+
+			handler.handle(new SignRecord((String) world, ((Number) x).intValue(), ((Number) y).intValue(),
+					((Number) z).intValue(), (String) url));
+		}
+	}
+
+	/**
+	 * Write the records as a JSON array of objects, in the same layout that
+	 * json-simple produces.
+	 */
+	public void write(List<SignRecord> records, OutputStream out) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+		writer.write('[');
+
+		boolean first = true;
+		for (SignRecord record : records) {
+			if (!first) {
+				writer.write(',');
+			}
+			first = false;
+
+			writer.write("{\"world\":\"");
+			writer.write(JSONValue.escape(record.getWorld()));
+			writer.write("\",\"x\":");
+			writer.write(Integer.toString(record.getX()));
+			writer.write(",\"y\":");
+			writer.write(Integer.toString(record.getY()));
+			writer.write(",\"z\":");
+			writer.write(Integer.toString(record.getZ()));
+			writer.write(",\"url\":\"");
+			writer.write(JSONValue.escape(record.getUrl()));
+			writer.write("\"}");
+		}
+
+		writer.write(']');
+		writer.flush();
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records durations into power of two buckets, so recording is a couple of
+ * atomic adds and percentiles are accurate to within a factor of two. Safe to
+ * use from any thread.
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 64;
+
+	/**
+	 * Bucket i counts durations of 2^(i-1) to 2^i - 1 nanoseconds.
+	 */
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+
+		buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+
+		long currentMax;
+		while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos)) {
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getTotalNanos() {
+		return total.get();
+	}
+
+	public long getMeanNanos() {
+		long n = count.get();
+		return n > 0 ? total.get() / n : 0;
+	}
+
+	public long getMaxNanos() {
+		return max.get();
+	}
+
+	/**
+	 * @param fraction e.g. 0.99 for the 99th percentile.
+	 * @return Upper bound of the bucket holding the percentile, or 0 if
+	 *         nothing has been recorded.
+	 */
+	public long getPercentileNanos(double fraction) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+
+		long target = (long) Math.ceil(n * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= target) {
+				return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * @return e.g. "12 (mean 1.2ms, p99 4.1ms, max 9.0ms)"
+	 */
+	public String summary() {
+		return getCount() + " (mean " + formatNanos(getMeanNanos()) + ", p99 "
+				+ formatNanos(getPercentileNanos(0.99)) + ", max " + formatNanos(getMaxNanos()) + ")";
+	}
+
+	public static String formatNanos(long nanos) {
+		if (nanos < 1000L) {
+			return nanos + "ns";
+		} else if (nanos < 1000000L) {
+			return String.format("%.1fus", nanos / 1000.0);
+		} else if (nanos < 1000000000L) {
+			return String.format("%.1fms", nanos / 1000000.0);
+		}
+		return String.format("%.2fs", nanos / 1000000000.0);
+	}
+}
@@ -0,0 +1,219 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from primitive long keys to objects. Keys are never
+ * boxed, and lookups don't allocate anything.
+ * 
+ * Uses linear probing with backward-shift deletion, so there are no
+ * tombstones and lookups for missing keys stay short. Null values aren't
+ * allowed, a null slot marks an empty one.
+ * 
+ * Not thread safe.
+ * 
+ * @param <V> Value type.
+ */
+public class LongObjectMap<V> {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	private Object[] values;
+	private int mask;
+	private int size = 0;
+	private int resizeAt;
+
+	public LongObjectMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize Number of entries to make room for up front.
+	 */
+	public LongObjectMap(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity * 3 / 4 < expectedSize) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @param key
+	 * @return The value for the key, or null if there isn't one.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int slot = hash(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				return (V) values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @param key
+	 * @param value Must not be null.
+	 * @return The previous value for the key, or null if there wasn't one.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("value can't be null");
+		}
+
+		int slot = hash(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				V previous = (V) values[slot];
+				values[slot] = value;
+				return previous;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size > resizeAt) {
+			rehash(keys.length << 1);
+		}
+		return null;
+	}
+
+	/**
+	 * @param key
+	 * @return The removed value, or null if there wasn't one.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int slot = hash(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				V previous = (V) values[slot];
+				shiftBack(slot);
+				size--;
+				return previous;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * Number of slots, for iterating with keyAt() and valueAt().
+	 */
+	public int capacity() {
+		return keys.length;
+	}
+
+	/**
+	 * @param slot
+	 * @return Key in the slot. Only meaningful if valueAt() isn't null.
+	 */
+	public long keyAt(int slot) {
+		return keys[slot];
+	}
+
+	/**
+	 * @param slot
+	 * @return Value in the slot, or null if the slot is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	public V valueAt(int slot) {
+		return (V) values[slot];
+	}
+
+	/**
+	 * Empty a slot, moving later entries of the same probe run back into it
+	 * so that lookups never stop early at the gap.
+	 */
+	private void shiftBack(int gap) {
+		int slot = gap;
+		while (true) {
+			slot = (slot + 1) & mask;
+			if (values[slot] == null) {
+				break;
+			}
+
+			int ideal = hash(keys[slot]) & mask;
+
+			// Leave the entry alone if its ideal slot is cyclically in
+			// (gap, slot], otherwise it can move back into the gap
+			boolean stays = (gap <= slot) ? (gap < ideal && ideal <= slot) : (gap < ideal || ideal <= slot);
+			if (!stays) {
+				keys[gap] = keys[slot];
+				values[gap] = values[slot];
+				gap = slot;
+			}
+		}
+		values[gap] = null;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		resizeAt = capacity * 3 / 4;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(capacity);
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				int slot = hash(oldKeys[i]) & mask;
+				while (values[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,238 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+
+/**
+ * A signs.dat file mapped into memory, with its chunk directory read up front
+ * so the signs of a single chunk can be read without scanning the file.
+ * 
+ * The chunk directory and string tables never change once opened, and the
+ * sign records are read with absolute gets, so any thread may read records.
+ * readChunk() resolves URLs into SignLinks and must only be called on the
+ * server thread.
+ */
+public class MappedSignsFile implements ChunkSource {
+
+	private final String fileName;
+	private final Logger log;
+	private final SignLinks links;
+	private final ByteBuffer buffer;
+	private final String[] urls;
+	private final SignLink[] resolvedLinks;
+	private final boolean[] checkedUrls;
+
+	/**
+	 * Chunk directory. Key: World name, then chunk key. Value: index of the
+	 * chunk's first sign, and its number of signs.
+	 */
+	private final HashMap<String, LongObjectMap<int[]>> chunks = new HashMap<String, LongObjectMap<int[]>>();
+	private final int signsStart;
+	private final int signCount;
+
+	private MappedSignsFile(File file, Logger log, SignLinks links) throws IOException {
+		this.fileName = file.getName();
+		this.log = log;
+		this.links = links;
+
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// The mapping stays valid after the channel is closed
+			in.close();
+		}
+
+		try {
+			if (buffer.getInt() != BinarySignsFormat.MAGIC) {
+				throw new IOException(fileName + " isn't a HyperSigns data file.");
+			}
+
+			int version = buffer.getInt();
+			if (version != BinarySignsFormat.VERSION) {
+				throw new IOException(fileName + " has unsupported version " + version + ".");
+			}
+
+			urls = new String[buffer.getInt()];
+			for (int i = 0; i < urls.length; i++) {
+				urls[i] = BinarySignsFormat.readString(buffer);
+			}
+			resolvedLinks = new SignLink[urls.length];
+			checkedUrls = new boolean[urls.length];
+
+			int worldCount = buffer.getInt();
+			for (int i = 0; i < worldCount; i++) {
+				String world = BinarySignsFormat.readString(buffer);
+
+				int chunkCount = buffer.getInt();
+				LongObjectMap<int[]> worldChunks = new LongObjectMap<int[]>(chunkCount);
+				for (int j = 0; j < chunkCount; j++) {
+					int chunkX = buffer.getInt();
+					int chunkZ = buffer.getInt();
+					int first = buffer.getInt();
+					int count = buffer.getInt();
+					worldChunks.put(SignIndex.chunkKey(chunkX, chunkZ), new int[] { first, count });
+				}
+				chunks.put(world, worldChunks);
+			}
+
+			signCount = buffer.getInt();
+			signsStart = buffer.position();
+			if (buffer.remaining() < signCount * 8L) {
+				throw new BufferUnderflowException();
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException(fileName + " is truncated.");
+		}
+	}
+
+	/**
+	 * Map a signs.dat file and read its chunk directory.
+	 * 
+	 * @param file
+	 * @param log Used to warn about invalid URLs.
+	 * @param links Creates the links for signs read by readChunk(). May be
+	 *            null if readChunk() won't be used.
+	 * @throws IOException
+	 */
+	public static MappedSignsFile open(File file, Logger log, SignLinks links) throws IOException {
+		return new MappedSignsFile(file, log, links);
+	}
+
+	/**
+	 * @return Number of signs in the file.
+	 */
+	public int getSignCount() {
+		return signCount;
+	}
+
+	/**
+	 * Read the signs of a single chunk. Must be called on the server thread.
+	 * 
+	 * @param world
+	 * @param chunkX
+	 * @param chunkZ
+	 * @return The chunk's signs, or null if the file has none in the chunk.
+	 */
+	public SignChunk readChunk(String world, int chunkX, int chunkZ) {
+		LongObjectMap<int[]> worldChunks = chunks.get(world);
+		if (worldChunks == null) {
+			return null;
+		}
+
+		int[] entry = worldChunks.get(SignIndex.chunkKey(chunkX, chunkZ));
+		if (entry == null) {
+			return null;
+		}
+
+		SignChunk chunk = new SignChunk(entry[1]);
+		int offset = signsStart + entry[0] * 8;
+		for (int i = 0; i < entry[1]; i++, offset += 8) {
+			SignLink link = resolveLink(buffer.getInt(offset + 4));
+			if (link != null) {
+				chunk.put(buffer.getInt(offset), link);
+			}
+		}
+		return chunk;
+	}
+
+	public boolean readChunkLater(String world, int chunkX, int chunkZ) {
+		// Reading the mapped file is quick enough to do straight away
+		return false;
+	}
+
+	/**
+	 * Read every sign in the file, except those in the given chunks. Safe to
+	 * call from any thread.
+	 * 
+	 * @param skip Chunks to skip. Key: World name. Value: Sorted chunk keys.
+	 *            May be null.
+	 * @param handler
+	 */
+	public void read(Map<String, long[]> skip, SignsFormat.Handler handler) {
+		for (Entry<String, LongObjectMap<int[]>> worldEntry : chunks.entrySet()) {
+			String world = worldEntry.getKey();
+			LongObjectMap<int[]> worldChunks = worldEntry.getValue();
+			long[] skipKeys = skip != null ? skip.get(world) : null;
+
+			for (int i = 0; i < worldChunks.capacity(); i++) {
+				int[] entry = worldChunks.valueAt(i);
+				if (entry == null) {
+					continue;
+				}
+
+				long key = worldChunks.keyAt(i);
+				if (skipKeys != null && Arrays.binarySearch(skipKeys, key) >= 0) {
+					continue;
+				}
+
+				int chunkX = SignIndex.chunkX(key);
+				int chunkZ = SignIndex.chunkZ(key);
+				int offset = signsStart + entry[0] * 8;
+				for (int j = 0; j < entry[1]; j++, offset += 8) {
+					int position = buffer.getInt(offset);
+					int urlIndex = buffer.getInt(offset + 4);
+					if (urlIndex < 0 || urlIndex >= urls.length) {
+						continue;
+					}
+
+					handler.handle(new SignRecord(world, SignChunk.blockX(chunkX, position), SignChunk
+							.blockY(position), SignChunk.blockZ(chunkZ, position), urls[urlIndex]));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Validate a URL from the URL table and look up its link the first time
+	 * it's used.
+	 */
+	private SignLink resolveLink(int index) {
+		if (index < 0 || index >= urls.length) {
+			return null;
+		}
+
+		if (!checkedUrls[index]) {
+			checkedUrls[index] = true;
+			URL url = HyperSignsBukkit.validateURL(urls[index]);
+			if (url != null) {
+				resolvedLinks[index] = links.get(url);
+			} else {
+				log.warning("The URL '" + urls[index] + "' in " + fileName
+						+ " is invalid. Skipping the signs that use it.");
+			}
+		}
+
+		return resolvedLinks[index];
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and timings for the plugin's hot paths, shown by /hypersigns stats
+ * and optionally appended to a CSV file. Counters are only ever added to, so
+ * they cost an uncontended atomic increment each.
+ */
+public class Metrics {
+
+	/**
+	 * Interact events seen, and how many were dismissed before looking for a
+	 * sign (not a block click, not a sign or no permission).
+	 */
+	protected final AtomicLong interactEvents = new AtomicLong();
+	protected final AtomicLong interactEventsFiltered = new AtomicLong();
+
+	/**
+	 * Interacts with a hyper sign.
+	 */
+	protected final AtomicLong signHits = new AtomicLong();
+
+	/**
+	 * URL triggers sent as a plugin message, or as a chat line to players
+	 * without the client.
+	 */
+	protected final AtomicLong triggersClient = new AtomicLong();
+	protected final AtomicLong triggersFallback = new AtomicLong();
+
+	/**
+	 * Plugin message triggers that only sent the id of a URL the client had
+	 * already been sent.
+	 */
+	protected final AtomicLong triggersById = new AtomicLong();
+
+	/**
+	 * Sign clicks that didn't send a URL trigger because of a cooldown.
+	 */
+	protected final AtomicLong triggersSuppressed = new AtomicLong();
+
+	/**
+	 * Block events checked for sign data, how many of those were dismissed
+	 * because their chunk has no signs, and how many cleared a sign.
+	 */
+	protected final AtomicLong blockEventsChecked = new AtomicLong();
+	protected final AtomicLong blockEventsFiltered = new AtomicLong();
+	protected final AtomicLong blockEventClears = new AtomicLong();
+
+	/**
+	 * Writes of the whole data file, and appends to the journal.
+	 */
+	protected final LatencyHistogram saveTime = new LatencyHistogram();
+	protected final LatencyHistogram journalAppendTime = new LatencyHistogram();
+
+	/**
+	 * Transactions of sign changes saved to the database.
+	 */
+	protected final LatencyHistogram databaseWriteTime = new LatencyHistogram();
+
+	/**
+	 * Bytes written to the data file and journal.
+	 */
+	protected final AtomicLong bytesWritten = new AtomicLong();
+
+	/**
+	 * Time taken to load the sign data when the plugin was enabled.
+	 */
+	protected final AtomicLong loadTime = new AtomicLong();
+
+	/**
+	 * Reads of single chunks from the data file, when loading chunk by chunk.
+	 */
+	protected final LatencyHistogram chunkLoadTime = new LatencyHistogram();
+
+	private static final String CSV_HEADER = "time,interactEvents,interactEventsFiltered,signHits,"
+			+ "triggersClient,triggersFallback,triggersSuppressed,blockEventsChecked,blockEventsFiltered,"
+			+ "blockEventClears,saves,saveMeanNanos,saveMaxNanos,journalAppends,journalAppendMeanNanos,"
+			+ "bytesWritten,loadTimeNanos,chunkLoads,chunkLoadMeanNanos,databaseWrites,"
+			+ "databaseWriteMeanNanos,triggersById";
+
+	/**
+	 * Append the current values to a CSV file, writing a header first if the
+	 * file is new. Values are totals since the plugin was enabled. Safe to
+	 * call from any thread.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public void appendCsv(File file) throws IOException {
+		boolean newFile = !file.exists() || file.length() == 0;
+
+		StringBuilder row = new StringBuilder();
+		if (newFile) {
+			row.append(CSV_HEADER).append('\n');
+		}
+		row.append(System.currentTimeMillis());
+		append(row, interactEvents.get());
+		append(row, interactEventsFiltered.get());
+		append(row, signHits.get());
+		append(row, triggersClient.get());
+		append(row, triggersFallback.get());
+		append(row, triggersSuppressed.get());
+		append(row, blockEventsChecked.get());
+		append(row, blockEventsFiltered.get());
+		append(row, blockEventClears.get());
+		append(row, saveTime.getCount());
+		append(row, saveTime.getMeanNanos());
+		append(row, saveTime.getMaxNanos());
+		append(row, journalAppendTime.getCount());
+		append(row, journalAppendTime.getMeanNanos());
+		append(row, bytesWritten.get());
+		append(row, loadTime.get());
+		append(row, chunkLoadTime.getCount());
+		append(row, chunkLoadTime.getMeanNanos());
+		append(row, databaseWriteTime.getCount());
+		append(row, databaseWriteTime.getMeanNanos());
+		append(row, triggersById.get());
+		row.append('\n');
+
+		FileWriter out = new FileWriter(file, true);
+		try {
+			out.write(row.toString());
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void append(StringBuilder row, long value) {
+		row.append(',').append(value);
+	}
+}
@@ -0,0 +1,189 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.bukkit.entity.Player;
+
+/**
+ * Caches what each online player can do, so the interact and URL trigger
+ * paths don't have to check permissions or scan plugin channels every time.
+ * 
+ * Players are refreshed when they join, change world or (un)register the
+ * HyperSigns channels. Bukkit has no event for permission changes, so every
+ * online player is also refreshed on a fixed interval.
+ * 
+ * For clients that cache URLs by id, it also keeps track of which URL ids each
+ * player's client has been sent, so each URL is only sent in full once.
+ * 
+ * Only use it on the server thread.
+ */
+public class PlayerCapabilities implements Runnable {
+
+	private final HyperSignsBukkit plugin;
+	private final HashMap<String, Capabilities> players = new HashMap<String, Capabilities>();
+	private int taskId = -1;
+
+	public PlayerCapabilities(HyperSignsBukkit p) {
+		plugin = p;
+	}
+
+	/**
+	 * Refresh every online player now, and again after each interval.
+	 * 
+	 * @param interval Ticks between refreshes. 0 to only refresh on events.
+	 */
+	public void start(long interval) {
+		run();
+		if (interval <= 0) {
+			return;
+		}
+		taskId = plugin.getServer().getScheduler()
+				.scheduleSyncRepeatingTask(plugin, this, interval, interval);
+	}
+
+	public void stop() {
+		if (taskId != -1) {
+			plugin.getServer().getScheduler().cancelTask(taskId);
+			taskId = -1;
+		}
+		players.clear();
+	}
+
+	/**
+	 * Refresh every online player, and forget any who have gone without a
+	 * quit event. Players who are still online keep their URL ids.
+	 */
+	public void run() {
+		HashSet<String> online = new HashSet<String>();
+		for (Player player : plugin.getServer().getOnlinePlayers()) {
+			refresh(player);
+			online.add(player.getName());
+		}
+
+		Iterator<String> it = players.keySet().iterator();
+		while (it.hasNext()) {
+			if (!online.contains(it.next())) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Check the player's permission and plugin channels again.
+	 * 
+	 * @param player
+	 */
+	public void refresh(Player player) {
+		Capabilities capabilities = players.get(player.getName());
+		if (capabilities == null) {
+			capabilities = new Capabilities();
+			players.put(player.getName(), capabilities);
+		}
+
+		Set<String> channels = player.getListeningPluginChannels();
+		capabilities.canInteract = player.hasPermission("hypersigns.sign.interact");
+		capabilities.hasClient = channels.contains(HyperSignsBukkit.CHANNEL_NAME);
+
+		boolean hasUrlIds = capabilities.hasClient
+				&& channels.contains(HyperSignsBukkit.URL_IDS_CHANNEL_NAME);
+		if (hasUrlIds != capabilities.hasUrlIds) {
+			// A client that (re)registers has an empty cache
+			capabilities.hasUrlIds = hasUrlIds;
+			capabilities.sentUrlIds = hasUrlIds ? new BitSet() : null;
+		}
+	}
+
+	/**
+	 * Forget a player who has left.
+	 * 
+	 * @param player
+	 */
+	public void remove(Player player) {
+		players.remove(player.getName());
+	}
+
+	/**
+	 * @param player
+	 * @return Whether the player may click hyper signs.
+	 */
+	public boolean canInteract(Player player) {
+		return get(player).canInteract;
+	}
+
+	/**
+	 * @param player
+	 * @return Whether the player has the HyperSigns client.
+	 */
+	public boolean hasClient(Player player) {
+		return get(player).hasClient;
+	}
+
+	/**
+	 * Find out whether a URL has to be defined for the player's client, and
+	 * assume it will be.
+	 * 
+	 * @param player
+	 * @param id URL id of a link.
+	 * @return Whether the client hasn't been sent the URL with this id yet.
+	 *         Only meaningful if the client caches URLs by id.
+	 */
+	public boolean markUrlIdSent(Player player, int id) {
+		BitSet sent = get(player).sentUrlIds;
+		if (sent == null || sent.get(id)) {
+			return false;
+		}
+		sent.set(id);
+		return true;
+	}
+
+	/**
+	 * @param player
+	 * @return Whether the player's client caches URLs by id.
+	 */
+	public boolean hasUrlIds(Player player) {
+		return get(player).hasUrlIds;
+	}
+
+	private Capabilities get(Player player) {
+		Capabilities capabilities = players.get(player.getName());
+		if (capabilities == null) {
+			// Not seen yet, e.g. an interact before the join event reached us
+			refresh(player);
+			capabilities = players.get(player.getName());
+		}
+		return capabilities;
+	}
+
+	private static class Capabilities {
+		boolean canInteract;
+		boolean hasClient;
+		boolean hasUrlIds;
+
+		/**
+		 * URL ids the client has been sent definitions of, if it caches URLs.
+		 */
+		BitSet sentUrlIds;
+	}
+}
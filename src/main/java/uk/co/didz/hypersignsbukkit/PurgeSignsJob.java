@@ -0,0 +1,62 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.command.CommandSender;
+
+/**
+ * Removes the data of hyper signs whose block isn't a sign any more, e.g.
+ * because it was changed by another plugin without an event. Signs in chunks
+ * that aren't loaded are skipped rather than loaded.
+ */
+public class PurgeSignsJob extends SignRecordsJob {
+
+	private int skipped = 0;
+
+	public PurgeSignsJob(HyperSignsBukkit plugin, CommandSender sender) {
+		super(plugin, "Purging signs that no longer exist", sender);
+	}
+
+	@Override
+	protected void visit(SignRecord record) {
+		World world = plugin.getServer().getWorld(record.getWorld());
+		if (world == null || !world.isChunkLoaded(record.getX() >> 4, record.getZ() >> 4)) {
+			skipped++;
+			return;
+		}
+
+		Block block = world.getBlockAt(record.getX(), record.getY(), record.getZ());
+		if (block.getType() == Material.SIGN_POST || block.getType() == Material.WALL_SIGN) {
+			return;
+		}
+
+		if (plugin.loadedSigns.get(block) != null) {
+			plugin.removeHyperSign(block);
+			changed++;
+		}
+	}
+
+	@Override
+	protected String notes() {
+		return skipped > 0 ? skipped + " signs in unloaded chunks were skipped." : null;
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.net.URL;
+
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+
+/**
+ * Points every sign with one URL at another.
+ */
+public class ReplaceUrlJob extends SignRecordsJob {
+
+	private final String oldUrl;
+	private final URL newUrl;
+
+	/**
+	 * @param plugin
+	 * @param sender
+	 * @param oldUrl
+	 * @param newUrl
+	 */
+	public ReplaceUrlJob(HyperSignsBukkit plugin, CommandSender sender, URL oldUrl, URL newUrl) {
+		super(plugin, "Replacing " + oldUrl + " with " + newUrl, sender);
+		this.oldUrl = oldUrl.toString();
+		this.newUrl = newUrl;
+	}
+
+	@Override
+	protected void visit(SignRecord record) {
+		if (!record.getUrl().equals(oldUrl)) {
+			return;
+		}
+
+		World world = plugin.getServer().getWorld(record.getWorld());
+		if (world == null) {
+			return;
+		}
+
+		SignLink current = plugin.getHyperSign(world, record.getX(), record.getY(), record.getZ());
+		if (current != null && current.getUrlString().equals(oldUrl)) {
+			plugin.setHyperSign(world, record.getX(), record.getY(), record.getZ(), newUrl);
+			changed++;
+		}
+	}
+}
@@ -18,10 +18,11 @@
 
 package uk.co.didz.hypersignsbukkit;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UTFDataFormatException;
 import java.net.URL;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Facilitates parsing and creating HyperSigns networked messages. This class
@@ -33,7 +34,19 @@ public class ServerMessageComposer {
 		/**
 		 * Prompts the client to open a URL.
 		 */
-		URL_TRIGGER(0x01);
+		URL_TRIGGER(0x01),
+
+		/**
+		 * Gives a URL an id for the rest of the client's session, replacing
+		 * any URL the id had before, and prompts the client to open it. Only
+		 * sent to clients listening on the URL ids channel.
+		 */
+		DEFINE_URL_ID(0x02),
+
+		/**
+		 * Prompts the client to open a URL it was given an id for earlier.
+		 */
+		URL_ID_TRIGGER(0x03);
 
 		private final int value;
 
@@ -54,16 +67,158 @@ public class ServerMessageComposer {
 	 * @throws IOException
 	 */
 	public static byte[] writeClientUrlTrigger(URL url) throws IOException {
-		ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
-		DataOutputStream data = new DataOutputStream(byteArray);
+		String payload = url.toString();
+		byte[] message = new byte[messageLength(payload)];
+		writeMessage(MessageType.URL_TRIGGER, payload, message, 0);
+		return message;
+	}
+
+	/**
+	 * Writes a message that defines a URL id and prompts the client to open
+	 * the URL: the type, the id as an int, then the URL as written by
+	 * DataOutput.writeUTF().
+	 * 
+	 * @param id
+	 * @param url
+	 * @return The message as a byte array.
+	 * @throws IOException
+	 */
+	public static byte[] writeClientUrlDefinition(int id, URL url) throws IOException {
+		String payload = url.toString();
+		byte[] message = new byte[4 + messageLength(payload)];
 
-		// Prefix the message with the URL_TRIGGER identifier
-		data.writeByte(MessageType.URL_TRIGGER.getValue());
+		// The payload goes after the id. Its type byte lands on the id's last
+		// byte, which is written over afterwards.
+		writeMessage(MessageType.DEFINE_URL_ID, payload, message, 4);
+		message[0] = (byte) MessageType.DEFINE_URL_ID.getValue();
+		message[1] = (byte) (id >>> 24);
+		message[2] = (byte) (id >>> 16);
+		message[3] = (byte) (id >>> 8);
+		message[4] = (byte) id;
+		return message;
+	}
 
-		// Append the message with the URL
-		data.writeUTF(url.toString());
+	/**
+	 * Writes a message that prompts the client to open a URL by its id.
+	 * 
+	 * @param id
+	 * @return The message as a byte array.
+	 */
+	public static byte[] writeClientUrlIdTrigger(int id) {
+		return new byte[] { (byte) MessageType.URL_ID_TRIGGER.getValue(), (byte) (id >>> 24),
+				(byte) (id >>> 16), (byte) (id >>> 8), (byte) id };
+	}
 
-		return byteArray.toByteArray();
+	/**
+	 * Size of a message with a string payload, for sizing the buffer to
+	 * write it into.
+	 * 
+	 * @param payload
+	 * @return Size of the message in bytes.
+	 * @throws UTFDataFormatException If the payload is too long to encode.
+	 */
+	public static int messageLength(String payload) throws UTFDataFormatException {
+		return 1 + utfLength(payload);
+	}
+
+	/**
+	 * Writes a message with a string payload into an array. The payload is
+	 * encoded the same way as DataOutput.writeUTF(), which is what clients
+	 * expect.
+	 * 
+	 * @param type
+	 * @param payload
+	 * @param dest Must have at least messageLength(payload) bytes left after
+	 *            the offset.
+	 * @param offset
+	 * @return Number of bytes written.
+	 * @throws UTFDataFormatException If the payload is too long to encode.
+	 */
+	public static int writeMessage(MessageType type, String payload, byte[] dest, int offset)
+			throws UTFDataFormatException {
+		int length = messageLength(payload);
+		if (offset < 0 || dest.length - offset < length) {
+			throw new IndexOutOfBoundsException("Not enough room for a " + length + " byte message.");
+		}
+
+		encode(type, payload, length, ByteBuffer.wrap(dest, offset, length));
+		return length;
+	}
+
+	/**
+	 * Writes a message with a string payload at the buffer's position, and
+	 * advances the position past it.
+	 * 
+	 * @param type
+	 * @param payload
+	 * @param dest
+	 * @throws UTFDataFormatException If the payload is too long to encode.
+	 * @throws BufferOverflowException If the message doesn't fit.
+	 */
+	public static void writeMessage(MessageType type, String payload, ByteBuffer dest)
+			throws UTFDataFormatException {
+		int length = messageLength(payload);
+		if (dest.remaining() < length) {
+			throw new BufferOverflowException();
+		}
+
+		encode(type, payload, length, dest);
+	}
+
+	/**
+	 * Writes a message at the buffer's position, which must have room for
+	 * it, and advances the position past it.
+	 */
+	private static void encode(MessageType type, String payload, int length, ByteBuffer dest) {
+		int pos = dest.position();
+		dest.put(pos++, (byte) type.getValue());
+
+		// Big-endian, whatever order the buffer is in
+		int utfLength = length - 3;
+		dest.put(pos++, (byte) (utfLength >>> 8));
+		dest.put(pos++, (byte) utfLength);
+
+		for (int i = 0; i < payload.length(); i++) {
+			char c = payload.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				dest.put(pos++, (byte) c);
+			} else if (c > 0x07FF) {
+				dest.put(pos++, (byte) (0xE0 | ((c >> 12) & 0x0F)));
+				dest.put(pos++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+				dest.put(pos++, (byte) (0x80 | (c & 0x3F)));
+			} else {
+				dest.put(pos++, (byte) (0xC0 | ((c >> 6) & 0x1F)));
+				dest.put(pos++, (byte) (0x80 | (c & 0x3F)));
+			}
+		}
+
+		dest.position(pos);
+	}
+
+	/**
+	 * Length of a string written by DataOutput.writeUTF(), including the two
+	 * byte length prefix.
+	 * 
+	 * @param str
+	 * @throws UTFDataFormatException If the string is too long to encode.
+	 */
+	public static int utfLength(String str) throws UTFDataFormatException {
+		int length = 0;
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				length += 1;
+			} else if (c > 0x07FF) {
+				length += 3;
+			} else {
+				length += 2;
+			}
+		}
+
+		if (length > 0xFFFF) {
+			throw new UTFDataFormatException("Encoded string is too long: " + length + " bytes");
+		}
+		return length + 2;
 	}
 
 }
@@ -0,0 +1,146 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.net.URL;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.command.CommandSender;
+
+/**
+ * Sets or removes the URL of every sign inside a cuboid, one chunk per step.
+ * Signs are found through each chunk's tile entities rather than by looking
+ * at every block. Chunks that aren't loaded are skipped rather than loaded.
+ */
+public class SetUrlJob extends BulkJob {
+
+	private final World world;
+	private final int minX, minY, minZ, maxX, maxY, maxZ;
+	private final URL url;
+	private final String urlString;
+	private final int minChunkX, minChunkZ, maxChunkX, maxChunkZ;
+	private int chunkX, chunkZ;
+	private int chunksDone = 0;
+	private int chunksSkipped = 0;
+
+	/**
+	 * @param plugin
+	 * @param sender
+	 * @param world
+	 * @param x1 One corner of the cuboid.
+	 * @param y1
+	 * @param z1
+	 * @param x2 The opposite corner.
+	 * @param y2
+	 * @param z2
+	 * @param url The URL to set, or null to remove the signs' URLs.
+	 */
+	public SetUrlJob(HyperSignsBukkit plugin, CommandSender sender, World world, int x1, int y1, int z1,
+			int x2, int y2, int z2, URL url) {
+		super(plugin, (url != null ? "Setting" : "Removing") + " the URL of signs in '" + world.getName()
+				+ "' from " + x1 + ", " + y1 + ", " + z1 + " to " + x2 + ", " + y2 + ", " + z2, sender);
+		this.world = world;
+		minX = Math.min(x1, x2);
+		minY = Math.min(y1, y2);
+		minZ = Math.min(z1, z2);
+		maxX = Math.max(x1, x2);
+		maxY = Math.max(y1, y2);
+		maxZ = Math.max(z1, z2);
+		this.url = url;
+		urlString = url != null ? url.toString() : null;
+
+		minChunkX = minX >> 4;
+		minChunkZ = minZ >> 4;
+		maxChunkX = maxX >> 4;
+		maxChunkZ = maxZ >> 4;
+		chunkX = minChunkX;
+		chunkZ = minChunkZ;
+	}
+
+	/**
+	 * Number of blocks in a cuboid, as a double so it can't overflow.
+	 * 
+	 * @param x1 One corner of the cuboid.
+	 * @param y1
+	 * @param z1
+	 * @param x2 The opposite corner.
+	 * @param y2
+	 * @param z2
+	 */
+	public static double volume(int x1, int y1, int z1, int x2, int y2, int z2) {
+		return (Math.abs((double) x2 - x1) + 1) * (Math.abs((double) y2 - y1) + 1)
+				* (Math.abs((double) z2 - z1) + 1);
+	}
+
+	@Override
+	protected boolean step() {
+		if (chunkX > maxChunkX) {
+			return false;
+		}
+
+		if (world.isChunkLoaded(chunkX, chunkZ)) {
+			for (BlockState state : world.getChunkAt(chunkX, chunkZ).getTileEntities()) {
+				if (state.getType() != Material.SIGN_POST && state.getType() != Material.WALL_SIGN) {
+					continue;
+				}
+				if (state.getX() < minX || state.getX() > maxX || state.getY() < minY || state.getY() > maxY
+						|| state.getZ() < minZ || state.getZ() > maxZ) {
+					continue;
+				}
+				apply(state.getBlock());
+			}
+		} else {
+			chunksSkipped++;
+		}
+
+		chunksDone++;
+		if (++chunkZ > maxChunkZ) {
+			chunkZ = minChunkZ;
+			chunkX++;
+		}
+		return chunkX <= maxChunkX;
+	}
+
+	private void apply(Block block) {
+		SignLink current = plugin.loadedSigns.get(block);
+		if (url != null) {
+			if (current == null || !current.getUrlString().equals(urlString)) {
+				plugin.setHyperSign(block, url);
+				changed++;
+			}
+		} else if (current != null) {
+			plugin.removeHyperSign(block);
+			changed++;
+		}
+	}
+
+	@Override
+	protected String progress() {
+		long total = (long) (maxChunkX - minChunkX + 1) * (maxChunkZ - minChunkZ + 1);
+		return chunksDone + "/" + total + " chunks";
+	}
+
+	@Override
+	protected String notes() {
+		return chunksSkipped > 0 ? chunksSkipped + " chunks weren't loaded and were skipped." : null;
+	}
+}
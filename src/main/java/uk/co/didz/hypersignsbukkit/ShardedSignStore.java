@@ -0,0 +1,327 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Sign data kept in numbered generations of a data file and journal per
+ * world, in a folder named after the world. Each loaded world has a
+ * SignsWriter, and they all share a single background thread. Worlds loaded
+ * after startup have their signs read on the same thread, so a world's files
+ * are never read while they're being written. The files of worlds that aren't
+ * loaded are left alone.
+ */
+public class ShardedSignStore implements SignStore, Runnable {
+
+	public static final String JOURNAL_NAME = "signs.journal";
+
+	private final HyperSignsBukkit plugin;
+	private final Logger log;
+	private final File folder;
+	private final SignsFormat format;
+	private final long compactionSize;
+	private final int keepGenerations;
+	private final boolean acceptUnsummed;
+	private final ExecutorService executor;
+	private final HashMap<String, SignsWriter> writers = new HashMap<String, SignsWriter>();
+	private int taskId = -1;
+
+	/**
+	 * @param p
+	 * @param folder Holds a folder for each world.
+	 * @param format Format of the data files.
+	 * @param compactionSize Journal size in bytes that triggers a new
+	 *            snapshot of a world.
+	 * @param keepGenerations Number of generations of each world to keep.
+	 * @param acceptUnsummed Whether data files without a checksum are read.
+	 */
+	public ShardedSignStore(HyperSignsBukkit p, File folder, SignsFormat format, long compactionSize,
+			int keepGenerations, boolean acceptUnsummed) {
+		plugin = p;
+		log = p.getLogger();
+		this.folder = folder;
+		this.format = format;
+		this.compactionSize = compactionSize;
+		this.keepGenerations = keepGenerations;
+		this.acceptUnsummed = acceptUnsummed;
+
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "HyperSigns Writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public SignsGenerations getGenerations(String world) {
+		return new SignsGenerations(new File(folder, world), format, acceptUnsummed);
+	}
+
+	/**
+	 * @return Names of the worlds that have a folder, loaded or not.
+	 */
+	public List<String> getStoredWorlds() {
+		return listWorlds(folder);
+	}
+
+	/**
+	 * @param folder
+	 * @return Names of the world folders in a store's folder.
+	 */
+	public static List<String> listWorlds(File folder) {
+		List<String> worlds = new ArrayList<String>();
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					worlds.add(file.getName());
+				}
+			}
+		}
+		return worlds;
+	}
+
+	/**
+	 * Start accepting changes to a world's signs. Must be called on the
+	 * server thread, before its signs are loaded.
+	 * 
+	 * @param world
+	 * @return The world's writer. Call loaded() on it once its signs are in
+	 *         memory.
+	 */
+	public SignsWriter openWorld(String world) {
+		SignsWriter writer = writers.get(world);
+		if (writer == null) {
+			SignsGenerations generations = getGenerations(world);
+			generations.getFolder().mkdirs();
+			writer = new SignsWriter(plugin, world, generations, keepGenerations, compactionSize, executor);
+			writers.put(world, writer);
+		}
+		return writer;
+	}
+
+	/**
+	 * @param world
+	 * @return The world's writer, or null if it isn't open.
+	 */
+	public SignsWriter getWriter(String world) {
+		return writers.get(world);
+	}
+
+	/**
+	 * @return Names of the worlds with a writer.
+	 */
+	public List<String> getOpenWorlds() {
+		return new ArrayList<String>(writers.keySet());
+	}
+
+	/**
+	 * Save a world's changes for the last time, e.g. when it's unloaded. Its
+	 * signs may be dropped from memory as soon as this returns. Must be
+	 * called on the server thread.
+	 * 
+	 * @param world
+	 */
+	public void closeWorld(String world) {
+		SignsWriter writer = writers.remove(world);
+		if (writer != null) {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Run a task on the background thread, after everything already queued
+	 * on it, e.g. reading a world's signs.
+	 * 
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	public void start(long interval) {
+		taskId = plugin.getServer().getScheduler()
+				.scheduleSyncRepeatingTask(plugin, this, interval, interval);
+	}
+
+	public void logChange(SignRecord record) {
+		SignsWriter writer = writers.get(record.getWorld());
+		if (writer != null) {
+			writer.logChange(record);
+		} else {
+			log.warning("Unable to save the sign at " + record.getX() + ", " + record.getY() + ", "
+					+ record.getZ() + " because the world '" + record.getWorld() + "' isn't loaded.");
+		}
+	}
+
+	public void flush() {
+		if (!executor.isShutdown()) {
+			run();
+		}
+	}
+
+	/**
+	 * Hand every world's queued changes to the background thread. Must be
+	 * called on the server thread.
+	 */
+	public void run() {
+		for (SignsWriter writer : writers.values()) {
+			writer.run();
+		}
+	}
+
+	/**
+	 * Export the loaded worlds from memory, and the other worlds from their
+	 * files.
+	 */
+	public void export(final File file, final SignsFormat exportFormat, final ExportCallback callback) {
+		final SignsSnapshot snapshot = plugin.snapshotSignsData();
+		final List<String> unloaded = getStoredWorlds();
+		unloaded.removeAll(writers.keySet());
+
+		executor.execute(new Runnable() {
+			public void run() {
+				int count = 0;
+				IOException error = null;
+				try {
+					List<SignRecord> records = new ArrayList<SignRecord>(snapshot.getRecords());
+					for (String world : unloaded) {
+						records.addAll(readStoredWorld(world));
+					}
+					count = records.size();
+					SignsWriter.writeFile(file, exportFormat, records);
+				} catch (IOException e) {
+					error = e;
+				}
+				if (callback != null) {
+					callback.done(count, error);
+				}
+			}
+		});
+	}
+
+	public void shutdown() {
+		if (taskId != -1) {
+			plugin.getServer().getScheduler().cancelTask(taskId);
+			taskId = -1;
+		}
+
+		for (SignsWriter writer : writers.values()) {
+			writer.close();
+		}
+		writers.clear();
+
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+				log.severe("Timed out while waiting for the sign data to be written.");
+			}
+		} catch (InterruptedException e) {
+			log.severe("Interrupted while waiting for the sign data to be written.");
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Read a world's signs straight from its files, with its journals
+	 * applied. Only use it for worlds that aren't loaded, on the background
+	 * thread.
+	 * 
+	 * @param world
+	 * @throws IOException
+	 */
+	public List<SignRecord> readStoredWorld(String world) throws IOException {
+		return getGenerations(world).readRecords(log);
+	}
+
+	/**
+	 * Write signs of any number of worlds into a store's folder, as a new
+	 * generation of each world they're in.
+	 * 
+	 * @param folder
+	 * @param format
+	 * @param records
+	 * @throws IOException
+	 */
+	public static void writeWorlds(File folder, SignsFormat format, List<SignRecord> records)
+			throws IOException {
+		Map<String, List<SignRecord>> byWorld = new LinkedHashMap<String, List<SignRecord>>();
+		for (SignRecord record : records) {
+			List<SignRecord> worldRecords = byWorld.get(record.getWorld());
+			if (worldRecords == null) {
+				worldRecords = new ArrayList<SignRecord>();
+				byWorld.put(record.getWorld(), worldRecords);
+			}
+			worldRecords.add(record);
+		}
+
+		for (Entry<String, List<SignRecord>> entry : byWorld.entrySet()) {
+			SignsGenerations generations = new SignsGenerations(new File(folder, entry.getKey()), format);
+			generations.write(generations.getNewest() + 1, entry.getValue());
+		}
+	}
+
+	/**
+	 * Apply journal changes to a list of signs, keeping the signs in order.
+	 * 
+	 * @param records
+	 * @param changes New state of each changed sign. A null URL removes the
+	 *            sign.
+	 * @return The changed signs.
+	 */
+	public static List<SignRecord> applyChanges(List<SignRecord> records, List<SignRecord> changes) {
+		if (changes.isEmpty()) {
+			return records;
+		}
+
+		LinkedHashMap<String, SignRecord> signs = new LinkedHashMap<String, SignRecord>();
+		for (SignRecord record : records) {
+			signs.put(key(record), record);
+		}
+		for (SignRecord change : changes) {
+			if (change.getUrl() != null) {
+				signs.put(key(change), change);
+			} else {
+				signs.remove(key(change));
+			}
+		}
+		return new ArrayList<SignRecord>(signs.values());
+	}
+
+	/**
+	 * @return A string identifying the record's position.
+	 */
+	static String key(SignRecord record) {
+		return record.getWorld() + "/" + record.getX() + "," + record.getY() + "," + record.getZ();
+	}
+}
@@ -0,0 +1,236 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+/**
+ * The hyper signs in one chunk. Chunks rarely hold more than a handful of
+ * signs, so they're kept in small parallel arrays and searched linearly.
+ * 
+ * Positions are the block coordinates packed into an int: 4 bits of x, 4
+ * bits of z (both relative to the chunk) and the rest for y.
+ * 
+ * Only the server thread changes a chunk, but any thread may read it without
+ * locking. Signs a reader can see are never moved: appending fills a spare
+ * slot and then publishes a new count, and removing copies the arrays.
+ */
+public class SignChunk {
+
+	/**
+	 * The signs as one consistent unit, swapped whenever the count changes.
+	 */
+	private static final class Entries {
+		final int[] positions;
+		final SignLink[] links;
+		final int count;
+
+		Entries(int[] positions, SignLink[] links, int count) {
+			this.positions = positions;
+			this.links = links;
+			this.count = count;
+		}
+	}
+
+	private volatile Entries entries;
+
+	/**
+	 * Epoch of the latest change since the chunk was last written to the data
+	 * file, or 0 if it hasn't changed. Dirty chunks are kept in memory even
+	 * after the world unloads them.
+	 */
+	int dirtyEpoch = 0;
+
+	/**
+	 * Whether the world has unloaded this chunk while it was dirty.
+	 */
+	boolean unloaded = false;
+
+	/**
+	 * Whether the chunk's stored signs haven't been read yet or couldn't be,
+	 * so it only holds the changes made since. A chunk that couldn't be read
+	 * is read again once those have been saved.
+	 */
+	boolean unread = false;
+
+	/**
+	 * Positions of signs removed while the chunk was unread, which the stored
+	 * copy mustn't bring back. null if there aren't any.
+	 */
+	int[] removed = null;
+
+	/**
+	 * Number of reads of the chunk queued on a background thread that haven't
+	 * finished. Only the last one is merged in, as it's the most up to date.
+	 */
+	int pendingReads = 0;
+
+	public SignChunk(int capacity) {
+		int length = Math.max(capacity, 1);
+		entries = new Entries(new int[length], new SignLink[length], 0);
+	}
+
+	public static int position(int x, int y, int z) {
+		return (x & 15) | ((z & 15) << 4) | (y << 8);
+	}
+
+	/**
+	 * @param chunkX
+	 * @param position
+	 * @return World x coordinate of the position.
+	 */
+	public static int blockX(int chunkX, int position) {
+		return (chunkX << 4) | (position & 15);
+	}
+
+	public static int blockY(int position) {
+		return position >> 8;
+	}
+
+	public static int blockZ(int chunkZ, int position) {
+		return (chunkZ << 4) | ((position >> 4) & 15);
+	}
+
+	public int size() {
+		return entries.count;
+	}
+
+	public int positionAt(int index) {
+		return entries.positions[index];
+	}
+
+	public SignLink linkAt(int index) {
+		return entries.links[index];
+	}
+
+	public SignLink get(int position) {
+		Entries e = entries;
+		for (int i = 0; i < e.count; i++) {
+			if (e.positions[i] == position) {
+				return e.links[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The previous link at the position, or null if there wasn't one.
+	 */
+	public SignLink put(int position, SignLink link) {
+		Entries e = entries;
+		for (int i = 0; i < e.count; i++) {
+			if (e.positions[i] == position) {
+				SignLink previous = e.links[i];
+				e.links[i] = link;
+				// Publish the new link to other threads
+				entries = e;
+				return previous;
+			}
+		}
+
+		int[] positions = e.positions;
+		SignLink[] links = e.links;
+		if (e.count == positions.length) {
+			positions = new int[e.count * 2];
+			links = new SignLink[e.count * 2];
+			System.arraycopy(e.positions, 0, positions, 0, e.count);
+			System.arraycopy(e.links, 0, links, 0, e.count);
+		}
+
+		// Readers of the old entries never look past their count
+		positions[e.count] = position;
+		links[e.count] = link;
+		entries = new Entries(positions, links, e.count + 1);
+		return null;
+	}
+
+	/**
+	 * @return The removed link, or null if there wasn't one.
+	 */
+	public SignLink remove(int position) {
+		Entries e = entries;
+		for (int i = 0; i < e.count; i++) {
+			if (e.positions[i] == position) {
+				// Copy rather than move the last sign into the gap, so readers
+				// of the old entries still find every other sign
+				int[] positions = new int[e.positions.length];
+				SignLink[] links = new SignLink[e.links.length];
+				System.arraycopy(e.positions, 0, positions, 0, e.count);
+				System.arraycopy(e.links, 0, links, 0, e.count);
+
+				int last = e.count - 1;
+				positions[i] = positions[last];
+				links[i] = links[last];
+				links[last] = null;
+				entries = new Entries(positions, links, last);
+				return e.links[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Remember that the sign at a position was removed while the chunk was
+	 * unread.
+	 */
+	void markRemoved(int position) {
+		if (wasRemoved(position)) {
+			return;
+		}
+		int count = removed != null ? removed.length : 0;
+		int[] grown = new int[count + 1];
+		if (removed != null) {
+			System.arraycopy(removed, 0, grown, 0, count);
+		}
+		grown[count] = position;
+		removed = grown;
+	}
+
+	/**
+	 * Forget that the sign at a position was removed, e.g. once it's been
+	 * put back.
+	 */
+	void unmarkRemoved(int position) {
+		if (!wasRemoved(position)) {
+			return;
+		}
+		if (removed.length == 1) {
+			removed = null;
+			return;
+		}
+		int[] shrunk = new int[removed.length - 1];
+		int count = 0;
+		for (int removedPosition : removed) {
+			if (removedPosition != position) {
+				shrunk[count++] = removedPosition;
+			}
+		}
+		removed = shrunk;
+	}
+
+	boolean wasRemoved(int position) {
+		if (removed == null) {
+			return false;
+		}
+		for (int removedPosition : removed) {
+			if (removedPosition == position) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
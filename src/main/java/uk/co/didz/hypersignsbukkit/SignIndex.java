@@ -0,0 +1,839 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bukkit.block.Block;
+
+/**
+ * In-memory index of hyper signs. Each world has a LongObjectMap of chunks
+ * keyed by the chunk coordinates packed into a long, and each chunk holds its
+ * signs in a small SignChunk. Looking up a block doesn't allocate a Location
+ * or hash any doubles.
+ * 
+ * When a world has a chunk source, its chunks are read from it when the world
+ * loads them and dropped again when the world unloads them, so memory only
+ * holds signs in loaded chunks. Chunks changed since the data file was last
+ * written stay in memory until they've been saved. A source that reads in the
+ * background leaves a chunk unread, holding only the changes made to it,
+ * until the signs read are merged in.
+ * 
+ * Only use it on the server thread, apart from find() and size(). Chunks
+ * in memory are also published to a concurrent map that find() reads from,
+ * so other threads can look signs up without locking or waiting for the
+ * server thread.
+ */
+public class SignIndex {
+
+	/**
+	 * Stamped on chunks with changes that are being held back from the
+	 * store, so no save marks them as saved.
+	 */
+	private static final int HELD_EPOCH = Integer.MAX_VALUE;
+
+	private final HashMap<String, LongObjectMap<SignChunk>> worlds = new HashMap<String, LongObjectMap<SignChunk>>();
+	private final boolean chunked;
+	private final HashMap<String, ChunkSource> chunkSources = new HashMap<String, ChunkSource>();
+	private volatile int size = 0;
+
+	/**
+	 * The same chunks as worlds, for lookups from other threads.
+	 */
+	private final ConcurrentHashMap<String, ConcurrentHashMap<Long, SignChunk>> shared =
+			new ConcurrentHashMap<String, ConcurrentHashMap<Long, SignChunk>>();
+
+	/**
+	 * Epoch stamped on changed chunks. Advanced every time a snapshot is
+	 * taken or changes are handed off to be saved.
+	 */
+	private int epoch = 1;
+
+	/**
+	 * Whether changes made now are held back, e.g. while a bulk job steps.
+	 */
+	private boolean holding = false;
+
+	/**
+	 * Number of chunks that couldn't be read from their source, roughly.
+	 */
+	private int unreadChunks = 0;
+
+	/**
+	 * Worlds whose signs are being read on a background thread. Their chunks
+	 * are unread until the signs have been merged in.
+	 */
+	private final HashSet<String> loadingWorlds = new HashSet<String>();
+
+	/**
+	 * @param chunked Whether to load and unload signs chunk by chunk.
+	 */
+	public SignIndex(boolean chunked) {
+		this.chunked = chunked;
+	}
+
+	/**
+	 * Pack chunk coordinates into a long.
+	 */
+	public static long chunkKey(int chunkX, int chunkZ) {
+		return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+	}
+
+	public static int chunkX(long key) {
+		return (int) (key >> 32);
+	}
+
+	public static int chunkZ(long key) {
+		return (int) key;
+	}
+
+	/**
+	 * @return Number of signs held in memory.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isChunked() {
+		return chunked;
+	}
+
+	/**
+	 * Set the data file or database that a world's chunks are read from.
+	 * Chunks already in memory, e.g. changed while the world's data was being
+	 * loaded, keep their signs and gain any others the source has.
+	 * 
+	 * @param world
+	 * @param source
+	 */
+	public void setChunkSource(String world, ChunkSource source) {
+		chunkSources.put(world, source);
+
+		LongObjectMap<SignChunk> chunks = worlds.get(world);
+		if (chunks == null) {
+			return;
+		}
+
+		for (int i = 0; i < chunks.capacity(); i++) {
+			SignChunk chunk = chunks.valueAt(i);
+			if (chunk == null) {
+				continue;
+			}
+
+			readStoredChunk(world, chunks.keyAt(i), chunk, source);
+		}
+	}
+
+	/**
+	 * Move the signs of every world in another index into this one, e.g.
+	 * once a world's signs have been read on a background thread. Signs
+	 * already in this index are kept, and signs removed from its unread
+	 * chunks aren't added.
+	 * 
+	 * @param other Not used afterwards.
+	 */
+	public void merge(SignIndex other) {
+		for (Entry<String, LongObjectMap<SignChunk>> entry : other.worlds.entrySet()) {
+			String world = entry.getKey();
+			LongObjectMap<SignChunk> otherChunks = entry.getValue();
+
+			for (int i = 0; i < otherChunks.capacity(); i++) {
+				SignChunk otherChunk = otherChunks.valueAt(i);
+				if (otherChunk == null) {
+					continue;
+				}
+
+				long key = otherChunks.keyAt(i);
+				LongObjectMap<SignChunk> chunks = worlds.get(world);
+				SignChunk chunk = chunks != null ? chunks.get(key) : null;
+				if (chunk != null) {
+					mergeChunk(chunk, otherChunk);
+				} else {
+					// Take the chunk over as it is
+					otherChunk.dirtyEpoch = 0;
+					otherChunk.unloaded = false;
+					addChunk(world, key, otherChunk);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mark a world's signs as being read on a background thread. Chunks
+	 * changed in the meantime are unread, so signs removed from them stay
+	 * removed when the signs read are merged in.
+	 * 
+	 * @param world
+	 */
+	public void worldLoading(String world) {
+		loadingWorlds.add(world);
+	}
+
+	/**
+	 * Called once a loading world's signs have been merged in, or its chunk
+	 * source set. Its chunks are then up to date with what's stored.
+	 * 
+	 * @param world
+	 */
+	public void worldLoaded(String world) {
+		loadingWorlds.remove(world);
+
+		LongObjectMap<SignChunk> chunks = worlds.get(world);
+		if (chunks == null || chunkSources.containsKey(world)) {
+			// Setting the chunk source read every chunk in memory
+			return;
+		}
+		for (int i = 0; i < chunks.capacity(); i++) {
+			SignChunk chunk = chunks.valueAt(i);
+			if (chunk != null) {
+				mergeStoredChunk(chunk, null);
+			}
+		}
+	}
+
+	/**
+	 * Drop every sign of a world from memory, e.g. once its data has been
+	 * saved for the last time before it's unloaded.
+	 * 
+	 * @param world
+	 */
+	public void dropWorld(String world) {
+		LongObjectMap<SignChunk> chunks = worlds.remove(world);
+		if (chunks != null) {
+			for (int i = 0; i < chunks.capacity(); i++) {
+				SignChunk chunk = chunks.valueAt(i);
+				if (chunk != null) {
+					size -= chunk.size();
+				}
+			}
+		}
+		chunkSources.remove(world);
+		loadingWorlds.remove(world);
+		shared.remove(world);
+	}
+
+	/**
+	 * Mark every chunk of a world as unloaded, as if the world had unloaded
+	 * them one by one.
+	 * 
+	 * @param world
+	 */
+	public void unloadWorld(String world) {
+		LongObjectMap<SignChunk> chunks = worlds.get(world);
+		if (chunks == null) {
+			return;
+		}
+
+		List<Long> keys = new ArrayList<Long>(chunks.size());
+		for (int i = 0; i < chunks.capacity(); i++) {
+			if (chunks.valueAt(i) != null) {
+				keys.add(chunks.keyAt(i));
+			}
+		}
+
+		// Dropping moves entries around, so do it after iterating
+		for (long key : keys) {
+			unloadChunk(world, chunkX(key), chunkZ(key));
+		}
+	}
+
+	/**
+	 * Cheap check for whether a block might be a hyper sign: whether its chunk
+	 * has signs in memory. Only needs the block's world name and x and z. A
+	 * false result is always right, a true result may not be.
+	 * 
+	 * @param block
+	 */
+	public boolean mightContain(Block block) {
+		LongObjectMap<SignChunk> chunks = worlds.get(block.getWorld().getName());
+		return chunks != null && chunks.containsKey(chunkKey(block.getX() >> 4, block.getZ() >> 4));
+	}
+
+	/**
+	 * @param block
+	 * @return The sign's link, or null if the block isn't a hyper sign.
+	 */
+	public SignLink get(Block block) {
+		return get(block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
+	}
+
+	public SignLink get(String world, int x, int y, int z) {
+		LongObjectMap<SignChunk> chunks = worlds.get(world);
+		if (chunks == null) {
+			return null;
+		}
+
+		SignChunk chunk = chunks.get(chunkKey(x >> 4, z >> 4));
+		if (chunk == null) {
+			return null;
+		}
+
+		return chunk.get(SignChunk.position(x, y, z));
+	}
+
+	/**
+	 * Look up a sign from any thread. Only signs in memory are found, so when
+	 * signs are loaded chunk by chunk, signs in chunks the world hasn't loaded
+	 * aren't.
+	 * 
+	 * @param world
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return The sign's link, or null if it isn't a hyper sign.
+	 */
+	public SignLink find(String world, int x, int y, int z) {
+		ConcurrentHashMap<Long, SignChunk> chunks = shared.get(world);
+		if (chunks == null) {
+			return null;
+		}
+
+		SignChunk chunk = chunks.get(chunkKey(x >> 4, z >> 4));
+		if (chunk == null) {
+			return null;
+		}
+
+		return chunk.get(SignChunk.position(x, y, z));
+	}
+
+	/**
+	 * @return The sign's previous link, or null if it didn't have one.
+	 */
+	public SignLink put(String world, int x, int y, int z, SignLink link) {
+		SignChunk chunk = getChunk(world, x >> 4, z >> 4, true);
+
+		int position = SignChunk.position(x, y, z);
+		SignLink previous = chunk.put(position, link);
+		if (previous == null) {
+			size++;
+		}
+		chunk.unmarkRemoved(position);
+		markDirty(chunk);
+		return previous;
+	}
+
+	/**
+	 * Remove a sign. If its chunk is unread the removal is remembered, so the
+	 * stored copy doesn't bring the sign back once it's read.
+	 * 
+	 * @return The sign's previous link, or null if it didn't have one in
+	 *         memory.
+	 */
+	public SignLink remove(String world, int x, int y, int z) {
+		// A loading world may have the sign stored
+		SignChunk chunk = getChunk(world, x >> 4, z >> 4, loadingWorlds.contains(world));
+		if (chunk == null) {
+			return null;
+		}
+
+		int position = SignChunk.position(x, y, z);
+		SignLink previous = chunk.remove(position);
+		if (previous != null) {
+			size--;
+		}
+		if (chunk.unread) {
+			chunk.markRemoved(position);
+			markDirty(chunk);
+		} else if (previous != null) {
+			markDirty(chunk);
+		}
+		return previous;
+	}
+
+	/**
+	 * Whether a chunk's stored signs aren't known, e.g. because they couldn't
+	 * be read, so a sign missing from memory may still be stored.
+	 * 
+	 * @param world
+	 * @param chunkX
+	 * @param chunkZ
+	 */
+	public boolean isUnread(String world, int chunkX, int chunkZ) {
+		LongObjectMap<SignChunk> chunks = worlds.get(world);
+		SignChunk chunk = chunks != null ? chunks.get(chunkKey(chunkX, chunkZ)) : null;
+		return chunk != null && chunk.unread;
+	}
+
+	/**
+	 * Bring a sign in memory up to date with a change that's already in the
+	 * chunk source, e.g. one saved by another server sharing the database.
+	 * The chunk isn't marked as changed.
+	 * 
+	 * @param world
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param link null to remove the sign.
+	 * @return false if the chunk isn't in memory, so it was left alone.
+	 */
+	public boolean update(String world, int x, int y, int z, SignLink link) {
+		LongObjectMap<SignChunk> chunks = worlds.get(world);
+		SignChunk chunk = chunks != null ? chunks.get(chunkKey(x >> 4, z >> 4)) : null;
+		if (chunk == null) {
+			return false;
+		}
+
+		int position = SignChunk.position(x, y, z);
+		if (link != null) {
+			if (chunk.put(position, link) == null) {
+				size++;
+			}
+			chunk.unmarkRemoved(position);
+		} else if (chunk.remove(position) != null) {
+			size--;
+		}
+		return true;
+	}
+
+	/**
+	 * Bring a chunk's signs into memory when the world loads it. If the chunk
+	 * source reads in the background, the chunk is unread until then.
+	 */
+	public void loadChunk(String world, int chunkX, int chunkZ) {
+		LongObjectMap<SignChunk> chunks = worlds.get(world);
+		long key = chunkKey(chunkX, chunkZ);
+		SignChunk chunk = chunks != null ? chunks.get(key) : null;
+		ChunkSource source = chunkSources.get(world);
+
+		if (chunk != null) {
+			// Read it again if it was unloaded before the last read finished,
+			// which may have missed changes since
+			if (chunk.unloaded && chunk.pendingReads > 0 && source != null
+					&& source.readChunkLater(world, chunkX, chunkZ)) {
+				chunk.pendingReads++;
+			}
+			chunk.unloaded = false;
+			return;
+		}
+
+		if (source != null && source.readChunkLater(world, chunkX, chunkZ)) {
+			// Hold the chunk's changes until it's been read
+			chunk = new SignChunk(1);
+			chunk.pendingReads++;
+			markUnread(chunk);
+			addChunk(world, key, chunk);
+			return;
+		}
+
+		getChunk(world, chunkX, chunkZ, false);
+	}
+
+	/**
+	 * Bring a chunk's signs into memory straight away, even if the chunk
+	 * source reads in the background, e.g. to look up a sign in a chunk the
+	 * world hasn't loaded.
+	 */
+	public void readChunk(String world, int chunkX, int chunkZ) {
+		getChunk(world, chunkX, chunkZ, false);
+	}
+
+	/**
+	 * Merge in a chunk read on the chunk source's background thread. Must be
+	 * called on the server thread.
+	 * 
+	 * @param world
+	 * @param chunkX
+	 * @param chunkZ
+	 * @param stored The chunk's stored signs, or null if there are none.
+	 * @param failed Whether the chunk couldn't be read, in which case it's
+	 *            read again later.
+	 */
+	public void chunkRead(String world, int chunkX, int chunkZ, SignChunk stored, boolean failed) {
+		LongObjectMap<SignChunk> chunks = worlds.get(world);
+		long key = chunkKey(chunkX, chunkZ);
+		SignChunk chunk = chunks != null ? chunks.get(key) : null;
+		if (chunk == null || chunk.pendingReads == 0) {
+			return;
+		}
+
+		chunk.pendingReads--;
+		if (chunk.pendingReads > 0) {
+			// A newer read is on its way
+			return;
+		}
+
+		if (failed) {
+			markUnread(chunk);
+		} else {
+			mergeStoredChunk(chunk, stored);
+		}
+
+		if (chunk.unloaded && chunk.dirtyEpoch == 0) {
+			dropChunk(world, chunks, key);
+		}
+	}
+
+	/**
+	 * Drop a chunk's signs from memory when the world unloads it. Chunks with
+	 * unsaved changes are kept until they've been written, and chunks being
+	 * read until the read has finished.
+	 */
+	public void unloadChunk(String world, int chunkX, int chunkZ) {
+		if (!chunkSources.containsKey(world)) {
+			// Nowhere to read them back from
+			return;
+		}
+
+		LongObjectMap<SignChunk> chunks = worlds.get(world);
+		if (chunks == null) {
+			return;
+		}
+
+		long key = chunkKey(chunkX, chunkZ);
+		SignChunk chunk = chunks.get(key);
+		if (chunk == null) {
+			return;
+		}
+
+		if (chunk.dirtyEpoch != 0 || chunk.pendingReads > 0) {
+			chunk.unloaded = true;
+		} else {
+			dropChunk(world, chunks, key);
+		}
+	}
+
+	/**
+	 * Copy the signs of every world into a snapshot that can be written out on
+	 * another thread.
+	 */
+	public SignsSnapshot snapshot() {
+		return snapshot(null);
+	}
+
+	/**
+	 * Copy the signs into a snapshot that can be written out on another
+	 * thread.
+	 * 
+	 * @param onlyWorld The world to copy, or null for every world.
+	 */
+	public SignsSnapshot snapshot(String onlyWorld) {
+		List<SignRecord> records = new ArrayList<SignRecord>(onlyWorld == null ? size : 16);
+		List<SignRecord> overrides = new ArrayList<SignRecord>();
+		Map<String, long[]> residentChunks = new HashMap<String, long[]>();
+
+		for (Entry<String, LongObjectMap<SignChunk>> entry : worlds.entrySet()) {
+			String world = entry.getKey();
+			if (onlyWorld != null && !onlyWorld.equals(world)) {
+				continue;
+			}
+			LongObjectMap<SignChunk> chunks = entry.getValue();
+			long[] keys = new long[chunks.size()];
+			int keyCount = 0;
+
+			for (int i = 0; i < chunks.capacity(); i++) {
+				SignChunk chunk = chunks.valueAt(i);
+				if (chunk == null) {
+					continue;
+				}
+
+				// The source's copy of an unread chunk is still needed
+				long key = chunks.keyAt(i);
+				if (!chunk.unread) {
+					keys[keyCount++] = key;
+				}
+
+				int chunkX = chunkX(key);
+				int chunkZ = chunkZ(key);
+				List<SignRecord> chunkRecords = chunk.unread ? overrides : records;
+				for (int j = 0; j < chunk.size(); j++) {
+					int position = chunk.positionAt(j);
+					chunkRecords.add(new SignRecord(world, SignChunk.blockX(chunkX, position), SignChunk
+							.blockY(position), SignChunk.blockZ(chunkZ, position), chunk.linkAt(j)
+							.getUrlString()));
+				}
+				if (chunk.unread && chunk.removed != null) {
+					for (int position : chunk.removed) {
+						overrides.add(new SignRecord(world, SignChunk.blockX(chunkX, position), SignChunk
+								.blockY(position), SignChunk.blockZ(chunkZ, position), null));
+					}
+				}
+			}
+
+			keys = Arrays.copyOf(keys, keyCount);
+			Arrays.sort(keys);
+			residentChunks.put(world, keys);
+		}
+
+		// Each distinct source once, e.g. a database shared by every world
+		List<ChunkSource> bases = new ArrayList<ChunkSource>();
+		for (Entry<String, ChunkSource> entry : chunkSources.entrySet()) {
+			if (onlyWorld != null && !onlyWorld.equals(entry.getKey())) {
+				continue;
+			}
+			if (!bases.contains(entry.getValue())) {
+				bases.add(entry.getValue());
+			}
+		}
+
+		return new SignsSnapshot(records, overrides, bases, residentChunks, nextEpoch(), chunked);
+	}
+
+	/**
+	 * Start a new epoch, e.g. when changes are handed off to be saved.
+	 * 
+	 * @return The epoch that every change made so far belongs to.
+	 */
+	public int nextEpoch() {
+		return epoch++;
+	}
+
+	/**
+	 * Hold back the changes made from now on, e.g. while a bulk job that
+	 * hands its changes to the store once it finishes takes a step. The
+	 * chunks they're in are kept until releaseHeldChanges() is called.
+	 * 
+	 * @param hold
+	 */
+	public void holdChanges(boolean hold) {
+		holding = hold;
+	}
+
+	/**
+	 * Called once the held back changes have been handed to the store, so
+	 * the next save counts them.
+	 */
+	public void releaseHeldChanges() {
+		for (LongObjectMap<SignChunk> chunks : worlds.values()) {
+			for (int i = 0; i < chunks.capacity(); i++) {
+				SignChunk chunk = chunks.valueAt(i);
+				if (chunk != null && chunk.dirtyEpoch == HELD_EPOCH) {
+					chunk.dirtyEpoch = epoch;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Called once the changes up to an epoch have been saved. Chunks that
+	 * haven't changed since then now match the chunk source, and can be
+	 * dropped if the world has unloaded them.
+	 * 
+	 * @param savedWorld The world whose changes were saved, or null for every
+	 *            world.
+	 * @param savedEpoch
+	 * @param written The world's newly written data file, if signs are loaded
+	 *            chunk by chunk. If it couldn't be mapped, or the changes
+	 *            were saved into the chunk source itself, this is null and the
+	 *            current source is kept.
+	 */
+	public void changesSaved(String savedWorld, int savedEpoch, ChunkSource written) {
+		if (chunked && written != null && savedWorld != null) {
+			chunkSources.put(savedWorld, written);
+		}
+
+		List<String> dropWorlds = new ArrayList<String>();
+		List<Long> dropKeys = new ArrayList<Long>();
+
+		for (Entry<String, LongObjectMap<SignChunk>> entry : worlds.entrySet()) {
+			if (savedWorld != null && !savedWorld.equals(entry.getKey())) {
+				continue;
+			}
+			LongObjectMap<SignChunk> chunks = entry.getValue();
+			boolean hasSource = chunkSources.containsKey(entry.getKey());
+
+			for (int i = 0; i < chunks.capacity(); i++) {
+				SignChunk chunk = chunks.valueAt(i);
+				if (chunk == null || chunk.dirtyEpoch == 0 || chunk.dirtyEpoch > savedEpoch) {
+					continue;
+				}
+
+				// An empty unread chunk still has stored signs to read
+				chunk.dirtyEpoch = 0;
+				if (chunk.pendingReads == 0
+						&& ((chunk.unloaded && hasSource) || (chunk.size() == 0 && !chunk.unread))) {
+					dropWorlds.add(entry.getKey());
+					dropKeys.add(chunks.keyAt(i));
+				}
+			}
+		}
+
+		// Dropping moves entries around, so do it after iterating
+		for (int i = 0; i < dropKeys.size(); i++) {
+			dropChunk(dropWorlds.get(i), worlds.get(dropWorlds.get(i)), dropKeys.get(i));
+		}
+	}
+
+	/**
+	 * Find a chunk in memory, reading it from the chunk source if needed.
+	 * 
+	 * @param create Whether to create an empty chunk if it has no signs.
+	 */
+	private SignChunk getChunk(String world, int chunkX, int chunkZ, boolean create) {
+		LongObjectMap<SignChunk> chunks = worlds.get(world);
+		long key = chunkKey(chunkX, chunkZ);
+
+		SignChunk chunk = chunks != null ? chunks.get(key) : null;
+		if (chunk != null) {
+			chunk.unloaded = false;
+			return chunk;
+		}
+
+		ChunkSource source = chunkSources.get(world);
+		if (source != null) {
+			try {
+				chunk = source.readChunk(world, chunkX, chunkZ);
+			} catch (IOException e) {
+				// Hold the chunk's changes until it can be read
+				chunk = new SignChunk(1);
+				markUnread(chunk);
+			}
+		}
+		if (chunk == null) {
+			if (!create) {
+				return null;
+			}
+			chunk = new SignChunk(1);
+			if (loadingWorlds.contains(world)) {
+				markUnread(chunk);
+			}
+		}
+
+		addChunk(world, key, chunk);
+		return chunk;
+	}
+
+	private void addChunk(String world, long key, SignChunk chunk) {
+		LongObjectMap<SignChunk> chunks = worlds.get(world);
+		if (chunks == null) {
+			chunks = new LongObjectMap<SignChunk>();
+			worlds.put(world, chunks);
+		}
+		chunks.put(key, chunk);
+		size += chunk.size();
+
+		ConcurrentHashMap<Long, SignChunk> sharedChunks = shared.get(world);
+		if (sharedChunks == null) {
+			sharedChunks = new ConcurrentHashMap<Long, SignChunk>();
+			shared.put(world, sharedChunks);
+		}
+		sharedChunks.put(key, chunk);
+	}
+
+	/**
+	 * Add the signs of another copy of a chunk that this one doesn't have and
+	 * hasn't removed.
+	 */
+	private void mergeChunk(SignChunk chunk, SignChunk other) {
+		for (int j = 0; j < other.size(); j++) {
+			int position = other.positionAt(j);
+			if (chunk.get(position) == null && !chunk.wasRemoved(position)) {
+				chunk.put(position, other.linkAt(j));
+				size++;
+			}
+		}
+	}
+
+	/**
+	 * Bring a chunk in memory up to date with its stored copy, now that it's
+	 * been read.
+	 * 
+	 * @param stored null if no signs are stored in the chunk.
+	 */
+	private void mergeStoredChunk(SignChunk chunk, SignChunk stored) {
+		if (stored != null) {
+			mergeChunk(chunk, stored);
+		}
+		chunk.unread = false;
+		chunk.removed = null;
+	}
+
+	private void dropChunk(String world, LongObjectMap<SignChunk> chunks, long key) {
+		SignChunk chunk = chunks.remove(key);
+		if (chunk != null) {
+			size -= chunk.size();
+			shared.get(world).remove(key);
+		}
+		if (chunks.isEmpty()) {
+			worlds.remove(world);
+			shared.remove(world);
+		}
+	}
+
+	/**
+	 * Read the chunks that couldn't be read before again, once their changes
+	 * have been saved, so that what's read includes them. Must be called on
+	 * the server thread, e.g. every save interval.
+	 */
+	public void retryUnreadChunks() {
+		if (unreadChunks == 0) {
+			return;
+		}
+		unreadChunks = 0;
+
+		for (Entry<String, LongObjectMap<SignChunk>> entry : worlds.entrySet()) {
+			String world = entry.getKey();
+			ChunkSource source = chunkSources.get(world);
+			LongObjectMap<SignChunk> chunks = entry.getValue();
+
+			for (int i = 0; i < chunks.capacity(); i++) {
+				SignChunk chunk = chunks.valueAt(i);
+				if (chunk == null || !chunk.unread || chunk.pendingReads > 0) {
+					continue;
+				}
+				if (chunk.dirtyEpoch != 0 || source == null) {
+					unreadChunks++;
+					continue;
+				}
+
+				readStoredChunk(world, chunks.keyAt(i), chunk, source);
+			}
+		}
+	}
+
+	/**
+	 * Read the stored signs of a chunk in memory and merge them in, on the
+	 * chunk source's background thread if it has one.
+	 */
+	private void readStoredChunk(String world, long key, SignChunk chunk, ChunkSource source) {
+		if (source.readChunkLater(world, chunkX(key), chunkZ(key))) {
+			chunk.pendingReads++;
+			if (!chunk.unread) {
+				markUnread(chunk);
+			}
+			return;
+		}
+
+		try {
+			mergeStoredChunk(chunk, source.readChunk(world, chunkX(key), chunkZ(key)));
+		} catch (IOException e) {
+			markUnread(chunk);
+		}
+	}
+
+	private void markUnread(SignChunk chunk) {
+		chunk.unread = true;
+		unreadChunks++;
+	}
+
+	private void markDirty(SignChunk chunk) {
+		if (holding) {
+			chunk.dirtyEpoch = HELD_EPOCH;
+		} else if (chunk.dirtyEpoch != HELD_EPOCH) {
+			chunk.dirtyEpoch = epoch;
+		}
+	}
+}
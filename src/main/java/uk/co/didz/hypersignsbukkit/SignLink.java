@@ -0,0 +1,127 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.net.URL;
+
+/**
+ * A URL that signs link to, along with everything needed to send it to a
+ * player. The plugin message and fallback chat line are built once (the
+ * chat line again if the configured fallback changes), so clicking a sign is
+ * just a lookup and a send.
+ */
+public final class SignLink {
+
+	private final URL url;
+	private final String urlString;
+	private final byte[] message;
+	private volatile String fallbackMessage;
+
+	/**
+	 * Id of an interned link, and its messages for clients that cache URLs by
+	 * id. The id is 0 and the messages null for one-off links.
+	 */
+	private final int id;
+	private final byte[] defineMessage;
+	private final byte[] idMessage;
+
+	/**
+	 * @param url
+	 * @param message Encoded URL trigger plugin message, or null if the URL
+	 *            couldn't be encoded.
+	 * @param fallbackMessage Chat line for players without the HyperSigns
+	 *            client.
+	 */
+	public SignLink(URL url, byte[] message, String fallbackMessage) {
+		this(url, message, fallbackMessage, 0, null, null);
+	}
+
+	/**
+	 * @param url
+	 * @param message
+	 * @param fallbackMessage
+	 * @param id Id of the URL, unique among interned links.
+	 * @param defineMessage Encoded message defining the id, or null if it
+	 *            couldn't be encoded.
+	 * @param idMessage Encoded URL id trigger message.
+	 */
+	public SignLink(URL url, byte[] message, String fallbackMessage, int id, byte[] defineMessage,
+			byte[] idMessage) {
+		this.url = url;
+		this.urlString = url.toString();
+		this.message = message;
+		this.fallbackMessage = fallbackMessage;
+		this.id = defineMessage != null ? id : 0;
+		this.defineMessage = defineMessage;
+		this.idMessage = idMessage;
+	}
+
+	public URL getUrl() {
+		return url;
+	}
+
+	public String getUrlString() {
+		return urlString;
+	}
+
+	/**
+	 * @return The URL trigger plugin message. Don't modify it, it's shared.
+	 *         null if the URL couldn't be encoded.
+	 */
+	public byte[] getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return The URL's id, or 0 if it has none and must be sent in full.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return The message defining the URL's id and triggering it. Don't
+	 *         modify it, it's shared.
+	 */
+	public byte[] getDefineMessage() {
+		return defineMessage;
+	}
+
+	/**
+	 * @return The message triggering the URL by its id. Don't modify it, it's
+	 *         shared.
+	 */
+	public byte[] getIdMessage() {
+		return idMessage;
+	}
+
+	public String getFallbackMessage() {
+		return fallbackMessage;
+	}
+
+	/**
+	 * Change the fallback chat line, e.g. when the configured prefix or
+	 * suffix has been reloaded. Only SignLinks does this.
+	 * 
+	 * @param fallbackMessage
+	 */
+	void setFallbackMessage(String fallbackMessage) {
+		this.fallbackMessage = fallbackMessage;
+	}
+}
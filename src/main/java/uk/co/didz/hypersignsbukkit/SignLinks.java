@@ -0,0 +1,195 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates SignLinks, using the configured fallback prefix and suffix.
+ * 
+ * Links for signs are interned: every sign with the same URL shares one
+ * SignLink, so a URL used on hundreds of signs is only held (and encoded)
+ * once. Each interned link also gets an id, which clients that cache URLs are
+ * sent instead of the URL after the first time. Interned links are only held
+ * weakly, so once no sign in memory uses a URL its link can be garbage
+ * collected and is dropped from the table. Ids are never reused: a URL that's
+ * interned again gets a new id. Safe to use from any thread.
+ */
+public class SignLinks {
+
+	private final Logger log;
+	private volatile String fallbackPrefix;
+	private volatile String fallbackSuffix;
+	private final ConcurrentHashMap<String, LinkReference> interned =
+			new ConcurrentHashMap<String, LinkReference>();
+
+	/**
+	 * Receives the references of interned links that have been garbage
+	 * collected. Only polled while synchronized.
+	 */
+	private final ReferenceQueue<SignLink> collected = new ReferenceQueue<SignLink>();
+
+	/**
+	 * Id of the last link interned. Only accessed while synchronized.
+	 */
+	private int lastId = 0;
+
+	public SignLinks(Logger log, String fallbackPrefix, String fallbackSuffix) {
+		this.log = log;
+		this.fallbackPrefix = fallbackPrefix;
+		this.fallbackSuffix = fallbackSuffix;
+	}
+
+	/**
+	 * Get the shared link for a URL, creating it the first time the URL is
+	 * seen. Use this for links stored with signs.
+	 * 
+	 * @param url
+	 */
+	public SignLink get(URL url) {
+		String key = url.toString();
+		SignLink link = find(key);
+		if (link == null) {
+			// Don't let a new link miss a change to the fallback, and only
+			// use up an id if another thread didn't just add the link
+			synchronized (this) {
+				link = find(key);
+				if (link == null) {
+					removeCollected();
+					link = create(url, ++lastId);
+					interned.put(key, new LinkReference(key, link, collected));
+				}
+			}
+		}
+		return link;
+	}
+
+	/**
+	 * Get the interned link for a URL without validating it, if it's still
+	 * in use.
+	 * 
+	 * @param urlString
+	 * @return null if the URL isn't interned.
+	 */
+	public SignLink find(String urlString) {
+		LinkReference reference = interned.get(urlString);
+		return reference != null ? reference.get() : null;
+	}
+
+	/**
+	 * Change the fallback prefix and suffix, e.g. after config.yml has been
+	 * reloaded. Interned links are updated in place, so the signs using them
+	 * don't need to change.
+	 * 
+	 * @param prefix
+	 * @param suffix
+	 * @return Number of links whose fallback chat line changed.
+	 */
+	public synchronized int setFallback(String prefix, String suffix) {
+		if (prefix.equals(fallbackPrefix) && suffix.equals(fallbackSuffix)) {
+			return 0;
+		}
+
+		fallbackPrefix = prefix;
+		fallbackSuffix = suffix;
+		int changed = 0;
+		for (LinkReference reference : interned.values()) {
+			SignLink link = reference.get();
+			if (link == null) {
+				continue;
+			}
+			String fallbackMessage = prefix + link.getUrlString() + suffix;
+			if (!fallbackMessage.equals(link.getFallbackMessage())) {
+				link.setFallbackMessage(fallbackMessage);
+				changed++;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * @return Number of distinct URLs interned.
+	 */
+	public synchronized int size() {
+		removeCollected();
+		return interned.size();
+	}
+
+	/**
+	 * Drop the links that have been garbage collected from the table. Only
+	 * call this while synchronized.
+	 */
+	private void removeCollected() {
+		LinkReference reference;
+		while ((reference = (LinkReference) collected.poll()) != null) {
+			// The URL may have been interned again since
+			interned.remove(reference.key, reference);
+		}
+	}
+
+	/**
+	 * Build the plugin message and fallback chat line for a URL, without
+	 * interning it. Use this for one-off sends.
+	 * 
+	 * @param url
+	 */
+	public SignLink create(URL url) {
+		return create(url, 0);
+	}
+
+	/**
+	 * @param url
+	 * @param id 0 for a link without an id.
+	 */
+	private SignLink create(URL url, int id) {
+		byte[] message;
+		byte[] defineMessage = null;
+		try {
+			message = ServerMessageComposer.writeClientUrlTrigger(url);
+			if (id != 0) {
+				defineMessage = ServerMessageComposer.writeClientUrlDefinition(id, url);
+			}
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Unable to create URL Trigger packet.", e);
+			message = null;
+		}
+
+		return new SignLink(url, message, fallbackPrefix + url.toString() + fallbackSuffix, id, defineMessage,
+				id != 0 ? ServerMessageComposer.writeClientUrlIdTrigger(id) : null);
+	}
+
+	/**
+	 * Weak reference to an interned link that remembers the link's URL, so
+	 * it can be removed from the table once the link is collected.
+	 */
+	private static class LinkReference extends WeakReference<SignLink> {
+		final String key;
+
+		LinkReference(String key, SignLink link, ReferenceQueue<SignLink> queue) {
+			super(link, queue);
+			this.key = key;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+/**
+ * An immutable copy of one hyper sign, as it is stored on disk. Records don't
+ * hold any Bukkit objects so they can be safely handed to other threads.
+ */
+public final class SignRecord {
+
+	private final String world;
+	private final int x;
+	private final int y;
+	private final int z;
+	private final String url;
+
+	public SignRecord(String world, int x, int y, int z, String url) {
+		this.world = world;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.url = url;
+	}
+
+	public String getWorld() {
+		return world;
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	public int getZ() {
+		return z;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.command.CommandSender;
+
+/**
+ * A bulk job that goes through every sign, one per step. The signs are
+ * collected from a snapshot on a background thread when the job is created,
+ * since that can mean reading the whole data file, and the job waits until
+ * they're ready. Signs changed after the snapshot was taken are seen as they
+ * were, so each one should be checked again before it's changed.
+ */
+public abstract class SignRecordsJob extends BulkJob {
+
+	private volatile List<SignRecord> records = null;
+	private int next = 0;
+
+	/**
+	 * @param plugin
+	 * @param description
+	 * @param sender
+	 */
+	public SignRecordsJob(HyperSignsBukkit plugin, String description, CommandSender sender) {
+		super(plugin, description, sender);
+
+		final SignsSnapshot snapshot = plugin.snapshotSignsData();
+		final Logger log = plugin.getLogger();
+		plugin.getServer().getScheduler().scheduleAsyncDelayedTask(plugin, new Runnable() {
+			public void run() {
+				try {
+					records = snapshot.getRecords();
+				} catch (IOException e) {
+					log.log(Level.SEVERE, "Unable to read the signs for a bulk job.", e);
+					records = new ArrayList<SignRecord>();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Look at a single sign.
+	 * 
+	 * @param record
+	 */
+	protected abstract void visit(SignRecord record);
+
+	@Override
+	protected boolean isReady() {
+		return records != null;
+	}
+
+	@Override
+	protected boolean step() {
+		if (next >= records.size()) {
+			return false;
+		}
+
+		visit(records.get(next++));
+		return next < records.size();
+	}
+
+	@Override
+	protected String progress() {
+		return records != null ? next + "/" + records.size() + " signs" : "collecting signs";
+	}
+}
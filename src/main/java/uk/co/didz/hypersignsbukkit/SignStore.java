@@ -0,0 +1,78 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Where changes to the sign data are saved. Changes are queued up on the
+ * server thread and written out in the background.
+ */
+public interface SignStore {
+
+	/**
+	 * Start saving queued changes.
+	 * 
+	 * @param interval Ticks between each save.
+	 */
+	public void start(long interval);
+
+	/**
+	 * Queue a change to be saved. Must be called on the server thread.
+	 * 
+	 * @param record New state of the sign. A null URL removes the sign.
+	 */
+	public void logChange(SignRecord record);
+
+	/**
+	 * Hand queued changes to the background thread now instead of at the end
+	 * of the save interval, e.g. once a bulk job finishes, so the job's
+	 * changes are saved as one batch. Must be called on the server thread.
+	 */
+	public void flush();
+
+	/**
+	 * Queue a snapshot of the loaded signs to be written to a file, e.g. for
+	 * exporting to JSON. Must be called on the server thread.
+	 * 
+	 * @param file
+	 * @param format
+	 * @param callback Run on a background thread with the result, may be
+	 *            null.
+	 */
+	public void export(File file, SignsFormat format, ExportCallback callback);
+
+	/**
+	 * Stop saving in the background, save any queued changes and wait for
+	 * them to be written. Must be called on the server thread.
+	 */
+	public void shutdown();
+
+	/**
+	 * Receives the result of an export.
+	 */
+	public interface ExportCallback {
+		/**
+		 * @param count Number of signs exported.
+		 * @param error null if the export succeeded.
+		 */
+		public void done(int count, IOException error);
+	}
+}
@@ -0,0 +1,64 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * An on-disk format for the sign data file.
+ */
+public interface SignsFormat {
+
+	/**
+	 * Receives the signs read from a data file, one at a time.
+	 */
+	public interface Handler {
+		/**
+		 * @param record A sign read from the file.
+		 */
+		public void handle(SignRecord record);
+	}
+
+	/**
+	 * @return Name of the data file in the plugin's data folder.
+	 */
+	public String getFileName();
+
+	/**
+	 * Read every sign in the file. Signs with missing or malformed fields are
+	 * skipped with a warning.
+	 * 
+	 * @param file
+	 * @param handler
+	 * @throws IOException If the file can't be read at all.
+	 */
+	public void read(File file, Handler handler) throws IOException;
+
+	/**
+	 * Write the signs out in this format.
+	 * 
+	 * @param records
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(List<SignRecord> records, OutputStream out) throws IOException;
+}
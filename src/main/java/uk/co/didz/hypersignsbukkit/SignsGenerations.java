@@ -0,0 +1,417 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * The numbered generations of one world's data file. Each snapshot of the
+ * world is written as a new generation, e.g. signs.7.dat, next to a .sum file
+ * holding its checksum. Changes made since a generation was written go into
+ * its own journal, e.g. signs.7.journal, so any kept generation can be brought
+ * up to date by replaying the journals from it onwards.
+ * 
+ * A generation whose data file doesn't match its checksum, e.g. one damaged
+ * by a crash or a full disk, is skipped in favour of the one before, and so
+ * is one without a checksum. To edit a data file by hand, turn on
+ * acceptDataWithoutChecksum in config.yml and delete its .sum file. Worlds
+ * whose signs haven't changed never get a new generation, so unchanged worlds
+ * are shared by every snapshot rather than copied.
+ * 
+ * Generation 0 is the unnumbered signs.json or signs.dat and signs.journal
+ * written by older versions. It has no checksum and is trusted as it is.
+ */
+public class SignsGenerations {
+
+	private static final String SUM_EXTENSION = ".sum";
+
+	private final File folder;
+	private final SignsFormat format;
+	private final String prefix;
+	private final String extension;
+	private final boolean acceptUnsummed;
+
+	/**
+	 * @param folder The world's folder.
+	 * @param format Format of the data files.
+	 */
+	public SignsGenerations(File folder, SignsFormat format) {
+		this(folder, format, false);
+	}
+
+	/**
+	 * @param folder The world's folder.
+	 * @param format Format of the data files.
+	 * @param acceptUnsummed Whether data files without a checksum count as
+	 *            complete, e.g. ones edited by hand.
+	 */
+	public SignsGenerations(File folder, SignsFormat format, boolean acceptUnsummed) {
+		this.folder = folder;
+		this.format = format;
+		this.acceptUnsummed = acceptUnsummed;
+
+		String fileName = format.getFileName();
+		int dot = fileName.lastIndexOf('.');
+		prefix = fileName.substring(0, dot + 1);
+		extension = fileName.substring(dot);
+	}
+
+	public File getFolder() {
+		return folder;
+	}
+
+	public SignsFormat getFormat() {
+		return format;
+	}
+
+	public File getDataFile(int generation) {
+		if (generation == 0) {
+			return new File(folder, format.getFileName());
+		}
+		return new File(folder, prefix + generation + extension);
+	}
+
+	public File getJournalFile(int generation) {
+		if (generation == 0) {
+			return new File(folder, ShardedSignStore.JOURNAL_NAME);
+		}
+		return new File(folder, prefix + generation + ".journal");
+	}
+
+	private File getSumFile(int generation) {
+		return new File(getDataFile(generation).getPath() + SUM_EXTENSION);
+	}
+
+	/**
+	 * @return Generations that have a data file, newest first.
+	 */
+	public List<Integer> list() {
+		return list(extension);
+	}
+
+	/**
+	 * @return The newest generation with a data file or a journal, or 0 if
+	 *         there aren't any.
+	 */
+	public int getNewest() {
+		int newest = 0;
+		for (int generation : list(extension)) {
+			newest = Math.max(newest, generation);
+		}
+		for (int generation : list(".journal")) {
+			newest = Math.max(newest, generation);
+		}
+		return newest;
+	}
+
+	/**
+	 * @return Whether there are no signs stored, i.e. no data files and no
+	 *         journal with any changes in it.
+	 */
+	public boolean isEmpty() {
+		if (!list(extension).isEmpty()) {
+			return false;
+		}
+		for (int generation : list(".journal")) {
+			if (getJournalFile(generation).length() > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check a generation's data file against its checksum.
+	 * 
+	 * @param generation
+	 * @return Whether the data file is complete, as far as can be told.
+	 */
+	public boolean isValid(int generation) {
+		File dataFile = getDataFile(generation);
+		if (generation == 0) {
+			return dataFile.exists();
+		}
+
+		// The checksum is written before its data file is renamed into
+		// place, so a data file without one may not have been written in full
+		File sumFile = getSumFile(generation);
+		if (!sumFile.exists()) {
+			return acceptUnsummed && dataFile.exists();
+		}
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(sumFile),
+					"UTF-8"));
+			String line;
+			try {
+				line = in.readLine();
+			} finally {
+				in.close();
+			}
+
+			String[] fields = line != null ? line.trim().split(" ") : new String[0];
+			if (fields.length != 2) {
+				return false;
+			}
+			long length = Long.parseLong(fields[1]);
+			return dataFile.length() == length && checksum(dataFile) == Long.parseLong(fields[0], 16);
+		} catch (NumberFormatException e) {
+			return false;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Write a new generation. The data file is written to a temporary file
+	 * and synced, then its checksum is written, synced and renamed into place,
+	 * and only then is the data file renamed into place. Whatever point a
+	 * crash stops this at, the data file is either missing, or complete with
+	 * its checksum.
+	 * 
+	 * @param generation
+	 * @param records
+	 * @throws IOException
+	 */
+	public void write(int generation, List<SignRecord> records) throws IOException {
+		folder.mkdirs();
+		File dataFile = getDataFile(generation);
+		if (generation == 0) {
+			SignsWriter.writeFile(dataFile, format, records);
+			return;
+		}
+
+		File dataTempFile = new File(dataFile.getPath() + ".tmp");
+		long crc = SignsWriter.writeTempFile(dataTempFile, format, records);
+
+		File sumFile = getSumFile(generation);
+		File sumTempFile = new File(sumFile.getPath() + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(sumTempFile);
+			try {
+				Writer writer = new OutputStreamWriter(out, "UTF-8");
+				writer.write(Long.toHexString(crc) + " " + dataTempFile.length() + "\n");
+				writer.flush();
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			SignsWriter.replaceFile(sumTempFile, sumFile);
+		} catch (IOException e) {
+			sumTempFile.delete();
+			dataTempFile.delete();
+			throw e;
+		}
+
+		SignsWriter.replaceFile(dataTempFile, dataFile);
+	}
+
+	/**
+	 * Delete all but the newest generations up to the current one, and the
+	 * journals only they need. Files that can't be deleted, e.g. because
+	 * they're still mapped on some platforms, are tried again next time.
+	 * 
+	 * @param current The generation now being written to.
+	 * @param keep Number of generations to keep.
+	 */
+	public void prune(int current, int keep) {
+		int kept = 0;
+		int oldestKept = current;
+		for (int generation : list(extension)) {
+			if (generation > current) {
+				continue;
+			}
+			if (kept < Math.max(keep, 1)) {
+				kept++;
+				oldestKept = generation;
+				continue;
+			}
+			getDataFile(generation).delete();
+			getSumFile(generation).delete();
+		}
+
+		for (int generation : list(".journal")) {
+			if (generation < oldestKept) {
+				getJournalFile(generation).delete();
+			}
+		}
+	}
+
+	/**
+	 * Log that a generation that isn't valid is being skipped, and why.
+	 * 
+	 * @param generation
+	 * @param log
+	 */
+	public void warnInvalid(int generation, Logger log) {
+		String name = getDataFile(generation).getName() + " of '" + folder.getName() + "'";
+		if (!getSumFile(generation).exists() && getDataFile(generation).exists()) {
+			log.warning(name + " has no .sum file, so it may be incomplete. If it was edited by hand, "
+					+ "turn on acceptDataWithoutChecksum in config.yml. Trying the generation before it.");
+		} else {
+			log.warning(name + " is incomplete. Trying the generation before it.");
+		}
+	}
+
+	/**
+	 * Read the newest generation that's valid and readable, with every journal
+	 * from it onwards applied. Use it on the background thread.
+	 * 
+	 * @param log
+	 * @return The world's signs.
+	 * @throws IOException If there are generations but none could be read.
+	 */
+	public List<SignRecord> readRecords(Logger log) throws IOException {
+		final List<SignRecord> records = new ArrayList<SignRecord>();
+		int base = -1;
+		for (int generation : list()) {
+			if (!isValid(generation)) {
+				warnInvalid(generation, log);
+				continue;
+			}
+			try {
+				format.read(getDataFile(generation), new SignsFormat.Handler() {
+					public void handle(SignRecord record) {
+						records.add(record);
+					}
+				});
+				base = generation;
+				break;
+			} catch (IOException e) {
+				log.warning("Unable to read " + getDataFile(generation).getName() + " of '"
+						+ folder.getName() + "': " + e + ". Trying the generation before it.");
+				records.clear();
+			}
+		}
+		if (base == -1 && !list().isEmpty()) {
+			throw new IOException("No generation of the signs of '" + folder.getName() + "' is readable.");
+		}
+
+		List<SignRecord> changes = new ArrayList<SignRecord>();
+		for (int generation : getJournals(Math.max(base, 0))) {
+			changes.addAll(new SignsJournal(getJournalFile(generation), log).read());
+		}
+		return ShardedSignStore.applyChanges(records, changes);
+	}
+
+	/**
+	 * @param from
+	 * @return Generations from the given one onwards that have a journal,
+	 *         oldest first, i.e. in the order to replay them.
+	 */
+	public List<Integer> getJournals(int from) {
+		List<Integer> journals = new ArrayList<Integer>();
+		for (int generation : list(".journal")) {
+			if (generation >= from) {
+				journals.add(generation);
+			}
+		}
+		Collections.reverse(journals);
+		return journals;
+	}
+
+	/**
+	 * Stop using these files, e.g. once they've been converted to another
+	 * format. The data files are kept with a .bak extension, checksums and
+	 * journals are deleted.
+	 */
+	public void retire() {
+		for (int generation : list(extension)) {
+			File dataFile = getDataFile(generation);
+			File backupFile = new File(dataFile.getPath() + ".bak");
+			backupFile.delete();
+			dataFile.renameTo(backupFile);
+			getSumFile(generation).delete();
+		}
+		for (int generation : list(".journal")) {
+			getJournalFile(generation).delete();
+		}
+	}
+
+	/**
+	 * @param suffix
+	 * @return Generations with a file ending in the suffix, newest first.
+	 */
+	private List<Integer> list(String suffix) {
+		List<Integer> generations = new ArrayList<Integer>();
+		String[] names = folder.list();
+		if (names == null) {
+			return generations;
+		}
+
+		String legacyName = suffix.equals(extension) ? format.getFileName() : ShardedSignStore.JOURNAL_NAME;
+		for (String name : names) {
+			if (name.equals(legacyName)) {
+				if (new File(folder, name).length() > 0) {
+					generations.add(0);
+				}
+				continue;
+			}
+			if (!name.startsWith(prefix) || !name.endsWith(suffix)
+					|| name.length() <= prefix.length() + suffix.length()) {
+				continue;
+			}
+			try {
+				int generation = Integer.parseInt(name.substring(prefix.length(), name.length()
+						- suffix.length()));
+				if (generation > 0) {
+					generations.add(generation);
+				}
+			} catch (NumberFormatException e) {
+				// Not one of ours
+			}
+		}
+
+		Collections.sort(generations, Collections.reverseOrder());
+		return generations;
+	}
+
+	/**
+	 * @param file
+	 * @return CRC32 of the file's contents.
+	 * @throws IOException
+	 */
+	private static long checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[65536];
+		InputStream in = new FileInputStream(file);
+		try {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				crc.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,175 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Append-only log of sign changes made since the data file was last written.
+ *
+ * Each change is a small record, so saving one sign costs the same no matter
+ * how many signs there are. A record with a null URL removes the sign.
+ *
+ * Not thread safe. Once the plugin is enabled, only the writer thread may use
+ * the journal.
+ */
+public class SignsJournal {
+
+	private static final byte SET = 1;
+	private static final byte REMOVE = 2;
+
+	private final File file;
+	private final Logger log;
+	private FileOutputStream fileOut;
+	private DataOutputStream out;
+
+	public SignsJournal(File file, Logger log) {
+		this.file = file;
+		this.log = log;
+	}
+
+	/**
+	 * @return Current size of the journal file in bytes.
+	 */
+	public long length() {
+		return file.length();
+	}
+
+	/**
+	 * Read every complete record in the journal. A torn record at the end
+	 * (e.g. from a crash during an append) is discarded and cut off the file
+	 * so that later appends aren't lost behind it.
+	 *
+	 * @return Records in the order they were appended.
+	 * @throws IOException
+	 */
+	public List<SignRecord> read() throws IOException {
+		List<SignRecord> records = new ArrayList<SignRecord>();
+		if (!file.exists()) {
+			return records;
+		}
+
+		long validLength = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while (true) {
+				int op = in.read();
+				if (op == -1) {
+					break;
+				}
+				if (op != SET && op != REMOVE) {
+					log.warning("Found an unknown record in " + file.getName()
+							+ ". Ignoring the rest of it.");
+					break;
+				}
+
+				String world = in.readUTF();
+				int x = in.readInt();
+				int y = in.readInt();
+				int z = in.readInt();
+				String url = null;
+				if (op == SET) {
+					url = in.readUTF();
+				}
+
+				records.add(new SignRecord(world, x, y, z, url));
+				validLength += recordLength(world, url);
+			}
+		} catch (EOFException e) {
+			log.warning("Found an incomplete record at the end of " + file.getName() + ". Ignoring it.");
+		} finally {
+			in.close();
+		}
+
+		if (validLength < file.length()) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(validLength);
+			} finally {
+				raf.close();
+			}
+		}
+
+		return records;
+	}
+
+	/**
+	 * Append the records to the journal and sync them to disk.
+	 *
+	 * @param records
+	 * @throws IOException
+	 */
+	public void append(List<SignRecord> records) throws IOException {
+		if (out == null) {
+			fileOut = new FileOutputStream(file, true);
+			out = new DataOutputStream(new BufferedOutputStream(fileOut));
+		}
+
+		for (SignRecord record : records) {
+			out.writeByte(record.getUrl() != null ? SET : REMOVE);
+			out.writeUTF(record.getWorld());
+			out.writeInt(record.getX());
+			out.writeInt(record.getY());
+			out.writeInt(record.getZ());
+			if (record.getUrl() != null) {
+				out.writeUTF(record.getUrl());
+			}
+		}
+
+		out.flush();
+		fileOut.getFD().sync();
+	}
+
+	/**
+	 * Close the journal file. It will be reopened by the next append.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+			fileOut = null;
+		}
+	}
+
+	/**
+	 * Size of an encoded record, matching the layout written by append().
+	 */
+	private static long recordLength(String world, String url) throws UTFDataFormatException {
+		long length = 1 + ServerMessageComposer.utfLength(world) + 12;
+		if (url != null) {
+			length += ServerMessageComposer.utfLength(url);
+		}
+		return length;
+	}
+}
@@ -0,0 +1,280 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ * Loads a data file with the URLs validated on a pool of worker threads.
+ * 
+ * The file is streamed on the calling thread and its records handed to the
+ * workers in batches. Each distinct URL is only validated once, by whichever
+ * worker comes across it first, however many signs use it. Each finished
+ * batch is given back to the calling thread, in file order, so signs are
+ * only ever added to the index on the server thread and later records still
+ * override earlier ones.
+ */
+public class SignsLoader {
+
+	private static final int BATCH_SIZE = 2048;
+	private static final long PROGRESS_INTERVAL = 5000000000L;
+
+	/**
+	 * Stands in for the link of an invalid URL, as the map of checked URLs
+	 * can't hold null.
+	 */
+	private static final Object INVALID = new Object();
+
+	private final Logger log;
+	private final SignLinks links;
+	private final int threads;
+
+	/**
+	 * Receives the loaded signs on the calling thread.
+	 */
+	public interface Sink {
+		/**
+		 * Called for each record with a valid URL, in file order.
+		 * 
+		 * @param record
+		 * @param link
+		 */
+		public void add(SignRecord record, SignLink link);
+	}
+
+	/**
+	 * @param log
+	 * @param links
+	 * @param threads Number of worker threads.
+	 */
+	public SignsLoader(Logger log, SignLinks links, int threads) {
+		this.log = log;
+		this.links = links;
+		this.threads = Math.max(threads, 1);
+	}
+
+	/**
+	 * Read the file and pass its signs to the sink. Blocks until every sign
+	 * has been added.
+	 * 
+	 * @param file
+	 * @param format
+	 * @param sink
+	 * @return Number of signs added.
+	 * @throws IOException
+	 */
+	public int load(File file, SignsFormat format, final Sink sink) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count = 0;
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "HyperSigns Loader #" + (++count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		final Progress progress = new Progress(file.getName(), pool, sink);
+		try {
+			format.read(file, new SignsFormat.Handler() {
+				public void handle(SignRecord record) {
+					progress.add(record);
+				}
+			});
+			progress.finish();
+		} catch (WorkerException e) {
+			throw e.getCause();
+		} finally {
+			pool.shutdownNow();
+		}
+
+		return progress.added;
+	}
+
+	/**
+	 * Look up the links of a batch of records.
+	 * 
+	 * @param batch
+	 * @param checked Links of the URLs checked so far, shared by the workers.
+	 * @param fileName
+	 * @return The records' links, null where the URL is invalid.
+	 */
+	private SignLink[] validate(List<SignRecord> batch, ConcurrentHashMap<String, Object> checked,
+			String fileName) {
+		SignLink[] result = new SignLink[batch.size()];
+		for (int i = 0; i < result.length; i++) {
+			String urlString = batch.get(i).getUrl();
+			Object link = checked.get(urlString);
+			if (link == null) {
+				link = check(urlString, checked, fileName);
+			}
+			if (link != INVALID) {
+				result[i] = (SignLink) link;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Validate a URL that hasn't been checked yet and look up its link.
+	 * 
+	 * @return The link, or INVALID.
+	 */
+	private Object check(String urlString, ConcurrentHashMap<String, Object> checked, String fileName) {
+		URL url = HyperSignsBukkit.validateURL(urlString);
+		Object link = url != null ? links.get(url) : INVALID;
+
+		// Another worker may have checked it in the meantime
+		Object earlier = checked.putIfAbsent(urlString, link);
+		if (earlier != null) {
+			return earlier;
+		}
+
+		if (link == INVALID) {
+			log.warning("The URL '" + urlString + "' in " + fileName
+					+ " is invalid. Skipping the signs that use it.");
+		}
+		return link;
+	}
+
+	/**
+	 * Batches the records on their way to the workers, and passes finished
+	 * batches to the sink.
+	 */
+	private class Progress {
+		private final String fileName;
+		private final ExecutorService pool;
+		private final Sink sink;
+		private final LinkedList<Batch> inFlight = new LinkedList<Batch>();
+		private final ConcurrentHashMap<String, Object> checked = new ConcurrentHashMap<String, Object>();
+		private List<SignRecord> batch = new ArrayList<SignRecord>(BATCH_SIZE);
+		private int added = 0;
+		private long lastProgress = System.nanoTime();
+
+		Progress(String fileName, ExecutorService pool, Sink sink) {
+			this.fileName = fileName;
+			this.pool = pool;
+			this.sink = sink;
+		}
+
+		void add(SignRecord record) {
+			batch.add(record);
+			if (batch.size() < BATCH_SIZE) {
+				return;
+			}
+			submit();
+
+			// Keep the workers busy, but don't read too far ahead of them
+			while (!inFlight.isEmpty()
+					&& (inFlight.getFirst().result.isDone() || inFlight.size() > threads * 4)) {
+				drain();
+			}
+		}
+
+		void finish() {
+			if (!batch.isEmpty()) {
+				submit();
+			}
+			while (!inFlight.isEmpty()) {
+				drain();
+			}
+		}
+
+		private void submit() {
+			final List<SignRecord> records = batch;
+			batch = new ArrayList<SignRecord>(BATCH_SIZE);
+			inFlight.add(new Batch(records, pool.submit(new Callable<SignLink[]>() {
+				public SignLink[] call() {
+					return validate(records, checked, fileName);
+				}
+			})));
+		}
+
+		/**
+		 * Wait for the oldest batch and add its signs.
+		 */
+		private void drain() {
+			Batch next = inFlight.removeFirst();
+			SignLink[] result;
+			try {
+				result = next.result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new WorkerException(new IOException("Interrupted while loading " + fileName + "."));
+			} catch (ExecutionException e) {
+				IOException error = new IOException("Unable to validate the signs in " + fileName + ".");
+				error.initCause(e.getCause());
+				throw new WorkerException(error);
+			}
+
+			for (int i = 0; i < result.length; i++) {
+				if (result[i] != null) {
+					sink.add(next.records.get(i), result[i]);
+					added++;
+				}
+			}
+
+			long now = System.nanoTime();
+			if (now - lastProgress >= PROGRESS_INTERVAL) {
+				lastProgress = now;
+				log.info("Loaded " + added + " signs from " + fileName + " so far...");
+			}
+		}
+	}
+
+	private static class Batch {
+		final List<SignRecord> records;
+		final Future<SignLink[]> result;
+
+		Batch(List<SignRecord> records, Future<SignLink[]> result) {
+			this.records = records;
+			this.result = result;
+		}
+	}
+
+	/**
+	 * Carries an IOException out through SignsFormat.Handler, which can't
+	 * throw one.
+	 */
+	private static class WorkerException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		WorkerException(IOException cause) {
+			super(cause);
+		}
+
+		@Override
+		public IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A copy of the sign data taken on the server thread, to be written out on
+ * another thread.
+ * 
+ * When signs are loaded chunk by chunk, memory only holds some of them. The
+ * rest are read from the mapped data file when the snapshot is written, which
+ * is safe because chunks are only dropped from memory once they match the
+ * file.
+ */
+public class SignsSnapshot {
+
+	private final List<SignRecord> records;
+	private final List<SignRecord> overrides;
+	private final List<ChunkSource> bases;
+	private final Map<String, long[]> residentChunks;
+	private final int epoch;
+	private final boolean chunked;
+
+	/**
+	 * @param records Signs held in memory.
+	 * @param overrides Signs changed in chunks that couldn't be read from the
+	 *            bases, which replace the bases' copies. A null URL removes
+	 *            the bases' copy. May be empty.
+	 * @param bases Data files or database holding the signs that aren't in
+	 *            memory. May be empty.
+	 * @param residentChunks Chunks held in memory, which must not be read
+	 *            from the bases. Key: World name. Value: Sorted chunk keys.
+	 * @param epoch Changes up to and including this epoch are in the
+	 *            snapshot.
+	 * @param chunked Whether signs are loaded chunk by chunk.
+	 */
+	public SignsSnapshot(List<SignRecord> records, List<SignRecord> overrides, List<ChunkSource> bases,
+			Map<String, long[]> residentChunks, int epoch, boolean chunked) {
+		this.records = records;
+		this.overrides = overrides;
+		this.bases = bases;
+		this.residentChunks = residentChunks;
+		this.epoch = epoch;
+		this.chunked = chunked;
+	}
+
+	/**
+	 * Collect every sign in the snapshot. Can be slow, so call it on a
+	 * background thread.
+	 * 
+	 * @throws IOException If a base couldn't be read.
+	 */
+	public List<SignRecord> getRecords() throws IOException {
+		if (bases.isEmpty() && overrides.isEmpty()) {
+			return records;
+		}
+
+		int count = records.size() + overrides.size();
+		for (ChunkSource base : bases) {
+			count += base.getSignCount();
+		}
+
+		// Unread chunks aren't resident, so the bases still have them
+		final Set<String> overridden = new HashSet<String>();
+		for (SignRecord override : overrides) {
+			overridden.add(ShardedSignStore.key(override));
+		}
+
+		final List<SignRecord> all = new ArrayList<SignRecord>(count);
+		all.addAll(records);
+		SignsFormat.Handler handler = new SignsFormat.Handler() {
+			public void handle(SignRecord record) {
+				if (overridden.isEmpty() || !overridden.contains(ShardedSignStore.key(record))) {
+					all.add(record);
+				}
+			}
+		};
+		for (ChunkSource base : bases) {
+			base.read(residentChunks, handler);
+		}
+		for (SignRecord override : overrides) {
+			if (override.getUrl() != null) {
+				all.add(override);
+			}
+		}
+		return all;
+	}
+
+	public int getEpoch() {
+		return epoch;
+	}
+
+	public boolean isChunked() {
+		return chunked;
+	}
+}
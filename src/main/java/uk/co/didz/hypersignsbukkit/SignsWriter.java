@@ -0,0 +1,427 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Write-behind persistence for one world's sign data.
+ *
+ * Changes are queued up on the server thread. Every save interval they're
+ * handed to the background thread which appends them to the current
+ * generation's journal. Once the journal grows past the compaction size, the
+ * server thread takes a snapshot of the world's signs and the background
+ * thread writes it out as the next generation, which then takes over with an
+ * empty journal. Older generations past the number to keep are deleted.
+ *
+ * Until the world's signs have been loaded, changes are only appended to the
+ * journal, so a data file that couldn't be read is never overwritten.
+ */
+public class SignsWriter {
+
+	private final HyperSignsBukkit plugin;
+	private final Logger log;
+	private final Metrics metrics;
+	private final String world;
+	private final SignsGenerations generations;
+	private final int keepGenerations;
+	private final long compactionSize;
+	private final Executor executor;
+
+	/**
+	 * The generation changes are being journalled against, and its journal.
+	 * Only changed on the background thread, or while the world's signs are
+	 * being loaded.
+	 */
+	private volatile int generation;
+	private volatile SignsJournal journal;
+
+	/**
+	 * Changes that haven't been handed to the background thread yet. Only
+	 * accessed from the server thread.
+	 */
+	private List<SignRecord> pending = new ArrayList<SignRecord>();
+
+	/**
+	 * Size of the journal, updated by the background thread after each
+	 * append or compaction.
+	 */
+	private final AtomicLong journalLength;
+
+	/**
+	 * Whether a compaction has been queued but not finished yet.
+	 */
+	private volatile boolean compacting = false;
+
+	/**
+	 * Whether the world's signs have been loaded, so the data file may be
+	 * replaced.
+	 */
+	private volatile boolean loaded = false;
+
+	/**
+	 * Whether close() has been called.
+	 */
+	private volatile boolean closed = false;
+
+	/**
+	 * @param p
+	 * @param world
+	 * @param generations The world's files. Changes are journalled against
+	 *            the newest generation until the signs are loaded.
+	 * @param keepGenerations Number of generations to keep.
+	 * @param compactionSize Journal size in bytes that triggers a new
+	 *            snapshot.
+	 * @param executor The background thread.
+	 */
+	public SignsWriter(HyperSignsBukkit p, String world, SignsGenerations generations, int keepGenerations,
+			long compactionSize, Executor executor) {
+		plugin = p;
+		log = p.getLogger();
+		metrics = p.metrics;
+		this.world = world;
+		this.generations = generations;
+		this.keepGenerations = keepGenerations;
+		this.compactionSize = compactionSize;
+		this.executor = executor;
+		generation = generations.getNewest();
+		journal = new SignsJournal(generations.getJournalFile(generation), log);
+		journalLength = new AtomicLong(journal.length());
+	}
+
+	public SignsGenerations getGenerations() {
+		return generations;
+	}
+
+	public int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Start journalling against a newly written generation, and prune the
+	 * old ones. Called on the background thread, or while the world's signs
+	 * are being loaded.
+	 * 
+	 * @param newGeneration
+	 * @throws IOException If the old journal couldn't be closed.
+	 */
+	public void setGeneration(int newGeneration) throws IOException {
+		SignsJournal oldJournal = journal;
+		generation = newGeneration;
+		journal = new SignsJournal(generations.getJournalFile(newGeneration), log);
+		journalLength.set(journal.length());
+		oldJournal.close();
+		generations.prune(newGeneration, keepGenerations);
+	}
+
+	/**
+	 * Called once the world's signs have been loaded, on whichever thread
+	 * loaded them. The journal may have been folded into a new generation
+	 * while loading.
+	 */
+	public void loaded() {
+		journalLength.set(journal.length());
+		loaded = true;
+	}
+
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Queue a change to be appended to the journal at the end of the current
+	 * save interval. Must be called on the server thread.
+	 *
+	 * @param record New state of the sign. A null URL removes the sign.
+	 */
+	public void logChange(SignRecord record) {
+		pending.add(record);
+	}
+
+	/**
+	 * Hand queued changes to the background thread, and start a compaction
+	 * if the journal has grown too big. Must be called on the server thread.
+	 */
+	public void run() {
+		flushPending();
+
+		if (loaded && !compacting && journalLength.get() >= compactionSize) {
+			compact();
+		}
+	}
+
+	/**
+	 * Write any unsaved changes, e.g. when the world is unloaded or the
+	 * plugin is disabled. The world's signs may be dropped from memory as
+	 * soon as this returns. Must be called on the server thread.
+	 */
+	public void close() {
+		closed = true;
+
+		// Final flush. Fold the journal into a new generation as well, so the
+		// next load doesn't need to replay it.
+		boolean flushed = flushPending();
+		if (loaded && !compacting && (flushed || journalLength.get() > 0)) {
+			compact();
+		}
+
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					journal.close();
+				} catch (IOException e) {
+					log.log(Level.SEVERE, "Unable to close " + journalName() + ".", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Hand queued changes to the background thread.
+	 *
+	 * @return Whether there were any changes.
+	 */
+	private boolean flushPending() {
+		if (pending.isEmpty()) {
+			return false;
+		}
+
+		final List<SignRecord> batch = pending;
+		pending = new ArrayList<SignRecord>();
+
+		executor.execute(new Runnable() {
+			public void run() {
+				long start = System.nanoTime();
+				long before = journal.length();
+				try {
+					journal.append(batch);
+				} catch (IOException e) {
+					log.log(Level.SEVERE, "Unable to append to " + journalName() + ".", e);
+				}
+				journalLength.set(journal.length());
+
+				metrics.journalAppendTime.record(System.nanoTime() - start);
+				metrics.bytesWritten.addAndGet(Math.max(journalLength.get() - before, 0));
+			}
+		});
+
+		return true;
+	}
+
+	/**
+	 * Queue a snapshot of the world's signs to be written as the next
+	 * generation. Once it's safely written, changes go into the new
+	 * generation's journal. Changes queued after the snapshot are appended
+	 * after the switch, because the background thread runs tasks in order.
+	 */
+	private void compact() {
+		compacting = true;
+
+		final SignsSnapshot snapshot = plugin.snapshotSignsData(world);
+		executor.execute(new Runnable() {
+			public void run() {
+				int next = generation + 1;
+				List<SignRecord> records;
+				try {
+					records = snapshot.getRecords();
+				} catch (IOException e) {
+					log.log(Level.SEVERE, "Unable to read the signs to write to " + fileName(next) + ".", e);
+					compacting = false;
+					return;
+				}
+
+				try {
+					if (write(next, records)) {
+						setGeneration(next);
+						written(snapshot, generations.getDataFile(next));
+					}
+				} catch (IOException e) {
+					log.log(Level.SEVERE, "Unable to close the old journal of '" + world + "'.", e);
+				} finally {
+					journalLength.set(journal.length());
+					compacting = false;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Let the plugin know, on the server thread, that a snapshot is now in
+	 * a data file. Called on the background thread.
+	 */
+	private void written(final SignsSnapshot snapshot, File signsFile) {
+		if (closed) {
+			// The world's signs are no longer in memory
+			return;
+		}
+
+		MappedSignsFile mapped = null;
+		if (snapshot.isChunked()) {
+			try {
+				mapped = MappedSignsFile.open(signsFile, log, plugin.signLinks);
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Unable to map " + signsFile.getName() + " of '" + world + "'.", e);
+			}
+		}
+
+		final MappedSignsFile newSource = mapped;
+		plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+			public void run() {
+				// The world may have been unloaded in the meantime
+				if (!closed) {
+					plugin.signsDataSaved(world, snapshot.getEpoch(), newSource);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Make a task that writes a snapshot to a file, to run on a background
+	 * thread.
+	 *
+	 * @param snapshot
+	 * @param file
+	 * @param format
+	 * @param callback May be null.
+	 */
+	public static Runnable exportTask(final SignsSnapshot snapshot, final File file,
+			final SignsFormat format, final SignStore.ExportCallback callback) {
+		return new Runnable() {
+			public void run() {
+				int count = 0;
+				IOException error = null;
+				try {
+					List<SignRecord> records = snapshot.getRecords();
+					count = records.size();
+					writeFile(file, format, records);
+				} catch (IOException e) {
+					error = e;
+				}
+				if (callback != null) {
+					callback.done(count, error);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Write the snapshot as a new generation.
+	 *
+	 * @param newGeneration
+	 * @param snapshot
+	 * @return Whether the generation was written.
+	 */
+	private boolean write(int newGeneration, List<SignRecord> snapshot) {
+		try {
+			long start = System.nanoTime();
+			generations.write(newGeneration, snapshot);
+			metrics.saveTime.record(System.nanoTime() - start);
+			metrics.bytesWritten.addAndGet(generations.getDataFile(newGeneration).length());
+			return true;
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Unable to write " + fileName(newGeneration) + ".", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Names of the world's files, for messages.
+	 */
+	private String fileName(int forGeneration) {
+		return generations.getDataFile(forGeneration).getName() + " of '" + world + "'";
+	}
+
+	private String journalName() {
+		return generations.getJournalFile(generation).getName() + " of '" + world + "'";
+	}
+
+	/**
+	 * Write the records to a temporary file, then move it over the real one.
+	 * A failure part way through leaves the previous file untouched.
+	 *
+	 * @param file
+	 * @param format
+	 * @param records
+	 * @return CRC32 of the file's contents.
+	 * @throws IOException
+	 */
+	public static long writeFile(File file, SignsFormat format, List<SignRecord> records)
+			throws IOException {
+		File tempFile = new File(file.getPath() + ".tmp");
+		long crc = writeTempFile(tempFile, format, records);
+		replaceFile(tempFile, file);
+		return crc;
+	}
+
+	/**
+	 * Write the records to a file and sync it, deleting it again if that
+	 * fails part way through.
+	 *
+	 * @param tempFile
+	 * @param format
+	 * @param records
+	 * @return CRC32 of the file's contents.
+	 * @throws IOException
+	 */
+	public static long writeTempFile(File tempFile, SignsFormat format, List<SignRecord> records)
+			throws IOException {
+		CRC32 crc = new CRC32();
+		try {
+			FileOutputStream out = new FileOutputStream(tempFile);
+			try {
+				format.write(records, new CheckedOutputStream(out, crc));
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			tempFile.delete();
+			throw e;
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Move a temporary file over the real one.
+	 *
+	 * @param tempFile
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void replaceFile(File tempFile, File file) throws IOException {
+		// Renaming over an existing file fails on some platforms
+		if (!tempFile.renameTo(file)) {
+			file.delete();
+			if (!tempFile.renameTo(file)) {
+				throw new IOException("Unable to replace " + file.getName() + " with "
+						+ tempFile.getName() + ".");
+			}
+		}
+	}
+}
@@ -0,0 +1,946 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sign data kept in an SQLite database, one row per sign, indexed by chunk.
+ * 
+ * Changes are queued up on the server thread like SignsWriter does, but each
+ * save interval they're written as single row upserts and deletes in one
+ * transaction, so a small change never rewrites the whole data set. Chunks
+ * are read from the database in the background when the world loads them,
+ * on a connection of their own, and merged on the server thread. The
+ * database is in WAL mode, so those reads never wait for a write to finish.
+ * A chunk that can't be read is held back and read again later.
+ * 
+ * The database may be shared by several servers. Each change is then also
+ * written to a changes table under an increasing sequence number, and every
+ * poll interval each server reads the changes past the last one it saw and
+ * applies the last one of each sign to the signs it has in memory. A sign
+ * whose last change was saved by the server itself is left alone, as is a
+ * sign it has changed since, as its own change will be saved after the one
+ * read. Either way every server ends up with the last saved URL of each
+ * sign.
+ * 
+ * A batch that can't be saved, e.g. because another server held the database
+ * for longer than the busy timeout, is kept and saved with the next batch.
+ * Batches queued behind it wait as well, so changes are always saved in
+ * order.
+ * 
+ * The SQLite driver is bundled with CraftBukkit, so it's loaded by name
+ * rather than being a dependency. All use of each connection is synchronized
+ * on it.
+ */
+public class SqlSignStore implements SignStore, ChunkSource, Runnable {
+
+	public static final String FILE_NAME = "signs.db";
+
+	private static final String DRIVER = "org.sqlite.JDBC";
+	private static final String UPSERT = "INSERT OR REPLACE INTO signs (world, x, y, z, chunkX, chunkZ, url) "
+			+ "VALUES (?, ?, ?, ?, ?, ?, ?)";
+	private static final String DELETE = "DELETE FROM signs WHERE world = ? AND x = ? AND y = ? AND z = ?";
+	private static final String LOG_CHANGE = "INSERT INTO changes (time, world, x, y, z, url) "
+			+ "VALUES (?, ?, ?, ?, ?, ?)";
+
+	/**
+	 * Sequence number of the last change ever saved, even if it's been
+	 * forgotten since.
+	 */
+	private static final String LAST_CHANGE = "SELECT seq FROM sqlite_sequence WHERE name = 'changes'";
+
+	/**
+	 * How long to wait for another connection to finish writing before
+	 * giving up, in milliseconds.
+	 */
+	private static final int BUSY_TIMEOUT = 5000;
+
+	/**
+	 * Milliseconds between attempts at taking the write lock.
+	 */
+	private static final int LOCK_RETRY_INTERVAL = 10;
+
+	/**
+	 * Attempts at saving the last changes while the plugin is disabled.
+	 */
+	private static final int SHUTDOWN_ATTEMPTS = 3;
+
+	private final HyperSignsBukkit plugin;
+	private final Logger log;
+	private final Metrics metrics;
+	private final SignLinks links;
+	private final Connection connection;
+	private final Connection readConnection;
+	private final PreparedStatement selectChunk;
+	private final ExecutorService executor;
+	private int taskId = -1;
+
+	/**
+	 * Thread for reading chunks, so they're never held up behind a save
+	 * that's waiting for the write lock.
+	 */
+	private final ExecutorService reader;
+
+	/**
+	 * Statement for reading changes saved by other servers, or null if the
+	 * database isn't shared.
+	 */
+	private final PreparedStatement selectChanges;
+	private final long pollInterval;
+	private int pollTaskId = -1;
+
+	/**
+	 * How long changes are kept for other servers to read, in milliseconds.
+	 * A server that hasn't read them for longer than this reads its chunks
+	 * again.
+	 */
+	private final long changeRetention;
+
+	/**
+	 * Sequence number of the last change read from the changes table. Only
+	 * accessed from the background thread.
+	 */
+	private long lastChange;
+	private long lastPrune = 0;
+
+	/**
+	 * First and last sequence numbers of the changes saved by this server
+	 * that haven't been read back yet. Only accessed from the background
+	 * thread.
+	 */
+	private final List<long[]> ownChanges = new ArrayList<long[]>();
+
+	/**
+	 * Whether a poll is queued or running.
+	 */
+	private volatile boolean polling = false;
+
+	/**
+	 * Changes that haven't been handed to the background thread yet. Only
+	 * accessed from the server thread.
+	 */
+	private List<SignRecord> pending = new ArrayList<SignRecord>();
+
+	/**
+	 * Batch number of the latest change to each sign that hasn't been saved
+	 * yet, if the database is shared. Only accessed from the server thread.
+	 */
+	private final HashMap<String, Integer> unsavedSigns = new HashMap<String, Integer>();
+	private int batchNumber = 1;
+
+	/**
+	 * Changes from batches that couldn't be saved, in order, to be saved
+	 * along with the next batch. Only accessed from the background thread,
+	 * or once it has finished.
+	 */
+	private final List<SignRecord> unsaved = new ArrayList<SignRecord>();
+	private volatile boolean hasUnsaved = false;
+
+	/**
+	 * URLs read from the database that turned out to be invalid, so they're
+	 * only warned about once. Valid ones are looked up in the interned links,
+	 * which don't keep links no sign uses. Only accessed from the server
+	 * thread.
+	 */
+	private final HashSet<String> invalidUrls = new HashSet<String>();
+
+	private SqlSignStore(HyperSignsBukkit p, Connection connection, Connection readConnection,
+			long pollInterval, long changeRetention) throws SQLException {
+		plugin = p;
+		log = p.getLogger();
+		metrics = p.metrics;
+		links = p.signLinks;
+		this.connection = connection;
+		this.readConnection = readConnection;
+		this.pollInterval = pollInterval;
+		this.changeRetention = changeRetention;
+
+		selectChunk = readConnection.prepareStatement("SELECT x, y, z, url FROM signs "
+				+ "WHERE world = ? AND chunkX = ? AND chunkZ = ?");
+
+		if (pollInterval > 0) {
+			selectChanges = connection.prepareStatement("SELECT seq, world, x, y, z, url FROM changes "
+					+ "WHERE seq > ? ORDER BY seq");
+			lastChange = queryLong(connection, LAST_CHANGE);
+		} else {
+			selectChanges = null;
+		}
+
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "HyperSigns Database");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		reader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "HyperSigns Database Reader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Open the database, creating its tables if needed.
+	 * 
+	 * @param p
+	 * @param file
+	 * @param pollInterval Ticks between reading changes saved by other
+	 *            servers, or 0 if the database isn't shared.
+	 * @param changeRetention Milliseconds changes are kept for other servers
+	 *            to read.
+	 * @throws IOException If the driver is missing or the database can't be
+	 *             opened.
+	 */
+	public static SqlSignStore open(HyperSignsBukkit p, File file, long pollInterval,
+			long changeRetention) throws IOException {
+		Connection connection = connect(file);
+		Connection readConnection = null;
+		try {
+			// Saves wait for the write lock themselves, see lock()
+			Statement statement = connection.createStatement();
+			try {
+				setBusyTimeout(statement, 0);
+			} finally {
+				statement.close();
+			}
+			readConnection = connect(file);
+			return new SqlSignStore(p, connection, readConnection, pollInterval, changeRetention);
+		} catch (IOException e) {
+			close(connection);
+			throw e;
+		} catch (SQLException e) {
+			close(connection);
+			close(readConnection);
+			throw wrap(file, e);
+		}
+	}
+
+	/**
+	 * Open a connection to the database and make sure the table exists.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	private static Connection connect(File file) throws IOException {
+		try {
+			Class.forName(DRIVER);
+		} catch (ClassNotFoundException e) {
+			throw new IOException("The SQLite driver (" + DRIVER + ") isn't available on this server.");
+		}
+
+		Connection connection;
+		try {
+			connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+		} catch (SQLException e) {
+			throw wrap(file, e);
+		}
+
+		try {
+			Statement statement = connection.createStatement();
+			try {
+				// Wait for other servers sharing the file instead of failing
+				// straight away
+				setBusyTimeout(statement, BUSY_TIMEOUT);
+				// Let reads go ahead while another connection is writing
+				statement.execute("PRAGMA journal_mode = WAL");
+				statement.executeUpdate("CREATE TABLE IF NOT EXISTS signs (world TEXT NOT NULL, "
+						+ "x INTEGER NOT NULL, y INTEGER NOT NULL, z INTEGER NOT NULL, "
+						+ "chunkX INTEGER NOT NULL, chunkZ INTEGER NOT NULL, url TEXT NOT NULL, "
+						+ "PRIMARY KEY (world, x, y, z))");
+				statement.executeUpdate("CREATE INDEX IF NOT EXISTS signs_chunk "
+						+ "ON signs (world, chunkX, chunkZ)");
+				statement.executeUpdate("CREATE TABLE IF NOT EXISTS changes (seq INTEGER PRIMARY KEY "
+						+ "AUTOINCREMENT, time INTEGER NOT NULL, world TEXT NOT NULL, x INTEGER NOT NULL, "
+						+ "y INTEGER NOT NULL, z INTEGER NOT NULL, url TEXT)");
+			} finally {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			close(connection);
+			throw wrap(file, e);
+		}
+
+		return connection;
+	}
+
+	/**
+	 * Read every sign in a database, e.g. to migrate it to a data file.
+	 * 
+	 * @param file
+	 * @param handler
+	 * @throws IOException
+	 */
+	public static void readAll(File file, SignsFormat.Handler handler) throws IOException {
+		Connection connection = connect(file);
+		try {
+			selectAll(connection, null, handler);
+		} catch (SQLException e) {
+			throw wrap(file, e);
+		} finally {
+			close(connection);
+		}
+	}
+
+	/**
+	 * Apply changes to a database straight away, in a single transaction. Used
+	 * before the plugin is enabled, e.g. to migrate a data file or replay a
+	 * journal.
+	 * 
+	 * @param file
+	 * @param records New state of each sign. A null URL removes the sign.
+	 * @throws IOException
+	 */
+	public static void writeAll(File file, List<SignRecord> records) throws IOException {
+		Connection connection = connect(file);
+		try {
+			apply(connection, false, 0, records);
+		} catch (SQLException e) {
+			throw wrap(file, e);
+		} finally {
+			close(connection);
+		}
+	}
+
+	public void start(long interval) {
+		taskId = plugin.getServer().getScheduler()
+				.scheduleSyncRepeatingTask(plugin, this, interval, interval);
+
+		if (pollInterval > 0) {
+			pollTaskId = plugin.getServer().getScheduler().scheduleSyncRepeatingTask(plugin, new Runnable() {
+				public void run() {
+					poll();
+				}
+			}, pollInterval, pollInterval);
+		}
+	}
+
+	public void logChange(SignRecord record) {
+		pending.add(record);
+		if (pollInterval > 0) {
+			unsavedSigns.put(ShardedSignStore.key(record), batchNumber);
+		}
+	}
+
+	public void flush() {
+		if (!executor.isShutdown()) {
+			run();
+		}
+	}
+
+	/**
+	 * Hand queued changes to the background thread. Must be called on the
+	 * server thread.
+	 */
+	public void run() {
+		plugin.loadedSigns.retryUnreadChunks();
+		if (pending.isEmpty() && !hasUnsaved) {
+			return;
+		}
+
+		final List<SignRecord> batch = pending;
+		pending = new ArrayList<SignRecord>();
+		final int epoch = plugin.nextSignsEpoch();
+		final int savedBatch = batchNumber++;
+
+		executor.execute(new Runnable() {
+			public void run() {
+				// Changes that failed to save go first, so nothing overtakes
+				// them
+				List<SignRecord> changes = batch;
+				if (!unsaved.isEmpty()) {
+					unsaved.addAll(batch);
+					changes = unsaved;
+				}
+
+				// Forget old changes every so often, while the lock is held
+				long start = System.nanoTime();
+				long pruneBefore = 0;
+				if (pollInterval > 0 && System.currentTimeMillis() - lastPrune > changeRetention / 10) {
+					lastPrune = System.currentTimeMillis();
+					pruneBefore = lastPrune - changeRetention;
+				}
+				try {
+					long first;
+					synchronized (connection) {
+						first = apply(connection, pollInterval > 0, pruneBefore, changes);
+					}
+					if (pollInterval > 0 && !changes.isEmpty()) {
+						ownChanges.add(new long[] { first, first + changes.size() - 1 });
+					}
+				} catch (SQLException e) {
+					if (changes == batch) {
+						unsaved.addAll(batch);
+					}
+					hasUnsaved = true;
+					log.log(Level.WARNING, "Unable to save " + unsaved.size() + " sign changes to "
+							+ FILE_NAME + ". Trying again with the next save.", e);
+					return;
+				}
+				unsaved.clear();
+				hasUnsaved = false;
+				metrics.databaseWriteTime.record(System.nanoTime() - start);
+
+				// Chunks saved in this batch can now be dropped when unloaded
+				if (!executor.isShutdown()) {
+					plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+						public void run() {
+							plugin.signsDataSaved(null, epoch, null);
+							forgetSaved(savedBatch);
+						}
+					});
+				}
+			}
+		});
+	}
+
+	public void export(File file, SignsFormat format, ExportCallback callback) {
+		executor.execute(SignsWriter.exportTask(plugin.snapshotSignsData(), file, format, callback));
+	}
+
+	public void shutdown() {
+		if (taskId != -1) {
+			plugin.getServer().getScheduler().cancelTask(taskId);
+			taskId = -1;
+		}
+		if (pollTaskId != -1) {
+			plugin.getServer().getScheduler().cancelTask(pollTaskId);
+			pollTaskId = -1;
+		}
+
+		run();
+
+		reader.shutdownNow();
+		executor.shutdown();
+		boolean finished = false;
+		try {
+			finished = executor.awaitTermination(30, TimeUnit.SECONDS);
+			if (!finished) {
+				log.severe("Timed out while waiting for " + FILE_NAME + " to be written.");
+			}
+		} catch (InterruptedException e) {
+			log.severe("Interrupted while waiting for " + FILE_NAME + " to be written.");
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (connection) {
+			if (finished) {
+				saveUnsaved();
+			}
+			close(connection);
+		}
+		synchronized (readConnection) {
+			close(readConnection);
+		}
+	}
+
+	/**
+	 * Make a last few attempts at saving changes that failed, once the
+	 * background thread has finished. Synchronized on the connection.
+	 */
+	private void saveUnsaved() {
+		for (int attempt = 1; !unsaved.isEmpty(); attempt++) {
+			try {
+				apply(connection, pollInterval > 0, 0, unsaved);
+				unsaved.clear();
+			} catch (SQLException e) {
+				if (attempt >= SHUTDOWN_ATTEMPTS) {
+					log.log(Level.SEVERE, "Unable to save " + unsaved.size() + " sign changes to " + FILE_NAME
+							+ ". They have been lost.", e);
+					unsaved.clear();
+				}
+			}
+		}
+		hasUnsaved = false;
+	}
+
+	public int getSignCount() {
+		synchronized (readConnection) {
+			try {
+				Statement statement = readConnection.createStatement();
+				try {
+					ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM signs");
+					return result.next() ? result.getInt(1) : 0;
+				} finally {
+					statement.close();
+				}
+			} catch (SQLException e) {
+				log.log(Level.WARNING, "Unable to count the signs in " + FILE_NAME + ".", e);
+				return 0;
+			}
+		}
+	}
+
+	public SignChunk readChunk(String world, int chunkX, int chunkZ) throws IOException {
+		return toChunk(selectChunk(world, chunkX, chunkZ));
+	}
+
+	public boolean readChunkLater(final String world, final int chunkX, final int chunkZ) {
+		if (reader.isShutdown()) {
+			return false;
+		}
+
+		reader.execute(new Runnable() {
+			public void run() {
+				List<SignRecord> read = null;
+				try {
+					read = selectChunk(world, chunkX, chunkZ);
+				} catch (IOException e) {
+					// Already logged
+				}
+				if (reader.isShutdown()) {
+					return;
+				}
+
+				final List<SignRecord> records = read;
+				plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+					public void run() {
+						if (records != null) {
+							plugin.signsChunkRead(world, chunkX, chunkZ, toChunk(records), false);
+						} else {
+							plugin.signsChunkRead(world, chunkX, chunkZ, null, true);
+						}
+					}
+				});
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Read the rows of a single chunk. Safe to call from any thread.
+	 * 
+	 * @return The chunk's signs, with the URLs as they're stored.
+	 * @throws IOException If the chunk couldn't be read.
+	 */
+	private List<SignRecord> selectChunk(String world, int chunkX, int chunkZ) throws IOException {
+		List<SignRecord> records = new ArrayList<SignRecord>();
+
+		synchronized (readConnection) {
+			try {
+				selectChunk.setString(1, world);
+				selectChunk.setInt(2, chunkX);
+				selectChunk.setInt(3, chunkZ);
+				ResultSet result = selectChunk.executeQuery();
+				try {
+					while (result.next()) {
+						records.add(new SignRecord(world, result.getInt(1), result.getInt(2),
+								result.getInt(3), result.getString(4)));
+					}
+				} finally {
+					result.close();
+				}
+			} catch (SQLException e) {
+				log.log(Level.WARNING, "Unable to read chunk " + chunkX + ", " + chunkZ + " of '" + world
+						+ "' from " + FILE_NAME + ". Trying again later.", e);
+				throw new IOException("Unable to read " + FILE_NAME + ": " + e.getMessage());
+			}
+		}
+
+		return records;
+	}
+
+	/**
+	 * Put the signs read from a chunk's rows into a SignChunk. Must be called
+	 * on the server thread, as it resolves the links.
+	 * 
+	 * @return null if none of the signs have a valid URL.
+	 */
+	private SignChunk toChunk(List<SignRecord> records) {
+		SignChunk chunk = null;
+		for (SignRecord record : records) {
+			SignLink link = resolveLink(record.getUrl());
+			if (link == null) {
+				continue;
+			}
+			if (chunk == null) {
+				chunk = new SignChunk(records.size());
+			}
+			chunk.put(SignChunk.position(record.getX(), record.getY(), record.getZ()), link);
+		}
+		return chunk;
+	}
+
+	public void read(Map<String, long[]> skip, SignsFormat.Handler handler) throws IOException {
+		// Not on the chunk reading connection, this can take a while
+		synchronized (connection) {
+			try {
+				selectAll(connection, skip, handler);
+			} catch (SQLException e) {
+				throw new IOException("Unable to read " + FILE_NAME + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Queue a read of the changes saved since the last poll, by this server
+	 * or any other. Called on the server thread every poll interval.
+	 */
+	private void poll() {
+		if (polling || executor.isShutdown()) {
+			return;
+		}
+		polling = true;
+
+		executor.execute(new Runnable() {
+			public void run() {
+				final List<SignRecord> changes = new ArrayList<SignRecord>();
+				final boolean missed;
+				try {
+					synchronized (connection) {
+						missed = readChanges(changes);
+					}
+				} catch (SQLException e) {
+					log.log(Level.WARNING, "Unable to read the changes saved by other servers to " + FILE_NAME
+							+ ".", e);
+					polling = false;
+					return;
+				}
+
+				if ((changes.isEmpty() && !missed) || executor.isShutdown()) {
+					polling = false;
+					return;
+				}
+
+				plugin.getServer().getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
+					public void run() {
+						if (missed) {
+							log.warning("Missed some changes saved by other servers to " + FILE_NAME
+									+ ". Reading the signs in loaded chunks again.");
+							plugin.reloadSharedSigns();
+						} else {
+							for (SignRecord change : changes) {
+								if (unsavedSigns.containsKey(ShardedSignStore.key(change))) {
+									// Changed here since, and saved after this
+									continue;
+								}
+								SignLink link = change.getUrl() != null ? resolveLink(change.getUrl()) : null;
+								if (change.getUrl() == null || link != null) {
+									plugin.sharedSignChanged(change, link);
+								}
+							}
+						}
+						polling = false;
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Forget the unsaved changes of the batches up to one that's been saved.
+	 * Must be called on the server thread.
+	 */
+	private void forgetSaved(int savedBatch) {
+		Iterator<Integer> it = unsavedSigns.values().iterator();
+		while (it.hasNext()) {
+			if (it.next() <= savedBatch) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Read the changes past the last one seen. Called on the background
+	 * thread, synchronized on the connection.
+	 * 
+	 * @param changes Receives the last change of each sign, unless it was
+	 *            saved by this server.
+	 * @return Whether some changes were forgotten before they were read.
+	 * @throws SQLException
+	 */
+	private boolean readChanges(List<SignRecord> changes) throws SQLException {
+		// Changes before the first one left were forgotten, and if none are
+		// left every change since the last one seen was
+		long last = queryLong(connection, LAST_CHANGE);
+		long first = queryLong(connection, "SELECT MIN(seq) FROM changes");
+		boolean missed = last > lastChange && (first == 0 || first > lastChange + 1);
+
+		LinkedHashMap<String, SignRecord> latest = new LinkedHashMap<String, SignRecord>();
+		selectChanges.setLong(1, lastChange);
+		ResultSet result = selectChanges.executeQuery();
+		try {
+			while (result.next()) {
+				lastChange = result.getLong(1);
+				SignRecord change = new SignRecord(result.getString(2), result.getInt(3), result.getInt(4),
+						result.getInt(5), result.getString(6));
+				String key = ShardedSignStore.key(change);
+				// An own change is already in memory, and overrides any
+				// earlier change
+				latest.remove(key);
+				if (!isOwnChange(lastChange)) {
+					latest.put(key, change);
+				}
+			}
+		} finally {
+			result.close();
+		}
+		changes.addAll(latest.values());
+
+		// Don't count the forgotten ones as missed again next time
+		lastChange = Math.max(lastChange, last);
+		Iterator<long[]> it = ownChanges.iterator();
+		while (it.hasNext()) {
+			if (it.next()[1] <= lastChange) {
+				it.remove();
+			}
+		}
+		return missed;
+	}
+
+	/**
+	 * Whether a change was saved by this server. Called on the background
+	 * thread.
+	 */
+	private boolean isOwnChange(long seq) {
+		for (long[] range : ownChanges) {
+			if (seq >= range[0] && seq <= range[1]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Look up the link of a URL read from the database, validating it first
+	 * unless it's already interned.
+	 */
+	private SignLink resolveLink(String urlString) {
+		SignLink link = links.find(urlString);
+		if (link != null || invalidUrls.contains(urlString)) {
+			return link;
+		}
+
+		URL url = HyperSignsBukkit.validateURL(urlString);
+		if (url == null) {
+			log.warning("The URL '" + urlString + "' in " + FILE_NAME
+					+ " is invalid. Skipping the signs that use it.");
+			invalidUrls.add(urlString);
+			return null;
+		}
+		return links.get(url);
+	}
+
+	/**
+	 * Upsert or delete each record, in one transaction.
+	 * 
+	 * The transaction takes the write lock before changing anything. The
+	 * driver's own transactions only take it at the first write, and the
+	 * driver bundled with CraftBukkit leaves a write that finds the database
+	 * busy half run, which stops the transaction from rolling back. The
+	 * statements are prepared for each transaction and closed before rolling
+	 * back for the same reason.
+	 * 
+	 * @param logChanges Also records each change in the changes table.
+	 * @param pruneBefore Forgets changes saved before this time, if not 0.
+	 * @return The sequence number of the first change recorded, if
+	 *         logChanges is set. The rest follow on from it, as the write
+	 *         lock is held throughout.
+	 */
+	private static long apply(Connection connection, boolean logChanges, long pruneBefore,
+			List<SignRecord> records) throws SQLException {
+		long now = System.currentTimeMillis();
+		lock(connection);
+		boolean committed = false;
+		try {
+			long first = logChanges ? queryLong(connection, LAST_CHANGE) + 1 : 0;
+
+			if (pruneBefore != 0) {
+				PreparedStatement prune = connection.prepareStatement("DELETE FROM changes WHERE time < ?");
+				try {
+					prune.setLong(1, pruneBefore);
+					prune.executeUpdate();
+				} finally {
+					prune.close();
+				}
+			}
+
+
+			PreparedStatement upsert = connection.prepareStatement(UPSERT);
+			PreparedStatement delete = connection.prepareStatement(DELETE);
+			PreparedStatement logChange = logChanges ? connection.prepareStatement(LOG_CHANGE) : null;
+			try {
+				for (SignRecord record : records) {
+					if (logChange != null) {
+						logChange.setLong(1, now);
+						logChange.setString(2, record.getWorld());
+						logChange.setInt(3, record.getX());
+						logChange.setInt(4, record.getY());
+						logChange.setInt(5, record.getZ());
+						logChange.setString(6, record.getUrl());
+						logChange.executeUpdate();
+					}
+
+					if (record.getUrl() != null) {
+						upsert.setString(1, record.getWorld());
+						upsert.setInt(2, record.getX());
+						upsert.setInt(3, record.getY());
+						upsert.setInt(4, record.getZ());
+						upsert.setInt(5, record.getX() >> 4);
+						upsert.setInt(6, record.getZ() >> 4);
+						upsert.setString(7, record.getUrl());
+						upsert.executeUpdate();
+					} else {
+						delete.setString(1, record.getWorld());
+						delete.setInt(2, record.getX());
+						delete.setInt(3, record.getY());
+						delete.setInt(4, record.getZ());
+						delete.executeUpdate();
+					}
+				}
+			} finally {
+				upsert.close();
+				delete.close();
+				if (logChange != null) {
+					logChange.close();
+				}
+			}
+			execute(connection, "COMMIT");
+			committed = true;
+			return first;
+		} finally {
+			if (!committed) {
+				execute(connection, "ROLLBACK");
+			}
+		}
+	}
+
+	/**
+	 * Start a write transaction, trying again every few milliseconds while
+	 * another server holds the lock, for up to the busy timeout.
+	 * 
+	 * The driver bundled with CraftBukkit only checks a busy lock once a
+	 * second. Servers saving on the same schedule would keep finding each
+	 * other's lock held at those checks, so the plugin's own connection
+	 * doesn't wait in the driver and retries here instead.
+	 */
+	private static void lock(Connection connection) throws SQLException {
+		long deadline = System.currentTimeMillis() + BUSY_TIMEOUT;
+		while (true) {
+			try {
+				execute(connection, "BEGIN IMMEDIATE");
+				return;
+			} catch (SQLException e) {
+				if (System.currentTimeMillis() >= deadline) {
+					throw e;
+				}
+			}
+
+			try {
+				Thread.sleep(LOCK_RETRY_INTERVAL);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for the database");
+			}
+		}
+	}
+
+	/**
+	 * Set how long statements wait for another connection's lock. The driver
+	 * bundled with CraftBukkit (SQLite 3.7.2) predates PRAGMA busy_timeout
+	 * and silently ignores it, but sets the whole connection's busy timeout
+	 * from the query timeout, so set both.
+	 */
+	private static void setBusyTimeout(Statement statement, int millis) throws SQLException {
+		statement.setQueryTimeout(millis / 1000);
+		statement.execute("PRAGMA busy_timeout = " + millis);
+	}
+
+	private static void execute(Connection connection, String sql) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			statement.execute(sql);
+		} finally {
+			statement.close();
+		}
+	}
+
+	private static void selectAll(Connection connection, Map<String, long[]> skip,
+			SignsFormat.Handler handler) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet result = statement.executeQuery("SELECT world, x, y, z, url FROM signs");
+			while (result.next()) {
+				String world = result.getString(1);
+				int x = result.getInt(2);
+				int z = result.getInt(4);
+
+				long[] skipKeys = skip != null ? skip.get(world) : null;
+				long key = SignIndex.chunkKey(x >> 4, z >> 4);
+				if (skipKeys != null && Arrays.binarySearch(skipKeys, key) >= 0) {
+					continue;
+				}
+
+				handler.handle(new SignRecord(world, x, result.getInt(3), z, result.getString(5)));
+			}
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * @return The single number a query returns, or 0 if it returns NULL.
+	 */
+	private static long queryLong(Connection connection, String sql) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet result = statement.executeQuery(sql);
+			return result.next() ? result.getLong(1) : 0;
+		} finally {
+			statement.close();
+		}
+	}
+
+	private static IOException wrap(File file, SQLException e) {
+		return new IOException("Unable to use " + file.getName() + ": " + e.getMessage());
+	}
+
+	private static void close(Connection connection) {
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			// Nothing more to do with it
+		}
+	}
+}
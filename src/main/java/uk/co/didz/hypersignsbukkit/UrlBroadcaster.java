@@ -0,0 +1,144 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+/**
+ * Sends a URL to many players without stalling the server. Each broadcast's
+ * message is encoded once, and the sends are spread over as many ticks as
+ * needed to keep within the per-tick budget. The budget is shared by every
+ * broadcast in progress, so starting several at once doesn't multiply the
+ * load.
+ * 
+ * Only use it on the server thread.
+ */
+public class UrlBroadcaster implements Runnable {
+
+	private final HyperSignsBukkit plugin;
+	private final int sendsPerTick;
+	private final LinkedList<Broadcast> queue = new LinkedList<Broadcast>();
+	private int taskId = -1;
+
+	/**
+	 * @param p
+	 * @param sendsPerTick Most URL triggers to send in a single tick.
+	 */
+	public UrlBroadcaster(HyperSignsBukkit p, int sendsPerTick) {
+		plugin = p;
+		this.sendsPerTick = Math.max(sendsPerTick, 1);
+	}
+
+	/**
+	 * Start sending a URL to the players. The first batch is sent straight
+	 * away, so small broadcasts finish immediately.
+	 * 
+	 * @param recipients
+	 * @param link
+	 * @param sender Told how many players were sent the URL once the
+	 *            broadcast finishes. May be null.
+	 */
+	public void broadcast(List<Player> recipients, SignLink link, CommandSender sender) {
+		queue.add(new Broadcast(recipients.toArray(new Player[recipients.size()]), link, sender));
+		run();
+
+		if (!queue.isEmpty() && taskId == -1) {
+			taskId = plugin.getServer().getScheduler().scheduleSyncRepeatingTask(plugin, this, 1, 1);
+		}
+	}
+
+	/**
+	 * @return Number of broadcasts still being sent.
+	 */
+	public int getPendingCount() {
+		return queue.size();
+	}
+
+	/**
+	 * Send the next batch of URL triggers, oldest broadcast first.
+	 */
+	public void run() {
+		int budget = sendsPerTick;
+
+		while (budget > 0 && !queue.isEmpty()) {
+			Broadcast broadcast = queue.getFirst();
+
+			while (budget > 0 && broadcast.next < broadcast.recipients.length) {
+				Player recipient = broadcast.recipients[broadcast.next];
+				// Let go of the player as soon as it's been handled
+				broadcast.recipients[broadcast.next++] = null;
+
+				// Skip players who left since the broadcast started
+				if (recipient.isOnline()) {
+					plugin.sendUrlTrigger(recipient, broadcast.link);
+					broadcast.sent++;
+					budget--;
+				}
+			}
+
+			if (broadcast.next < broadcast.recipients.length) {
+				break;
+			}
+
+			queue.removeFirst();
+			broadcast.finished();
+		}
+
+		if (queue.isEmpty()) {
+			cancel();
+		}
+	}
+
+	/**
+	 * Stop sending and forget any unfinished broadcasts.
+	 */
+	public void cancel() {
+		queue.clear();
+		if (taskId != -1) {
+			plugin.getServer().getScheduler().cancelTask(taskId);
+			taskId = -1;
+		}
+	}
+
+	private static class Broadcast {
+		final Player[] recipients;
+		final SignLink link;
+		final CommandSender sender;
+		int next = 0;
+		int sent = 0;
+
+		Broadcast(Player[] recipients, SignLink link, CommandSender sender) {
+			this.recipients = recipients;
+			this.link = link;
+			this.sender = sender;
+		}
+
+		void finished() {
+			if (sender == null || (sender instanceof Player && !((Player) sender).isOnline())) {
+				return;
+			}
+			sender.sendMessage("Sent " + link.getUrlString() + " to " + sent
+					+ (sent == 1 ? " player." : " players."));
+		}
+	}
+}
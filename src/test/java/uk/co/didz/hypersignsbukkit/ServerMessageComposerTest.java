@@ -0,0 +1,236 @@
+/**
+ * HyperSignsBukkit - Bukkit plugin for extended in-game sign interaction.
+ * Copyright (C) 2012, Dion Williams
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package uk.co.didz.hypersignsbukkit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.URL;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import uk.co.didz.hypersignsbukkit.ServerMessageComposer.MessageType;
+
+/**
+ * Checks that messages match what the client reads: the type byte, then the
+ * payload as written by DataOutputStream.writeUTF().
+ */
+public class ServerMessageComposerTest {
+
+	private static final String ASCII = "http://example.com/page?q=1#top";
+	private static final String TWO_BYTE = "http://example.com/caf\u00e9/\u00fcber";
+	private static final String THREE_BYTE = "http://example.com/\u65e5\u672c/\u20ac";
+	private static final String NUL = "http://example.com/\u0000/end";
+
+	@Test
+	public void asciiPayload() throws IOException {
+		checkAllOverloads(ASCII);
+	}
+
+	@Test
+	public void twoBytePayload() throws IOException {
+		checkAllOverloads(TWO_BYTE);
+	}
+
+	@Test
+	public void threeBytePayload() throws IOException {
+		checkAllOverloads(THREE_BYTE);
+	}
+
+	@Test
+	public void nulPayload() throws IOException {
+		// writeUTF() encodes NUL as two bytes, not one
+		checkAllOverloads(NUL);
+	}
+
+	@Test
+	public void emptyPayload() throws IOException {
+		checkAllOverloads("");
+	}
+
+	@Test
+	public void longestPayload() throws IOException {
+		checkAllOverloads(repeat('a', 0xFFFF));
+	}
+
+	@Test
+	public void tooLongPayload() {
+		// 21846 three byte chars encode to 65538 bytes
+		String payload = repeat('\u20ac', 0x10000 / 3 + 1);
+
+		try {
+			ServerMessageComposer.messageLength(payload);
+			fail("messageLength() accepted a payload that's too long");
+		} catch (UTFDataFormatException e) {
+			// Expected
+		}
+
+		byte[] dest = new byte[0x30000];
+		try {
+			ServerMessageComposer.writeMessage(MessageType.URL_TRIGGER, payload, dest, 0);
+			fail("writeMessage() accepted a payload that's too long");
+		} catch (UTFDataFormatException e) {
+			// Expected
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(0x30000);
+		try {
+			ServerMessageComposer.writeMessage(MessageType.URL_TRIGGER, payload, buffer);
+			fail("writeMessage() accepted a payload that's too long");
+		} catch (UTFDataFormatException e) {
+			assertEquals(0, buffer.position());
+		}
+	}
+
+	@Test
+	public void urlDefinition() throws IOException {
+		for (String payload : new String[] { ASCII, TWO_BYTE, THREE_BYTE, NUL }) {
+			for (int id : new int[] { 1, 0x12345678, -2 }) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+				out.writeByte(MessageType.DEFINE_URL_ID.getValue());
+				out.writeInt(id);
+				out.writeUTF(payload);
+				out.close();
+
+				assertArrayEquals(bytes.toByteArray(),
+						ServerMessageComposer.writeClientUrlDefinition(id, new URL(payload)));
+			}
+		}
+	}
+
+	@Test
+	public void urlIdTrigger() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(MessageType.URL_ID_TRIGGER.getValue());
+		out.writeInt(0x12345678);
+		out.close();
+
+		assertArrayEquals(bytes.toByteArray(), ServerMessageComposer.writeClientUrlIdTrigger(0x12345678));
+	}
+
+	@Test
+	public void arrayTooSmall() throws IOException {
+		byte[] dest = new byte[ServerMessageComposer.messageLength(TWO_BYTE) - 1];
+		try {
+			ServerMessageComposer.writeMessage(MessageType.URL_TRIGGER, TWO_BYTE, dest, 0);
+			fail("writeMessage() wrote past the end of the array");
+		} catch (IndexOutOfBoundsException e) {
+			assertArrayEquals(new byte[dest.length], dest);
+		}
+	}
+
+	@Test
+	public void bufferTooSmall() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(ServerMessageComposer.messageLength(THREE_BYTE) - 1);
+		try {
+			ServerMessageComposer.writeMessage(MessageType.URL_TRIGGER, THREE_BYTE, buffer);
+			fail("writeMessage() wrote past the buffer's limit");
+		} catch (BufferOverflowException e) {
+			assertEquals(0, buffer.position());
+		}
+	}
+
+	@Test
+	public void littleEndianBuffer() throws IOException {
+		// The length prefix is big-endian whatever the buffer's byte order
+		ByteBuffer buffer = ByteBuffer.allocateDirect(ServerMessageComposer.messageLength(TWO_BYTE));
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		ServerMessageComposer.writeMessage(MessageType.URL_TRIGGER, TWO_BYTE, buffer);
+		byte[] written = new byte[buffer.capacity()];
+		buffer.flip();
+		buffer.get(written);
+		assertArrayEquals(expected(MessageType.URL_TRIGGER, TWO_BYTE), written);
+	}
+
+	/**
+	 * Write the payload with every overload, at an offset into a bigger
+	 * array or buffer, and compare each with writeUTF().
+	 */
+	private static void checkAllOverloads(String payload) throws IOException {
+		byte[] expected = expected(MessageType.URL_TRIGGER, payload);
+		int length = ServerMessageComposer.messageLength(payload);
+		assertEquals(expected.length, length);
+		assertEquals(expected.length - 1, ServerMessageComposer.utfLength(payload));
+
+		// Array, with bytes either side that must be left alone
+		byte[] dest = new byte[length + 6];
+		Arrays.fill(dest, (byte) 0x55);
+		int written = ServerMessageComposer.writeMessage(MessageType.URL_TRIGGER, payload, dest, 3);
+		assertEquals(length, written);
+		assertArrayEquals(expected, Arrays.copyOfRange(dest, 3, 3 + length));
+		assertUntouched(dest, 0, 3);
+		assertUntouched(dest, 3 + length, dest.length);
+
+		// Heap buffer, which is a slice so its array offset isn't 0
+		ByteBuffer heap = ByteBuffer.allocate(length + 8);
+		heap.position(2);
+		ByteBuffer slice = heap.slice();
+		slice.position(1);
+		ServerMessageComposer.writeMessage(MessageType.URL_TRIGGER, payload, slice);
+		assertEquals(1 + length, slice.position());
+		assertArrayEquals(expected, Arrays.copyOfRange(heap.array(), 3, 3 + length));
+
+		// Direct buffer, which has no array
+		ByteBuffer direct = ByteBuffer.allocateDirect(length + 4);
+		direct.position(2);
+		ServerMessageComposer.writeMessage(MessageType.URL_TRIGGER, payload, direct);
+		assertEquals(2 + length, direct.position());
+		byte[] fromDirect = new byte[length];
+		direct.position(2);
+		direct.get(fromDirect);
+		assertArrayEquals(expected, fromDirect);
+
+		// The convenience method for URL triggers
+		if (payload.startsWith("http:")) {
+			assertArrayEquals(expected, ServerMessageComposer.writeClientUrlTrigger(new URL(payload)));
+		}
+	}
+
+	private static byte[] expected(MessageType type, String payload) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type.getValue());
+		out.writeUTF(payload);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static void assertUntouched(byte[] array, int from, int to) {
+		for (int i = from; i < to; i++) {
+			assertEquals("Byte " + i + " was overwritten", (byte) 0x55, array[i]);
+		}
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+}